@@ -44,15 +44,37 @@ public abstract class AbstractProxyAuthenticator implements Authenticator<URI, V
 
     @Override
     public Void authenticate(@Nonnull final URI credential) throws GeneralSecurityException {
-        Constraint.isNotNull(credential, "URI to authenticate cannot be null.");
-        if (!HTTPS_SCHEME.equalsIgnoreCase(credential.getScheme())) {
-            throw new GeneralSecurityException(credential + " is not an https URI as required.");
+        checkScheme(credential);
+        checkResponseCode(credential, authenticateProxyCallback(credential));
+        return null;
+    }
+
+    /**
+     * Ensures the given proxy callback URI has the required https scheme.
+     *
+     * @param callbackUri Proxy callback URI.
+     *
+     * @throws GeneralSecurityException If the URI is not an https URI.
+     */
+    protected void checkScheme(@Nonnull final URI callbackUri) throws GeneralSecurityException {
+        Constraint.isNotNull(callbackUri, "URI to authenticate cannot be null.");
+        if (!HTTPS_SCHEME.equalsIgnoreCase(callbackUri.getScheme())) {
+            throw new GeneralSecurityException(callbackUri + " is not an https URI as required.");
         }
-        final int status = authenticateProxyCallback(credential);
+    }
+
+    /**
+     * Ensures the HTTP status code returned by the proxy callback endpoint is allowed.
+     *
+     * @param callbackUri Proxy callback URI.
+     * @param status HTTP status code returned by the endpoint.
+     *
+     * @throws FailedLoginException If the status code is not allowed.
+     */
+    protected void checkResponseCode(@Nonnull final URI callbackUri, final int status) throws FailedLoginException {
         if (!allowedResponseCodes.contains(status)) {
-            throw new FailedLoginException(credential + " returned unacceptable HTTP status code " + status);
+            throw new FailedLoginException(callbackUri + " returned unacceptable HTTP status code " + status);
         }
-        return null;
     }
 
     /**
@@ -0,0 +1,26 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.authn;
+
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Strategy pattern component for authentication that completes asynchronously.
+ */
+public interface AsyncAuthenticator<CredentialType, ResultType> extends Authenticator<CredentialType, ResultType> {
+    /**
+     * Begins authenticating the given credential without blocking the calling thread.
+     *
+     * @param credential Credential to authenticate.
+     *
+     * @return Future that yields an authentication result of the defined type, or fails with a
+     * {@link java.security.GeneralSecurityException} on authentication failure or a
+     * {@link java.util.concurrent.RejectedExecutionException} if the authentication cannot be attempted because
+     * concurrency limits have been reached.
+     */
+    @Nonnull Future<ResultType> authenticateAsync(@Nonnull CredentialType credential);
+}
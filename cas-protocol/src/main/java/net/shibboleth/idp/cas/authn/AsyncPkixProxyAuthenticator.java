@@ -0,0 +1,590 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.authn;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Futures;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.component.DestructableComponent;
+import net.shibboleth.utilities.java.support.component.InitializableComponent;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ssl.SSLContexts;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
+import org.opensaml.security.trust.TrustEngine;
+import org.opensaml.security.x509.X509Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Authenticates a proxy callback URL over SSL/TLS by performing a PKIX trust check using the Apache HttpComponents
+ * NIO client. Requests are multiplexed over a small number of I/O dispatch threads, so a slow proxy callback
+ * endpoint does not occupy a thread while the request is in flight.
+ * <p>
+ * The number of requests in flight is capped both globally and per endpoint host. A request that would exceed
+ * either cap is rejected immediately with a {@link RejectedExecutionException} rather than queued, so a few slow
+ * endpoints cannot accumulate unbounded work. Requests are also subject to a per-host circuit breaker with adaptive
+ * timeouts provided by a {@link HostHealthTracker}.
+ * <p>
+ * Only the response status is used, so response bodies are discarded as they arrive and a response whose body
+ * exceeds the {@link #setMaxResponseSize(int) maximum response size} fails. Cancelling the future returned by
+ * {@link #authenticateAsync(URI)} aborts the underlying HTTP request, which releases its in-flight permits.
+ */
+public class AsyncPkixProxyAuthenticator extends AbstractProxyAuthenticator
+        implements AsyncAuthenticator<URI, Void>, InitializableComponent, DestructableComponent {
+
+    /** Default connection request, connection and socket timeout in ms. */
+    private static final int DEFAULT_TIMEOUT = 800;
+
+    /** Default maximum number of requests in flight. */
+    private static final int DEFAULT_MAX_IN_FLIGHT = 100;
+
+    /** Default maximum number of requests in flight to a single host. */
+    private static final int DEFAULT_MAX_IN_FLIGHT_PER_HOST = 5;
+
+    /** Default maximum size in bytes of a proxy callback response body. */
+    private static final int DEFAULT_MAX_RESPONSE_SIZE = 8192;
+
+    /** Size of the buffer into which response body content is read and discarded. */
+    private static final int DISCARD_BUFFER_SIZE = 1024;
+
+    /** Default time in ms trust decisions are cached. */
+    private static final long DEFAULT_TRUST_CACHE_TTL = 600000;
+
+    /** Default maximum number of cached trust decisions. */
+    private static final int DEFAULT_TRUST_CACHE_SIZE = 100;
+
+    /** Counter value marking a per-host counter that has been removed from the counter map. */
+    private static final int RETIRED = -1;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(AsyncPkixProxyAuthenticator.class);
+
+    /** Trust strategy that validates certificates presented by proxy callback endpoints. */
+    @Nonnull private final TrustEngineTrustStrategy trustStrategy;
+
+    /** Pooled connection manager of the HTTP client. */
+    @Nullable private PoolingNHttpClientConnectionManager connectionManager;
+
+    /** Asynchronous HTTP client. */
+    @Nullable private CloseableHttpAsyncClient httpClient;
+
+    /** Permits for requests in flight across all hosts. */
+    @Nullable private Semaphore inFlight;
+
+    /** Number of requests in flight per host. */
+    @Nonnull private final ConcurrentMap<String, AtomicInteger> inFlightPerHost = new ConcurrentHashMap<>();
+
+    /** Connection request, connection and socket timeout. */
+    @Positive private int timeout = DEFAULT_TIMEOUT;
+
+    /** Maximum number of requests in flight. */
+    @Positive private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    /** Maximum number of requests in flight to a single host. */
+    @Positive private int maxInFlightPerHost = DEFAULT_MAX_IN_FLIGHT_PER_HOST;
+
+    /** Maximum size in bytes of a proxy callback response body. */
+    @Positive private int maxResponseSize = DEFAULT_MAX_RESPONSE_SIZE;
+
+    /** Time in ms trust decisions are cached. */
+    @Duration private long trustCacheTTL = DEFAULT_TRUST_CACHE_TTL;
+
+    /** Maximum number of cached trust decisions. */
+    @Positive private int trustCacheSize = DEFAULT_TRUST_CACHE_SIZE;
+
+    /** Per-host circuit breaker and adaptive timeout source. */
+    @Nonnull private HostHealthTracker healthTracker = new HostHealthTracker();
+
+    /** Initialization flag. */
+    private boolean initialized;
+
+    /** Destruction flag. */
+    private boolean destroyed;
+
+
+    /**
+     * Creates a new instance.
+     *
+     * @param x509TrustEngine X.509 trust engine used to validate the TLS certificate presented by the proxy
+     *                        callback endpoint.
+     */
+    public AsyncPkixProxyAuthenticator(@Nonnull final TrustEngine<X509Credential> x509TrustEngine) {
+        trustStrategy = new TrustEngineTrustStrategy(x509TrustEngine);
+    }
+
+    /**
+     * Sets connect and socket timeouts for HTTP connection to proxy callback endpoint. The timeout also bounds the
+     * time spent waiting for a pooled connection.
+     *
+     * @param timeout Non-zero timeout in milliseconds for connection request, connection and socket timeouts.
+     */
+    public void setTimeout(@Duration @Positive final long timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.timeout = (int) Constraint.isGreaterThan(0, timeout, "Timeout must be positive");
+    }
+
+    /**
+     * Sets the component that tracks proxy callback host health to provide per-host circuit breaking and
+     * adaptive timeouts. The configured {@link #setTimeout(long) timeout} is the upper bound of adaptive timeouts.
+     *
+     * @param tracker Host health tracker.
+     */
+    public void setHealthTracker(@Nonnull final HostHealthTracker tracker) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        healthTracker = Constraint.isNotNull(tracker, "Health tracker cannot be null");
+    }
+
+    /**
+     * Sets the maximum number of proxy callback requests in flight across all hosts.
+     *
+     * @param max Maximum number of requests. Default is 100.
+     */
+    public void setMaxInFlight(@Positive final int max) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxInFlight = (int) Constraint.isGreaterThan(0, max, "Max in-flight requests must be positive");
+    }
+
+    /**
+     * Sets the maximum number of proxy callback requests in flight to a single host.
+     *
+     * @param max Maximum number of requests per host. Default is 5.
+     */
+    public void setMaxInFlightPerHost(@Positive final int max) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxInFlightPerHost =
+                (int) Constraint.isGreaterThan(0, max, "Max in-flight requests per host must be positive");
+    }
+
+    /**
+     * Sets the maximum size of a proxy callback response body. Larger responses fail proxy authentication.
+     *
+     * @param size Maximum response body size in bytes. Default is 8192.
+     */
+    public void setMaxResponseSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxResponseSize = (int) Constraint.isGreaterThan(0, size, "Max response size must be positive");
+    }
+
+    /**
+     * Sets the time trust decisions for a presented certificate chain are cached. Cached TLS sessions expire after
+     * the same time.
+     *
+     * @param ttl Cache time to live in milliseconds; zero disables caching. Default is 10m.
+     */
+    public void setTrustCacheTTL(@Duration final long ttl) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        trustCacheTTL = Constraint.isGreaterThanOrEqual(0, ttl, "Trust cache TTL cannot be negative");
+    }
+
+    /**
+     * Sets the maximum number of cached trust decisions.
+     *
+     * @param size Maximum number of cached decisions. Default is 100.
+     */
+    public void setTrustCacheSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        trustCacheSize = (int) Constraint.isGreaterThan(0, size, "Trust cache size must be positive");
+    }
+
+    /**
+     * Discards all cached trust decisions, cached TLS sessions and idle pooled connections, so that the next request
+     * to every endpoint performs a full handshake and trust check. Connections in use at the time are returned to
+     * the pool once their request completes. This should be called whenever the trust material behind the trust
+     * engine is reloaded.
+     */
+    public void invalidateTrustCache() {
+        trustStrategy.invalidateCache();
+        if (connectionManager != null) {
+            connectionManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    @Override
+    public void initialize() throws ComponentInitializationException {
+        if (initialized) {
+            return;
+        }
+        trustStrategy.configureCache(trustCacheTTL, trustCacheSize);
+        final SSLContext sslContext;
+        try {
+            sslContext = SSLContexts.custom().useTLS().loadTrustMaterial(null, trustStrategy).build();
+        } catch (Exception e) {
+            throw new ComponentInitializationException("SSL initialization error", e);
+        }
+        trustStrategy.setSessionContext(sslContext.getClientSessionContext());
+        try {
+            connectionManager = new PoolingNHttpClientConnectionManager(
+                    new DefaultConnectingIOReactor(),
+                    RegistryBuilder.<SchemeIOSessionStrategy>create()
+                            .register(HTTPS_SCHEME, new SSLIOSessionStrategy(
+                                    sslContext, SSLIOSessionStrategy.ALLOW_ALL_HOSTNAME_VERIFIER))
+                            .build());
+        } catch (IOReactorException e) {
+            throw new ComponentInitializationException("I/O reactor initialization error", e);
+        }
+        connectionManager.setMaxTotal(maxInFlight);
+        connectionManager.setDefaultMaxPerRoute(maxInFlightPerHost);
+        inFlight = new Semaphore(maxInFlight);
+        httpClient = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .disableConnectionState()
+                .build();
+        httpClient.start();
+        initialized = true;
+    }
+
+    @Override
+    public boolean isDestroyed() {
+        return destroyed;
+    }
+
+    @Override
+    public void destroy() {
+        destroyed = true;
+        if (httpClient != null) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                log.warn("Error closing " + httpClient, e);
+            }
+        }
+    }
+
+    @Override
+    @Nonnull
+    public Future<Void> authenticateAsync(@Nonnull final URI credential) {
+        try {
+            checkScheme(credential);
+        } catch (GeneralSecurityException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        final RequestFuture<Void> result = new RequestFuture<>();
+        result.setRequest(execute(credential, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(final HttpResponse response) {
+                try {
+                    checkResponseCode(credential, response.getStatusLine().getStatusCode());
+                    result.set(null);
+                } catch (GeneralSecurityException e) {
+                    result.setException(e);
+                }
+            }
+
+            @Override
+            public void failed(final Exception e) {
+                result.setException(translate(e));
+            }
+
+            @Override
+            public void cancelled() {
+                result.cancel(false);
+            }
+        }));
+        return result;
+    }
+
+    @Override
+    protected int authenticateProxyCallback(final URI callbackUri) throws GeneralSecurityException {
+        final RequestFuture<Integer> status = new RequestFuture<>();
+        status.setRequest(execute(callbackUri, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(final HttpResponse response) {
+                status.set(response.getStatusLine().getStatusCode());
+            }
+
+            @Override
+            public void failed(final Exception e) {
+                status.setException(translate(e));
+            }
+
+            @Override
+            public void cancelled() {
+                status.cancel(false);
+            }
+        }));
+        try {
+            // Connect and socket timeouts each apply separately, so allow for both
+            return status.get(2L * timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            status.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for proxy callback", e);
+        } catch (TimeoutException e) {
+            status.cancel(true);
+            throw new RuntimeException("Timed out waiting for proxy callback", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("IO error", e.getCause());
+        }
+    }
+
+    /**
+     * Submits a GET request to the callback URI if in-flight limits permit, otherwise fails the callback
+     * immediately with a {@link RejectedExecutionException}.
+     *
+     * @param callbackUri Proxy callback URI.
+     * @param callback Callback notified on completion.
+     *
+     * @return Future of the HTTP request, or null if the request was rejected.
+     */
+    @Nullable private Future<HttpResponse> execute(
+            @Nonnull final URI callbackUri, @Nonnull final FutureCallback<HttpResponse> callback) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        final String host = HostHealthTracker.hostKey(callbackUri);
+        if (!inFlight.tryAcquire()) {
+            callback.failed(new RejectedExecutionException("Too many proxy callbacks in flight"));
+            return null;
+        }
+        if (!acquireHost(host)) {
+            inFlight.release();
+            callback.failed(new RejectedExecutionException("Too many proxy callbacks in flight to " + host));
+            return null;
+        }
+        final int hostTimeout;
+        try {
+            hostTimeout = healthTracker.acquire(host, timeout);
+        } catch (RejectedExecutionException e) {
+            release(host);
+            callback.failed(e);
+            return null;
+        }
+        final long start = System.currentTimeMillis();
+        log.debug("Attempting to connect to {} with timeout {}ms", callbackUri, hostTimeout);
+        final HttpGet request = new HttpGet(callbackUri);
+        request.setConfig(
+                RequestConfig.custom()
+                        .setConnectionRequestTimeout(hostTimeout)
+                        .setConnectTimeout(hostTimeout)
+                        .setSocketTimeout(hostTimeout)
+                        .build());
+        final FutureCallback<HttpResponse> releasingCallback = new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(final HttpResponse response) {
+                healthTracker.release(host, true, System.currentTimeMillis() - start);
+                release(host);
+                callback.completed(response);
+            }
+
+            @Override
+            public void failed(final Exception e) {
+                // A certificate failure means the endpoint is reachable but untrusted
+                final boolean reachable = e instanceof SSLException && e.getCause() instanceof CertificateException;
+                healthTracker.release(host, reachable, System.currentTimeMillis() - start);
+                release(host);
+                callback.failed(e);
+            }
+
+            @Override
+            public void cancelled() {
+                // Cancellation happens when the caller gave up waiting, so count it against the host
+                healthTracker.release(host, false, System.currentTimeMillis() - start);
+                release(host);
+                callback.cancelled();
+            }
+        };
+        return httpClient.execute(
+                HttpAsyncMethods.create(request), new DiscardingResponseConsumer(maxResponseSize), releasingCallback);
+    }
+
+    private boolean acquireHost(@Nonnull final String host) {
+        while (true) {
+            AtomicInteger counter = inFlightPerHost.get(host);
+            if (counter == null) {
+                if (inFlightPerHost.putIfAbsent(host, new AtomicInteger(1)) == null) {
+                    return true;
+                }
+                continue;
+            }
+            final int count = counter.get();
+            if (count == RETIRED) {
+                // Counter is being removed; retry until it is gone
+                Thread.yield();
+                continue;
+            }
+            if (count >= maxInFlightPerHost) {
+                return false;
+            }
+            if (counter.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void release(@Nonnull final String host) {
+        inFlight.release();
+        final AtomicInteger counter = inFlightPerHost.get(host);
+        if (counter != null && counter.decrementAndGet() == 0 && counter.compareAndSet(0, RETIRED)) {
+            inFlightPerHost.remove(host, counter);
+        }
+    }
+
+    @Nonnull private static Exception translate(@Nonnull final Exception e) {
+        if (e instanceof SSLException) {
+            if (e.getCause() instanceof CertificateException) {
+                return (CertificateException) e.getCause();
+            }
+            return new GeneralSecurityException("SSL connection error", e);
+        }
+        return e;
+    }
+
+    /**
+     * Future of a proxy callback that aborts the underlying HTTP request when cancelled.
+     *
+     * @param <V> Result type.
+     */
+    private static final class RequestFuture<V> extends AbstractFuture<V> {
+
+        /** HTTP request future, or null if the request was rejected. */
+        @Nullable private volatile Future<HttpResponse> request;
+
+        /**
+         * Sets the HTTP request future, aborting the request if this future is already cancelled.
+         *
+         * @param future HTTP request future, or null if the request was rejected.
+         */
+        void setRequest(@Nullable final Future<HttpResponse> future) {
+            request = future;
+            if (future != null && isCancelled()) {
+                future.cancel(true);
+            }
+        }
+
+        @Override
+        public boolean set(@Nullable final V value) {
+            return super.set(value);
+        }
+
+        @Override
+        public boolean setException(@Nonnull final Throwable throwable) {
+            return super.setException(throwable);
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            if (!super.cancel(mayInterruptIfRunning)) {
+                return false;
+            }
+            final Future<HttpResponse> future = request;
+            if (future != null) {
+                future.cancel(true);
+            }
+            return true;
+        }
+    }
+
+    /** Response consumer that keeps the response head, discards the body, and fails if the body is too large. */
+    private static final class DiscardingResponseConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+
+        /** Maximum size in bytes of the response body. */
+        private final int maxSize;
+
+        /** Buffer into which body content is read and discarded. */
+        @Nonnull private final ByteBuffer buffer = ByteBuffer.allocate(DISCARD_BUFFER_SIZE);
+
+        /** Response head. */
+        @Nullable private HttpResponse response;
+
+        /** Number of body bytes received. */
+        private long received;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param size Maximum size in bytes of the response body.
+         */
+        DiscardingResponseConsumer(final int size) {
+            maxSize = size;
+        }
+
+        @Override
+        protected void onResponseReceived(@Nonnull final HttpResponse httpResponse) {
+            response = httpResponse;
+        }
+
+        @Override
+        protected void onEntityEnclosed(@Nonnull final HttpEntity entity, @Nullable final ContentType contentType)
+                throws IOException {
+            if (entity.getContentLength() > maxSize) {
+                throw new IOException("Proxy callback response of " + entity.getContentLength()
+                        + " bytes exceeds maximum of " + maxSize);
+            }
+        }
+
+        @Override
+        protected void onContentReceived(@Nonnull final ContentDecoder decoder, @Nonnull final IOControl ioctrl)
+                throws IOException {
+            int count;
+            while ((count = decoder.read(buffer)) > 0) {
+                buffer.clear();
+                received += count;
+                if (received > maxSize) {
+                    throw new IOException("Proxy callback response exceeds maximum of " + maxSize + " bytes");
+                }
+            }
+        }
+
+        @Override
+        protected HttpResponse buildResult(@Nonnull final HttpContext context) {
+            return response;
+        }
+
+        @Override
+        protected void releaseResources() {
+            response = null;
+        }
+    }
+}
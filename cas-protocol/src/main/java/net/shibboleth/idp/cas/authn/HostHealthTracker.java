@@ -0,0 +1,286 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.authn;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the health of proxy callback endpoint hosts to provide a circuit breaker and adaptive timeouts per host.
+ * <p>
+ * A host's circuit opens after a number of consecutive failures, during which requests to that host are rejected
+ * immediately. Once the open period elapses the circuit is half-open, and a single probe request is allowed
+ * through with the caller's default timeout; its success closes the circuit and its failure reopens it.
+ * <p>
+ * Once enough successful requests to a host have been observed, the timeout for that host is derived from a
+ * high percentile of its recent latencies, bounded by a configured minimum and the caller's default timeout. A
+ * host that normally answers quickly thus fails fast when it stalls, without affecting other hosts. Any failure
+ * discards the learned latencies, so the host is given the default timeout again until enough new successful
+ * requests have been observed; a host whose latency has grown is not failed repeatedly on a stale timeout.
+ * <p>
+ * Callers must pair each successful {@link #acquire(String, int)} with exactly one
+ * {@link #release(String, boolean, long)}.
+ */
+public class HostHealthTracker {
+
+    /** Number of recent latency samples kept per host. */
+    private static final int SAMPLE_SIZE = 64;
+
+    /** Minimum number of samples required before timeouts adapt. */
+    private static final int MIN_SAMPLES = 10;
+
+    /** Number of samples between timeout recalculations. */
+    private static final int RECALCULATE_INTERVAL = 8;
+
+    /** Lowest permitted minimum timeout in ms, since latencies over pooled connections omit connection setup. */
+    private static final int TIMEOUT_FLOOR = 100;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(HostHealthTracker.class);
+
+    /** Per-host health state. */
+    @Nonnull private final LoadingCache<String, HostHealth> hosts;
+
+    /** Number of consecutive failures that opens a host's circuit. */
+    @Positive private int failureThreshold = 5;
+
+    /** Time in ms a host's circuit stays open before a probe request is allowed. */
+    @Duration @Positive private long openPeriod = 30000;
+
+    /** Lower bound in ms of adaptive timeouts. */
+    @Duration @Positive private int minTimeout = 200;
+
+    /** Latency percentile, from 0 to 1, used to derive adaptive timeouts. */
+    private double percentile = 0.99;
+
+    /** Multiplier applied to the latency percentile to derive adaptive timeouts. */
+    private double timeoutMultiplier = 3.0;
+
+
+    /** Creates a new instance. */
+    public HostHealthTracker() {
+        hosts = CacheBuilder.newBuilder()
+                .maximumSize(1000)
+                .expireAfterAccess(1, TimeUnit.HOURS)
+                .build(new CacheLoader<String, HostHealth>() {
+                    @Override
+                    public HostHealth load(final String host) {
+                        return new HostHealth();
+                    }
+                });
+    }
+
+    /**
+     * Sets the number of consecutive failures that opens a host's circuit.
+     *
+     * @param threshold Failure threshold. Default is 5.
+     */
+    public void setFailureThreshold(@Positive final int threshold) {
+        failureThreshold = (int) Constraint.isGreaterThan(0, threshold, "Failure threshold must be positive");
+    }
+
+    /**
+     * Sets the time a host's circuit stays open before a probe request is allowed.
+     *
+     * @param period Open period in milliseconds. Default is 30s.
+     */
+    public void setOpenPeriod(@Duration @Positive final long period) {
+        openPeriod = Constraint.isGreaterThan(0, period, "Open period must be positive");
+    }
+
+    /**
+     * Sets the lower bound of adaptive timeouts.
+     *
+     * @param timeout Minimum timeout in milliseconds of at least 100ms. Default is 200ms.
+     */
+    public void setMinTimeout(@Duration @Positive final long timeout) {
+        minTimeout = (int) Constraint.isGreaterThanOrEqual(
+                TIMEOUT_FLOOR, timeout, "Minimum timeout must be at least " + TIMEOUT_FLOOR + "ms");
+    }
+
+    /**
+     * Sets the latency percentile used to derive adaptive timeouts.
+     *
+     * @param p Percentile between 0 and 1 exclusive. Default is 0.99.
+     */
+    public void setPercentile(final double p) {
+        if (p <= 0 || p >= 1) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 1");
+        }
+        percentile = p;
+    }
+
+    /**
+     * Sets the multiplier applied to the latency percentile to derive adaptive timeouts.
+     *
+     * @param multiplier Multiplier of at least 1. Default is 3.
+     */
+    public void setTimeoutMultiplier(final double multiplier) {
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("Timeout multiplier must be at least 1");
+        }
+        timeoutMultiplier = multiplier;
+    }
+
+    /**
+     * Gets the host identifier of a proxy callback URI used to track its health.
+     *
+     * @param uri Proxy callback URI.
+     *
+     * @return Host identifier of the form <code>host:port</code>.
+     */
+    @Nonnull public static String hostKey(@Nonnull final URI uri) {
+        return uri.getHost() + ':' + uri.getPort();
+    }
+
+    /**
+     * Permits a request to the given host unless its circuit is open.
+     *
+     * @param host Host identifier, e.g. <code>host:port</code>.
+     * @param defaultTimeout Timeout in ms to use until enough latency samples are available and for half-open
+     *                       probes, and upper bound of the adaptive timeout.
+     *
+     * @return Timeout in ms to apply to the request.
+     *
+     * @throws RejectedExecutionException If the host's circuit is open.
+     */
+    public int acquire(@Nonnull final String host, @Positive final int defaultTimeout) {
+        final int timeout = hosts.getUnchecked(host).acquire(defaultTimeout);
+        if (timeout == 0) {
+            throw new RejectedExecutionException("Circuit open for " + host);
+        }
+        return timeout;
+    }
+
+    /**
+     * Records the outcome of a request to the given host.
+     *
+     * @param host Host identifier.
+     * @param healthy True if the host responded, false if the request failed on a connection error or timeout.
+     * @param latency Request latency in ms.
+     */
+    public void release(@Nonnull final String host, final boolean healthy, final long latency) {
+        final HostHealth health = hosts.getUnchecked(host);
+        if (healthy) {
+            health.success(latency);
+        } else if (health.failure()) {
+            log.warn("Opened circuit for {} after {} consecutive failures", host, failureThreshold);
+        }
+    }
+
+    /**
+     * Determines whether the circuit for the given host is currently open.
+     *
+     * @param host Host identifier.
+     *
+     * @return True if requests to the host are currently rejected, false otherwise.
+     */
+    public boolean isOpen(@Nonnull final String host) {
+        final HostHealth health = hosts.getIfPresent(host);
+        return health != null && health.isOpen();
+    }
+
+    /** Health state of a single host. */
+    private final class HostHealth {
+
+        /** Ring buffer of recent latencies. */
+        private final long[] samples = new long[SAMPLE_SIZE];
+
+        /** Total number of latency samples recorded. */
+        private long sampleCount;
+
+        /** Consecutive failure count. */
+        private int failures;
+
+        /** System time in ms at which the circuit opened, or zero if closed. */
+        private long openedAt;
+
+        /** True while a half-open probe request is in flight. */
+        private boolean probing;
+
+        /** Current adaptive timeout in ms, or zero until enough samples have been recorded. */
+        private int adaptiveTimeout;
+
+        /**
+         * Permits a request unless the circuit is open.
+         *
+         * @param defaultTimeout Caller's default timeout in ms.
+         *
+         * @return Timeout in ms to apply to the request, or zero if the request is rejected.
+         */
+        synchronized int acquire(final int defaultTimeout) {
+            if (openedAt == 0) {
+                return timeout(defaultTimeout);
+            }
+            if (probing || System.currentTimeMillis() - openedAt < openPeriod) {
+                return 0;
+            }
+            // A probe must not fail merely because the learned timeout is too tight
+            probing = true;
+            return defaultTimeout;
+        }
+
+        synchronized boolean isOpen() {
+            return openedAt != 0 && (probing || System.currentTimeMillis() - openedAt < openPeriod);
+        }
+
+        private int timeout(final int defaultTimeout) {
+            final int adaptive = adaptiveTimeout;
+            if (adaptive == 0) {
+                return defaultTimeout;
+            }
+            return Math.min(defaultTimeout, Math.max(minTimeout, adaptive));
+        }
+
+        synchronized void success(final long latency) {
+            failures = 0;
+            openedAt = 0;
+            probing = false;
+            samples[(int) (sampleCount++ % SAMPLE_SIZE)] = latency;
+            if (sampleCount >= MIN_SAMPLES && sampleCount % RECALCULATE_INTERVAL == 0) {
+                final int n = (int) Math.min(sampleCount, SAMPLE_SIZE);
+                final long[] sorted = Arrays.copyOf(samples, n);
+                Arrays.sort(sorted);
+                final long p = sorted[Math.min(n - 1, (int) Math.ceil(percentile * n) - 1)];
+                adaptiveTimeout = (int) Math.min(Integer.MAX_VALUE, (long) Math.ceil(p * timeoutMultiplier));
+            }
+        }
+
+        /**
+         * Records a failure.
+         *
+         * @return True if this failure opened the circuit, false otherwise.
+         */
+        synchronized boolean failure() {
+            // The learned latencies no longer describe the host
+            sampleCount = 0;
+            adaptiveTimeout = 0;
+            if (probing) {
+                // Failed probe reopens the circuit for another period
+                probing = false;
+                openedAt = System.currentTimeMillis();
+                return false;
+            }
+            if (++failures >= failureThreshold && openedAt == 0) {
+                openedAt = System.currentTimeMillis();
+                return true;
+            }
+            return false;
+        }
+    }
+}
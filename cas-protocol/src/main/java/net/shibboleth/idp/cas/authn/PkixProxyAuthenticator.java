@@ -9,9 +9,10 @@ import java.io.IOException;
 import java.net.URI;
 import java.security.GeneralSecurityException;
 import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
 import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nonnull;
 import javax.net.ssl.SSLContext;
@@ -19,11 +20,12 @@ import javax.net.ssl.SSLException;
 
 import net.shibboleth.idp.cas.config.ProxyGrantingTicketConfiguration;
 import net.shibboleth.idp.profile.config.SecurityConfiguration;
+import net.shibboleth.utilities.java.support.annotation.Duration;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
 import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.component.DestructableComponent;
 import net.shibboleth.utilities.java.support.logic.Constraint;
-import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
@@ -33,67 +35,84 @@ import org.apache.http.config.RegistryBuilder;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLContexts;
-import org.apache.http.conn.ssl.TrustStrategy;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
-import org.opensaml.security.SecurityException;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
 import org.opensaml.security.trust.TrustEngine;
-import org.opensaml.security.x509.BasicX509Credential;
 import org.opensaml.security.x509.X509Credential;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Authenticates a proxy callback URL over SSL/TLS by performing a PKIX trust check using Apache HttpComponents.
+ * <p>
+ * A single long-lived HTTP client backed by a pooled connection manager is shared by all requests, so that
+ * keep-alive connections to proxy callback endpoints are reused. Since the same <code>SSLContext</code> is used for
+ * every connection, new connections to a recently contacted host resume the cached TLS session instead of
+ * performing a full handshake. Idle connections are evicted opportunistically by request threads, so no background
+ * thread is required. Cached TLS sessions expire along with cached trust decisions, after the
+ * {@link #setTrustCacheTTL(long) trust cache TTL}.
+ * <p>
+ * Requests are subject to a per-host circuit breaker with adaptive timeouts provided by a
+ * {@link HostHealthTracker}; requests to a host whose circuit is open fail immediately with a
+ * {@link java.util.concurrent.RejectedExecutionException}.
  *
  * @author Marvin S. Addison
  */
-public class PkixProxyAuthenticator extends AbstractProxyAuthenticator {
+public class PkixProxyAuthenticator extends AbstractProxyAuthenticator implements DestructableComponent {
 
-    /**
-     * Delegates X.509 certificate trust to an underlying OpenSAML <code>TrustEngine</code>.
-     */
-    private static class TrustEngineTrustStrategy implements TrustStrategy {
+    /** Default connection request, connection and socket timeout in ms. */
+    private static final int DEFAULT_TIMEOUT = 800;
 
-        private final TrustEngine<X509Credential> trustEngine;
+    /** Default maximum number of pooled connections. */
+    private static final int DEFAULT_MAX_CONNECTIONS = 100;
 
-        /** Class logger. */
-        private final Logger log = LoggerFactory.getLogger(TrustEngineTrustStrategy.class);
+    /** Default maximum number of pooled connections per route. */
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 5;
 
-        public TrustEngineTrustStrategy(@Nonnull final TrustEngine<X509Credential> engine) {
-            trustEngine = Constraint.isNotNull(engine, "TrustEngine cannot be null");
-        }
+    /** Default time in ms after which idle pooled connections are closed. */
+    private static final long DEFAULT_IDLE_TIMEOUT = 30000;
 
-        @Override
-        public boolean isTrusted(final X509Certificate[] certificates, final String authType)
-                throws CertificateException {
-            if (certificates == null || certificates.length < 1) {
-                return false;
-            }
-            // Assume the first certificate is the end-entity cert
-            try {
-                log.debug("Validating cert {} issued by {}",
-                        certificates[0].getSubjectDN().getName(),
-                        certificates[0].getIssuerDN().getName());
-                return trustEngine.validate(new BasicX509Credential(certificates[0]), new CriteriaSet());
-            } catch (SecurityException e) {
-                throw new CertificateException("X509 validation error", e);
-            }
-        }
-    }
+    /** Default time in ms trust decisions are cached. */
+    private static final long DEFAULT_TRUST_CACHE_TTL = 600000;
 
-    /** Default connection and socket timeout in ms. */
-    private static final int DEFAULT_TIMEOUT = 800;
+    /** Default maximum number of cached trust decisions. */
+    private static final int DEFAULT_TRUST_CACHE_SIZE = 100;
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(PkixProxyAuthenticator.class);
 
-    private final SSLConnectionSocketFactory socketFactory;
+    /** Trust strategy that validates certificates presented by proxy callback endpoints. */
+    private final TrustEngineTrustStrategy trustStrategy;
+
+    /** Time in ms trust decisions are cached. */
+    @Duration private long trustCacheTTL = DEFAULT_TRUST_CACHE_TTL;
+
+    /** Maximum number of cached trust decisions. */
+    @Positive private int trustCacheSize = DEFAULT_TRUST_CACHE_SIZE;
 
-    /** Connection and socket timeout. */
+    /** Pooled connection manager. */
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    /** HTTP client shared by all requests. */
+    private final CloseableHttpClient httpClient;
+
+    /** System time in ms of last idle connection eviction. */
+    private final AtomicLong lastEviction = new AtomicLong(System.currentTimeMillis());
+
+    /** Connection request, connection and socket timeout. */
     @Positive private int timeout = DEFAULT_TIMEOUT;
 
+    /** Time in ms after which idle pooled connections are closed. */
+    @Duration @Positive private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    /** Per-host circuit breaker and adaptive timeout source. */
+    @Nonnull private HostHealthTracker healthTracker = new HostHealthTracker();
+
+    /** Destruction flag. */
+    private boolean destroyed;
+
 
     /**
      * Creates a new instance.
@@ -103,63 +122,172 @@ public class PkixProxyAuthenticator extends AbstractProxyAuthenticator {
      */
     public PkixProxyAuthenticator(@Nonnull TrustEngine<X509Credential> x509TrustEngine) {
         Constraint.isNotNull(x509TrustEngine, "Trust engine cannot be null");
+        trustStrategy = new TrustEngineTrustStrategy(x509TrustEngine);
+        trustStrategy.configureCache(trustCacheTTL, trustCacheSize);
+        final SSLConnectionSocketFactory socketFactory;
         try {
             SSLContext sslContext = SSLContexts.custom()
                     .useTLS()
-                    .loadTrustMaterial(null, new TrustEngineTrustStrategy(x509TrustEngine))
+                    .loadTrustMaterial(null, trustStrategy)
                     .build();
+            trustStrategy.setSessionContext(sslContext.getClientSessionContext());
             socketFactory = new SSLConnectionSocketFactory(
                     sslContext,
                     SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
         } catch (Exception e) {
             throw new RuntimeException("SSL initialization error", e);
         }
+        final Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register(HTTPS_SCHEME, socketFactory).build();
+        connectionManager = new PoolingHttpClientConnectionManager(registry);
+        connectionManager.setMaxTotal(DEFAULT_MAX_CONNECTIONS);
+        connectionManager.setDefaultMaxPerRoute(DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+        // Connections carry no user state since no client certificate is presented, so any pooled connection
+        // to a route may serve any request
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .disableConnectionState()
+                .build();
     }
 
     /**
-     * Sets connect and socket timeouts for HTTP connection to proxy callback endpoint.
+     * Sets connect and socket timeouts for HTTP connection to proxy callback endpoint. The timeout also bounds the
+     * time spent waiting for a pooled connection when the pool is exhausted.
      *
-     * @param timeout Non-zero timeout in milliseconds for both connection and socket timeouts.
+     * @param timeout Non-zero timeout in milliseconds for connection request, connection and socket timeouts.
      */
     public void setTimeout(@Positive final int timeout) {
         this.timeout = (int) Constraint.isGreaterThan(timeout, 0, "Timeout must be positive");
     }
 
+    /**
+     * Sets the component that tracks proxy callback host health to provide per-host circuit breaking and
+     * adaptive timeouts. The configured {@link #setTimeout(int) timeout} is the upper bound of adaptive timeouts.
+     *
+     * @param tracker Host health tracker.
+     */
+    public void setHealthTracker(@Nonnull final HostHealthTracker tracker) {
+        healthTracker = Constraint.isNotNull(tracker, "Health tracker cannot be null");
+    }
+
+    /**
+     * Sets the maximum number of pooled connections across all proxy callback endpoints.
+     *
+     * @param max Maximum number of connections. Default is 100.
+     */
+    public void setMaxConnections(@Positive final int max) {
+        connectionManager.setMaxTotal((int) Constraint.isGreaterThan(0, max, "Max connections must be positive"));
+    }
+
+    /**
+     * Sets the maximum number of pooled connections to a single proxy callback endpoint.
+     *
+     * @param max Maximum number of connections per route. Default is 5.
+     */
+    public void setMaxConnectionsPerRoute(@Positive final int max) {
+        connectionManager.setDefaultMaxPerRoute(
+                (int) Constraint.isGreaterThan(0, max, "Max connections per route must be positive"));
+    }
+
+    /**
+     * Sets the time after which idle pooled connections are closed.
+     *
+     * @param timeout Idle timeout in milliseconds. Default is 30s.
+     */
+    public void setIdleTimeout(@Duration @Positive final long timeout) {
+        idleTimeout = Constraint.isGreaterThan(0, timeout, "Idle timeout must be positive");
+    }
+
+    /**
+     * Sets the time trust decisions for a presented certificate chain are cached. This bounds how long a change in
+     * trust material takes effect when {@link #invalidateTrustCache()} is not called on reload.
+     *
+     * @param ttl Cache time to live in milliseconds; zero disables caching. Default is 10m.
+     */
+    public void setTrustCacheTTL(@Duration final long ttl) {
+        trustCacheTTL = Constraint.isGreaterThanOrEqual(0, ttl, "Trust cache TTL cannot be negative");
+        trustStrategy.configureCache(trustCacheTTL, trustCacheSize);
+    }
+
+    /**
+     * Sets the maximum number of cached trust decisions.
+     *
+     * @param size Maximum number of cached decisions. Default is 100.
+     */
+    public void setTrustCacheSize(@Positive final int size) {
+        trustCacheSize = (int) Constraint.isGreaterThan(0, size, "Trust cache size must be positive");
+        trustStrategy.configureCache(trustCacheTTL, trustCacheSize);
+    }
+
+    /**
+     * Discards all cached trust decisions, cached TLS sessions and idle pooled connections, so that the next request
+     * to every endpoint performs a full handshake and trust check. Connections in use at the time are returned to
+     * the pool once their request completes. This should be called whenever the trust material behind the trust
+     * engine is reloaded.
+     */
+    public void invalidateTrustCache() {
+        trustStrategy.invalidateCache();
+        connectionManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean isDestroyed() {
+        return destroyed;
+    }
+
+    @Override
+    public void destroy() {
+        destroyed = true;
+        close(httpClient);
+    }
+
     @Override
     protected int authenticateProxyCallback(final URI callbackUri) throws GeneralSecurityException {
-        CloseableHttpClient httpClient = null;
+        final String host = HostHealthTracker.hostKey(callbackUri);
+        final int hostTimeout = healthTracker.acquire(host, timeout);
+        final long start = System.currentTimeMillis();
+        boolean healthy = false;
         CloseableHttpResponse response = null;
         try {
-            httpClient = createHttpClient();
-            log.debug("Attempting to connect to {}", callbackUri);
+            evictIdleConnections();
+            log.debug("Attempting to connect to {} with timeout {}ms", callbackUri, hostTimeout);
             final HttpGet request = new HttpGet(callbackUri);
             request.setConfig(
                     RequestConfig.custom()
-                            .setConnectTimeout(timeout)
-                            .setSocketTimeout(timeout)
+                            .setConnectionRequestTimeout(hostTimeout)
+                            .setConnectTimeout(hostTimeout)
+                            .setSocketTimeout(hostTimeout)
                             .build());
             response = httpClient.execute(request);
+            // Consume the body so the connection is released back to the pool for reuse
+            EntityUtils.consume(response.getEntity());
+            healthy = true;
             return response.getStatusLine().getStatusCode();
         } catch (ClientProtocolException e) {
             throw new RuntimeException("HTTP protocol error", e);
         } catch (SSLException e) {
             if (e.getCause() instanceof CertificateException) {
+                // Endpoint is reachable but untrusted
+                healthy = true;
                 throw (CertificateException) e.getCause();
             }
             throw new GeneralSecurityException("SSL connection error", e);
         } catch (IOException e) {
             throw new RuntimeException("IO error", e);
         } finally {
+            healthTracker.release(host, healthy, System.currentTimeMillis() - start);
             close(response);
-            close(httpClient);
         }
     }
 
-    private CloseableHttpClient createHttpClient() {
-        final Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
-                .register(HTTPS_SCHEME, socketFactory).build();
-        final BasicHttpClientConnectionManager connectionManager = new BasicHttpClientConnectionManager(registry);
-        return HttpClients.custom().setConnectionManager(connectionManager).build();
+    /** Closes expired and idle pooled connections at most once per half idle timeout. */
+    private void evictIdleConnections() {
+        final long now = System.currentTimeMillis();
+        final long last = lastEviction.get();
+        if (now - last > idleTimeout / 2 && lastEviction.compareAndSet(last, now)) {
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+        }
     }
 
     private void close(Closeable resource) {
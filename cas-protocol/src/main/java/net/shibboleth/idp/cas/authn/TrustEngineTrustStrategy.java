@@ -0,0 +1,169 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.authn;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import net.shibboleth.utilities.java.support.codec.Base64Support;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
+import org.apache.http.conn.ssl.TrustStrategy;
+import org.opensaml.security.SecurityException;
+import org.opensaml.security.trust.TrustEngine;
+import org.opensaml.security.x509.BasicX509Credential;
+import org.opensaml.security.x509.X509Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delegates X.509 certificate trust to an underlying OpenSAML <code>TrustEngine</code>. Trust decisions are
+ * cached for a limited time keyed by a digest over the presented certificate chain, so repeat callbacks from
+ * the same endpoint skip PKIX path validation. Both positive and negative decisions are cached; validation
+ * errors are not.
+ * <p>
+ * A resumed TLS session skips the trust check altogether, so the client session cache of the SSL context using this
+ * strategy may be {@link #setSessionContext(SSLSessionContext) attached}: its session timeout is then bounded by the
+ * decision cache TTL, and its sessions are invalidated along with cached decisions.
+ */
+class TrustEngineTrustStrategy implements TrustStrategy {
+
+    /** Digest algorithm used to key cached decisions. */
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /** Trust engine that validates end-entity certificates. */
+    private final TrustEngine<X509Credential> trustEngine;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(TrustEngineTrustStrategy.class);
+
+    /** Cached trust decisions keyed by certificate chain digest; null when caching is disabled. */
+    @Nullable private volatile Cache<String, Boolean> decisionCache;
+
+    /** Time in milliseconds a decision is cached. */
+    private volatile long cacheTTL;
+
+    /** Client session cache of the SSL context using this strategy. */
+    @Nullable private volatile SSLSessionContext sessionContext;
+
+    /**
+     * Creates a new instance with caching disabled.
+     *
+     * @param engine Trust engine that validates end-entity certificates.
+     */
+    public TrustEngineTrustStrategy(@Nonnull final TrustEngine<X509Credential> engine) {
+        trustEngine = Constraint.isNotNull(engine, "TrustEngine cannot be null");
+    }
+
+    /**
+     * Configures the decision cache, discarding all cached decisions.
+     *
+     * @param ttl Time in milliseconds a decision is cached; zero disables caching.
+     * @param size Maximum number of cached decisions.
+     */
+    public void configureCache(final long ttl, final int size) {
+        cacheTTL = ttl;
+        configureSessionTimeout();
+        if (ttl > 0) {
+            decisionCache = CacheBuilder.newBuilder()
+                    .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                    .maximumSize(size)
+                    .build();
+        } else {
+            decisionCache = null;
+        }
+    }
+
+    /**
+     * Attaches the client session cache of the SSL context that uses this strategy.
+     *
+     * @param context Client session context.
+     */
+    public void setSessionContext(@Nonnull final SSLSessionContext context) {
+        sessionContext = Constraint.isNotNull(context, "Session context cannot be null");
+        configureSessionTimeout();
+    }
+
+    /** Discards all cached decisions and invalidates all sessions of the attached session cache. */
+    public void invalidateCache() {
+        final Cache<String, Boolean> cache = decisionCache;
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+        final SSLSessionContext context = sessionContext;
+        if (context != null) {
+            final Enumeration<byte[]> ids = context.getIds();
+            while (ids.hasMoreElements()) {
+                final SSLSession session = context.getSession(ids.nextElement());
+                if (session != null) {
+                    session.invalidate();
+                }
+            }
+        }
+    }
+
+    /** Bounds the session timeout of the attached session cache by the decision cache TTL. */
+    private void configureSessionTimeout() {
+        final SSLSessionContext context = sessionContext;
+        if (context != null) {
+            // The timeout has a granularity of seconds and zero means no limit, so one second is the lowest bound
+            context.setSessionTimeout((int) Math.max(1, Math.min(Integer.MAX_VALUE, (cacheTTL + 999) / 1000)));
+        }
+    }
+
+    @Override
+    public boolean isTrusted(final X509Certificate[] certificates, final String authType)
+            throws CertificateException {
+        if (certificates == null || certificates.length < 1) {
+            return false;
+        }
+        final Cache<String, Boolean> cache = decisionCache;
+        final String key = cache != null ? chainDigest(certificates) : null;
+        if (key != null) {
+            final Boolean cached = cache.getIfPresent(key);
+            if (cached != null) {
+                log.debug("Using cached trust decision for cert {}", certificates[0].getSubjectDN().getName());
+                return cached;
+            }
+        }
+        // Assume the first certificate is the end-entity cert
+        final boolean trusted;
+        try {
+            log.debug("Validating cert {} issued by {}",
+                    certificates[0].getSubjectDN().getName(),
+                    certificates[0].getIssuerDN().getName());
+            trusted = trustEngine.validate(new BasicX509Credential(certificates[0]), new CriteriaSet());
+        } catch (SecurityException e) {
+            throw new CertificateException("X509 validation error", e);
+        }
+        if (key != null) {
+            cache.put(key, trusted);
+        }
+        return trusted;
+    }
+
+    private static String chainDigest(final X509Certificate[] certificates) throws CertificateException {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            for (final X509Certificate certificate : certificates) {
+                digest.update(certificate.getEncoded());
+            }
+            return Base64Support.encode(digest.digest(), Base64Support.UNCHUNKED);
+        } catch (NoSuchAlgorithmException e) {
+            throw new CertificateException(DIGEST_ALGORITHM + " not supported", e);
+        }
+    }
+}
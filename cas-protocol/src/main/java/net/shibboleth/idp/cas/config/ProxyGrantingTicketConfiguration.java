@@ -12,6 +12,7 @@ import net.shibboleth.idp.cas.authn.Authenticator;
 import net.shibboleth.idp.cas.ticket.TicketIdentifierGenerationStrategy;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.logic.Constraint;
 import net.shibboleth.utilities.java.support.security.IdentifierGenerationStrategy;
@@ -42,6 +43,10 @@ public class ProxyGrantingTicketConfiguration extends AbstractTicketConfiguratio
     @Nonnull
     private IdentifierGenerationStrategy pgtIOUGenerator = new TicketIdentifierGenerationStrategy(50, "PGTIOU");
 
+    /** Maximum number of proxies in a proxy chain. */
+    @Positive
+    private int maxProxyChainDepth = 10;
+
 
     /** Creates a new instance. */
     public ProxyGrantingTicketConfiguration() {
@@ -71,4 +76,22 @@ public class ProxyGrantingTicketConfiguration extends AbstractTicketConfiguratio
     public void setPGTIOUGenerator(@Nonnull IdentifierGenerationStrategy generator) {
         this.pgtIOUGenerator = Constraint.isNotNull(generator, "PGTIOU generator cannot be null");
     }
+
+    /**
+     * @return Maximum number of proxies in a proxy chain.
+     */
+    @Positive
+    public int getMaxProxyChainDepth() {
+        return maxProxyChainDepth;
+    }
+
+    /**
+     * Sets the maximum number of proxies in a proxy chain. A proxy-granting ticket that would lengthen the chain
+     * of a proxy ticket beyond this depth is not issued.
+     *
+     * @param depth Maximum proxy chain depth. Default is 10.
+     */
+    public void setMaxProxyChainDepth(@Positive final int depth) {
+        this.maxProxyChainDepth = (int) Constraint.isGreaterThan(0, depth, "Max proxy chain depth must be positive");
+    }
 }
@@ -22,11 +22,14 @@ import org.springframework.webflow.execution.Event;
 import org.springframework.webflow.execution.RequestContext;
 
 /**
- * Action that builds the chain of visited proxies for a successful proxy ticket validation event. Possible outcomes:
+ * Action that builds the chain of visited proxies for a successful proxy ticket validation event. The chain is read
+ * from the proxy-granting ticket of the proxy ticket, which carries the services of its ancestors, so only tickets
+ * stored without their chain require a read per ancestor. Possible outcomes:
  *
  * <ul>
  *     <li>{@link Events#Proceed proceed}</li>
  *     <li>{@link ProtocolError#InvalidTicketType invalidTicketTypew}</li>
+ *     <li>{@link ProtocolError#TicketRetrievalError ticketRetrievalError}</li>
  * </ul>
  *
  * @author Marvin S. Addison
@@ -71,13 +74,29 @@ public class BuildProxyChainAction
             return ProtocolError.InvalidTicketType.event(this);
         }
         final ProxyTicket pt = (ProxyTicket) ticketContext.getTicket();
-        ProxyGrantingTicket pgt;
-        String pgtId = pt.getPgtId();
-        do {
+        ProxyGrantingTicket pgt = ticketService.fetchProxyGrantingTicket(pt.getPgtId());
+        if (pgt == null) {
+            log.info("Proxy-granting ticket {} for {} not found", pt.getPgtId(), pt);
+            return ProtocolError.TicketRetrievalError.event(this);
+        }
+        response.addProxy(pgt.getService());
+        if (pgt.getProxyChain() != null) {
+            for (final String proxy : pgt.getProxyChain()) {
+                response.addProxy(proxy);
+            }
+            return Events.Proceed.event(this);
+        }
+        // Ticket stored without its chain; fetch each ancestor
+        String pgtId = pgt.getParentId();
+        while (pgtId != null) {
             pgt = ticketService.fetchProxyGrantingTicket(pgtId);
+            if (pgt == null) {
+                log.info("Proxy-granting ticket {} in chain of {} not found", pgtId, pt);
+                return ProtocolError.TicketRetrievalError.event(this);
+            }
             response.addProxy(pgt.getService());
             pgtId = pgt.getParentId();
-        } while (pgtId != null);
+        }
 
         return Events.Proceed.event(this);
     }
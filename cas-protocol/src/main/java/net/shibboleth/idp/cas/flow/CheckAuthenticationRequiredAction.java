@@ -5,8 +5,11 @@
 package net.shibboleth.idp.cas.flow;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import net.shibboleth.idp.cas.protocol.ServiceTicketRequest;
+import net.shibboleth.idp.cas.session.CachingSessionResolver;
+import net.shibboleth.idp.cas.session.SessionActivityTracker;
 import net.shibboleth.idp.profile.AbstractProfileAction;
 import net.shibboleth.idp.session.IdPSession;
 import net.shibboleth.idp.session.SessionException;
@@ -27,6 +30,13 @@ import org.springframework.webflow.execution.RequestContext;
  *     <li>{@link Events#SessionFound sessionFound} - Authentication not required since session already exists.</li>
  *     <li>{@link Events#SessionNotFound sessionNotFound} - Authentication required since no active session exists.</li>
  * </ul>
+ * <p>
+ * If a {@link CachingSessionResolver} is configured, a session found to be active is added to its cache, so that
+ * validating the ticket issued for it need not read the session from storage, and a session found to have ended is
+ * discarded from it.
+ * <p>
+ * If a {@link SessionActivityTracker} is configured, session timeout checks and the activity updates they entail
+ * are coalesced by it.
  *
  * @author Marvin S. Addison
  */
@@ -35,6 +45,30 @@ public class CheckAuthenticationRequiredAction extends AbstractProfileAction<Ser
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(CheckAuthenticationRequiredAction.class);
 
+    /** Cache of resolved sessions shared with the validation flows. */
+    @Nullable private CachingSessionResolver sessionCache;
+
+    /** Coalesces session timeout checks. */
+    @Nullable private SessionActivityTracker activityTracker;
+
+    /**
+     * Sets the session cache that is updated with the session state found on login.
+     *
+     * @param cache Session cache.
+     */
+    public void setSessionCache(@Nullable final CachingSessionResolver cache) {
+        sessionCache = cache;
+    }
+
+    /**
+     * Sets the tracker that coalesces session timeout checks.
+     *
+     * @param tracker Session activity tracker.
+     */
+    public void setActivityTracker(@Nullable final SessionActivityTracker tracker) {
+        activityTracker = tracker;
+    }
+
     /** {@inheritDoc} */
     @Nonnull
     @Override
@@ -62,7 +96,9 @@ public class CheckAuthenticationRequiredAction extends AbstractProfileAction<Ser
                 log.debug("Found session ID {}", session.getId());
                 try {
                     // Timeout check updates session lastActivityInstant field
-                    if (session.checkTimeout()) {
+                    final boolean active = activityTracker != null
+                            ? activityTracker.checkTimeout(session) : session.checkTimeout();
+                    if (active) {
                         result = Events.SessionFound;
                     } else {
                         result = Events.SessionNotFound;
@@ -71,6 +107,13 @@ public class CheckAuthenticationRequiredAction extends AbstractProfileAction<Ser
                     log.debug("Error performing session timeout check. Assuming session has expired.", e);
                     result = Events.SessionNotFound;
                 }
+                if (sessionCache != null) {
+                    if (result == Events.SessionFound) {
+                        sessionCache.put(session);
+                    } else {
+                        sessionCache.invalidate(session.getId());
+                    }
+                }
             } else {
                 log.debug("Session not found.");
                 result = Events.SessionNotFound;
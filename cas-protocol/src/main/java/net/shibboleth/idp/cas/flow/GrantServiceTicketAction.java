@@ -9,6 +9,7 @@ import javax.annotation.Nonnull;
 import net.shibboleth.idp.cas.protocol.ProtocolError;
 import net.shibboleth.idp.cas.protocol.ServiceTicketRequest;
 import net.shibboleth.idp.cas.protocol.ServiceTicketResponse;
+import net.shibboleth.idp.cas.ticket.RevocableTicketService;
 import net.shibboleth.idp.cas.ticket.ServiceTicket;
 import net.shibboleth.idp.cas.ticket.TicketContext;
 import net.shibboleth.idp.cas.ticket.TicketService;
@@ -70,6 +71,10 @@ public class GrantServiceTicketAction extends AbstractProfileAction<ServiceTicke
             log.debug("Granting service ticket for {}", request.getService());
             ticket = ticketService.createServiceTicket(
                     sessionCtx.getIdPSession().getId(), request.getService(), request.isRenew());
+            if (ticketService instanceof RevocableTicketService) {
+                ((RevocableTicketService) ticketService).indexSession(
+                        sessionCtx.getIdPSession().getPrincipalName(), sessionCtx.getIdPSession().getId());
+            }
         } catch (RuntimeException e) {
             log.error("Failed granting service ticket due to error.", e);
             return ProtocolError.TicketCreationError.event(this);
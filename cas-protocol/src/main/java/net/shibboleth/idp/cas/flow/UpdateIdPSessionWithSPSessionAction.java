@@ -9,9 +9,11 @@
 package net.shibboleth.idp.cas.flow;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import net.shibboleth.idp.authn.context.AuthenticationContext;
 import net.shibboleth.idp.cas.protocol.ProtocolError;
+import net.shibboleth.idp.cas.session.AsyncSPSessionRecorder;
 import net.shibboleth.idp.cas.session.CASSPSession;
 import net.shibboleth.idp.cas.ticket.TicketContext;
 import net.shibboleth.idp.profile.AbstractProfileAction;
@@ -36,6 +38,9 @@ import org.springframework.webflow.execution.RequestContext;
  *     <li>{@link SessionContext}</li>
  *     <li>{@link TicketContext}</li>
  * </ul>
+ * <p>
+ * If an {@link AsyncSPSessionRecorder} is configured and accepts the SP session, the IdP session is updated
+ * asynchronously; otherwise it is updated before the action completes.
  *
  * @author Marvin S. Addison
  */
@@ -48,6 +53,8 @@ public class UpdateIdPSessionWithSPSessionAction extends AbstractProfileAction {
     /** Lifetime of sessions to create. */
     @Positive @Duration private final long sessionLifetime;
 
+    /** Records SP sessions asynchronously. */
+    @Nullable private AsyncSPSessionRecorder recorder;
 
     /**
      * Creates a new instance with given parameters.
@@ -59,6 +66,15 @@ public class UpdateIdPSessionWithSPSessionAction extends AbstractProfileAction {
         sessionLifetime = Constraint.isGreaterThan(0, lifetime, "Lifetime must be greater than 0");
     }
 
+    /**
+     * Sets the recorder that adds SP sessions to IdP sessions off the request thread.
+     *
+     * @param spSessionRecorder Asynchronous SP session recorder.
+     */
+    public void setRecorder(@Nullable final AsyncSPSessionRecorder spSessionRecorder) {
+        recorder = spSessionRecorder;
+    }
+
     @Nonnull
     @Override
     protected Event doExecute(
@@ -83,6 +99,9 @@ public class UpdateIdPSessionWithSPSessionAction extends AbstractProfileAction {
                 now + sessionLifetime,
                 ticketContext.getTicket().getId());
         log.debug("Created SP session {}", sps);
+        if (recorder != null && recorder.record(sessionContext.getIdPSession(), sps)) {
+            return Events.Success.event(this);
+        }
         try {
             sessionContext.getIdPSession().addSPSession(sps);
         } catch (SessionException e) {
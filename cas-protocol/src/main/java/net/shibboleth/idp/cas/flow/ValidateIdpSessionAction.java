@@ -5,7 +5,11 @@
 package net.shibboleth.idp.cas.flow;
 
 import net.shibboleth.idp.cas.protocol.ProtocolError;
+import net.shibboleth.idp.cas.session.CachingSessionResolver;
+import net.shibboleth.idp.cas.session.SessionActivityTracker;
+import net.shibboleth.idp.cas.ticket.RevocableTicketService;
 import net.shibboleth.idp.cas.ticket.TicketContext;
+import net.shibboleth.idp.cas.ticket.TicketService;
 import net.shibboleth.idp.profile.AbstractProfileAction;
 import net.shibboleth.idp.session.IdPSession;
 import net.shibboleth.idp.session.SessionException;
@@ -22,6 +26,7 @@ import org.springframework.webflow.execution.Event;
 import org.springframework.webflow.execution.RequestContext;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  * IdP session validation for back-channel ticket request and validation. Possible outcomes:
@@ -38,6 +43,15 @@ import javax.annotation.Nonnull;
  * as request scope parameter under the key {@value FlowStateSupport#IDP_SESSION_KEY} and also to a
  * {@link net.shibboleth.idp.session.context.SessionContext} that is a subcontext of the input
  * {@link org.opensaml.profile.context.ProfileRequestContext}.
+ * <p>
+ * If a {@link RevocableTicketService} is configured, all outstanding tickets of a session found to have ended are
+ * removed. A session has ended only if it cannot be found or its timeout check fails; if the timeout check itself
+ * raises an error, validation fails but the tickets of the session are kept.
+ * <p>
+ * If the resolver is a {@link CachingSessionResolver}, a session found to have ended is discarded from its cache.
+ * <p>
+ * If a {@link SessionActivityTracker} is configured, session timeout checks and the activity updates they entail
+ * are coalesced by it.
  *
  * @author Marvin S. Addison
  */
@@ -49,6 +63,11 @@ public class ValidateIdpSessionAction extends AbstractProfileAction {
     /** Looks up IdP sessions. */
     @Nonnull private final SessionResolver sessionResolver;
 
+    /** Ticket service used to remove the tickets of ended sessions. */
+    @Nullable private RevocableTicketService ticketService;
+
+    /** Coalesces session timeout checks. */
+    @Nullable private SessionActivityTracker activityTracker;
 
     /**
      * Creates a new instance.
@@ -58,6 +77,25 @@ public class ValidateIdpSessionAction extends AbstractProfileAction {
         this.sessionResolver = Constraint.isNotNull(resolver, "Session resolver cannot be null.");
     }
 
+    /**
+     * Sets the ticket service from which the tickets of ended sessions are removed. Has no effect unless the
+     * service is a {@link RevocableTicketService}.
+     *
+     * @param service Ticket service.
+     */
+    public void setTicketService(@Nullable final TicketService service) {
+        ticketService = service instanceof RevocableTicketService ? (RevocableTicketService) service : null;
+    }
+
+    /**
+     * Sets the tracker that coalesces session timeout checks.
+     *
+     * @param tracker Session activity tracker.
+     */
+    public void setActivityTracker(@Nullable final SessionActivityTracker tracker) {
+        activityTracker = tracker;
+    }
+
     @Nonnull
     @Override
     protected Event doExecute(
@@ -81,14 +119,29 @@ public class ValidateIdpSessionAction extends AbstractProfileAction {
         boolean expired = (session == null);
         if (session != null) {
             try {
-                expired = !session.checkTimeout();
+                expired = !(activityTracker != null
+                        ? activityTracker.checkTimeout(session) : session.checkTimeout());
                 log.debug("Session {} expired={}", sessionId, expired);
             } catch (SessionException e) {
-                log.debug("Error performing session timeout check. Assuming session has expired.", e);
-                expired = true;
+                // The session state is unknown, so fail validation but leave its tickets in place
+                log.debug("Error performing session timeout check. Failing validation of session {}.", sessionId, e);
+                return ProtocolError.SessionExpired.event(this);
             }
         }
         if (expired) {
+            if (activityTracker != null) {
+                activityTracker.invalidate(sessionId);
+            }
+            if (sessionResolver instanceof CachingSessionResolver) {
+                ((CachingSessionResolver) sessionResolver).invalidate(sessionId);
+            }
+            if (ticketService != null) {
+                try {
+                    ticketService.removeTicketsForSession(sessionId);
+                } catch (RuntimeException e) {
+                    log.warn("Error removing tickets of ended session {}", sessionId, e);
+                }
+            }
             return ProtocolError.SessionExpired.event(this);
         }
         FlowStateSupport.setIdpSession(springRequestContext, session);
@@ -6,9 +6,14 @@ package net.shibboleth.idp.cas.flow;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nonnull;
 
+import net.shibboleth.idp.cas.authn.AsyncAuthenticator;
 import net.shibboleth.idp.cas.authn.Authenticator;
 import net.shibboleth.idp.cas.authn.ProxyIdentifiers;
 import net.shibboleth.idp.cas.config.ProxyGrantingTicketConfiguration;
@@ -16,12 +21,15 @@ import net.shibboleth.idp.cas.protocol.ProtocolError;
 import net.shibboleth.idp.cas.protocol.ProtocolParam;
 import net.shibboleth.idp.cas.protocol.TicketValidationRequest;
 import net.shibboleth.idp.cas.protocol.TicketValidationResponse;
+import net.shibboleth.idp.cas.ticket.ProxyGrantingTicket;
 import net.shibboleth.idp.cas.ticket.ProxyTicket;
 import net.shibboleth.idp.cas.ticket.ServiceTicket;
 import net.shibboleth.idp.cas.ticket.Ticket;
 import net.shibboleth.idp.cas.ticket.TicketContext;
 import net.shibboleth.idp.cas.ticket.TicketService;
 import net.shibboleth.idp.profile.AbstractProfileAction;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
 import net.shibboleth.utilities.java.support.logic.Constraint;
 import org.apache.http.client.utils.URIBuilder;
 import org.opensaml.profile.context.ProfileRequestContext;
@@ -41,11 +49,24 @@ import org.springframework.webflow.execution.RequestContext;
  *
  * On success, the PGTIOU is placed in the {@link TicketValidationResponse#getPgtIou()}.
  *
+ * <p>
+ * A proxy ticket whose proxy chain is already at the configured maximum depth fails before the proxy callback is
+ * attempted, since the proxy-granting ticket could not be created anyway. The depth is taken from the proxies
+ * already added to the response, or from the proxy-granting ticket of the proxy ticket.
+ *
+ * <p>
+ * If the proxy authenticator is an {@link AsyncAuthenticator}, the proxy callback is started asynchronously and
+ * awaited for at most the configured {@link #setAuthenticationTimeout(long) authentication timeout}, after which
+ * proxy authentication fails. A callback rejected because the authenticator is at capacity fails immediately.
+ *
  * @author Marvin S. Addison
  */
 public class ValidateProxyCallbackAction
     extends AbstractProfileAction<TicketValidationRequest, TicketValidationResponse> {
 
+    /** Default maximum time in ms to await an asynchronous proxy authentication. */
+    private static final long DEFAULT_AUTHENTICATION_TIMEOUT = 2000;
+
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(ValidateProxyCallbackAction.class);
 
@@ -58,6 +79,9 @@ public class ValidateProxyCallbackAction
     /** Manages CAS tickets. */
     @Nonnull private final TicketService ticketService;
 
+    /** Maximum time in ms to await an asynchronous proxy authentication. */
+    @Duration @Positive private long authenticationTimeout = DEFAULT_AUTHENTICATION_TIMEOUT;
+
 
     /**
      * Creates a new instance.
@@ -75,6 +99,15 @@ public class ValidateProxyCallbackAction
         this.ticketService = Constraint.isNotNull(ticketService, "TicketService cannot be null");
     }
 
+    /**
+     * Sets the maximum time to await an asynchronous proxy authentication.
+     *
+     * @param timeout Timeout in milliseconds. Default is 2s.
+     */
+    public void setAuthenticationTimeout(@Duration @Positive final long timeout) {
+        authenticationTimeout = Constraint.isGreaterThan(0, timeout, "Authentication timeout must be positive");
+    }
+
     @Nonnull
     @Override
     protected Event doExecute(
@@ -98,6 +131,14 @@ public class ValidateProxyCallbackAction
             return ProtocolError.IllegalState.event(this);
         }
         final Ticket ticket = ticketContext.getTicket();
+        if (ticket instanceof ProxyTicket) {
+            final int depth = proxyChainDepth((ProxyTicket) ticket, response);
+            if (depth + 1 > configuration.getMaxProxyChainDepth()) {
+                log.info("Proxy chain of {} is at maximum depth of {}; skipping proxy callback to {}",
+                        ticket, configuration.getMaxProxyChainDepth(), request.getPgtUrl());
+                return Events.Failure.event(this);
+            }
+        }
         final ProxyIdentifiers proxyIds = new ProxyIdentifiers(
                 configuration.getSecurityConfiguration().getIdGenerator().generateIdentifier(),
                 configuration.getPGTIOUGenerator().generateIdentifier());
@@ -112,7 +153,13 @@ public class ValidateProxyCallbackAction
         }
         try {
             log.debug("Attempting proxy authentication to {}", proxyCallbackUri);
-            proxyAuthenticator.authenticate(proxyCallbackUri);
+            if (proxyAuthenticator instanceof AsyncAuthenticator) {
+                final AsyncAuthenticator<URI, Void> asyncAuthenticator =
+                        (AsyncAuthenticator<URI, Void>) proxyAuthenticator;
+                awaitAuthentication(asyncAuthenticator.authenticateAsync(proxyCallbackUri));
+            } else {
+                proxyAuthenticator.authenticate(proxyCallbackUri);
+            }
             if (ticket instanceof ServiceTicket) {
                 ticketService.createProxyGrantingTicket((ServiceTicket) ticket, proxyIds.getPgtId());
             } else {
@@ -125,4 +172,42 @@ public class ValidateProxyCallbackAction
         }
         return Events.Success.event(this);
     }
+
+    /**
+     * Gets the depth of the proxy chain of the given proxy ticket.
+     *
+     * @param pt Proxy ticket.
+     * @param response Ticket validation response, which holds the proxy chain if it has already been built.
+     *
+     * @return Number of proxies the proxy ticket is validated with, or zero if unknown.
+     */
+    private int proxyChainDepth(@Nonnull final ProxyTicket pt, @Nonnull final TicketValidationResponse response) {
+        if (!response.getProxies().isEmpty()) {
+            return response.getProxies().size();
+        }
+        final ProxyGrantingTicket pgt = ticketService.fetchProxyGrantingTicket(pt.getPgtId());
+        // An unknown depth is left to the ticket service to enforce
+        return pgt != null ? Math.max(0, pgt.getProxyChainDepth()) : 0;
+    }
+
+    /**
+     * Waits for an asynchronous proxy authentication to complete, cancelling it on timeout.
+     *
+     * @param result Proxy authentication result.
+     *
+     * @throws Exception On authentication failure, rejection, or timeout.
+     */
+    private void awaitAuthentication(@Nonnull final Future<Void> result) throws Exception {
+        try {
+            result.get(authenticationTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
 }
@@ -5,17 +5,25 @@
 package net.shibboleth.idp.cas.flow;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
+import net.shibboleth.idp.cas.config.AbstractTicketConfiguration;
+import net.shibboleth.idp.cas.config.ProxyTicketConfiguration;
+import net.shibboleth.idp.cas.config.ServiceTicketConfiguration;
 import net.shibboleth.idp.cas.protocol.ProtocolError;
 import net.shibboleth.idp.cas.protocol.TicketValidationResponse;
 import net.shibboleth.idp.cas.protocol.TicketValidationRequest;
+import net.shibboleth.idp.cas.ticket.SealedTicketService;
 import net.shibboleth.idp.cas.ticket.ServiceTicket;
 import net.shibboleth.idp.cas.ticket.Ticket;
 import net.shibboleth.idp.cas.ticket.TicketContext;
+import net.shibboleth.idp.cas.ticket.TicketIdentifierGenerationStrategy;
 import net.shibboleth.idp.cas.ticket.TicketService;
 import net.shibboleth.idp.profile.AbstractProfileAction;
 import net.shibboleth.idp.profile.ActionSupport;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.security.IdentifierGenerationStrategy;
 import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,6 +46,11 @@ import org.springframework.webflow.execution.RequestContext;
  * In the success case a {@link net.shibboleth.idp.cas.protocol.TicketValidationResponse} message is created and stored
  * as request scope parameter under the key {@value FlowStateSupport#TICKET_VALIDATION_RESPONSE_KEY}.
  *
+ * <p>
+ * If the ticket configuration of the presented ticket type uses a {@link TicketIdentifierGenerationStrategy} with
+ * tagging enabled, the ticket tag is verified before the ticket service is consulted, and tickets with a missing or
+ * invalid tag produce the {@link ProtocolError#TicketExpired ticketExpired} event without any storage access.
+ *
  * @author Marvin S. Addison
  */
 public class ValidateTicketAction
@@ -49,6 +62,11 @@ public class ValidateTicketAction
     /** Manages CAS tickets. */
     @Nonnull private final TicketService ticketService;
 
+    /** Service ticket ID generator used to verify ticket tags. */
+    @Nullable private TicketIdentifierGenerationStrategy serviceTicketIdGenerator;
+
+    /** Proxy ticket ID generator used to verify ticket tags. */
+    @Nullable private TicketIdentifierGenerationStrategy proxyTicketIdGenerator;
 
     /**
      * Creates a new instance.
@@ -59,6 +77,26 @@ public class ValidateTicketAction
         this.ticketService = Constraint.isNotNull(ticketService, "TicketService cannot be null");
     }
 
+    /**
+     * Sets the service ticket configuration whose ID generator verifies service ticket tags.
+     *
+     * @param config Service ticket configuration.
+     */
+    public void setServiceTicketConfiguration(@Nullable final ServiceTicketConfiguration config) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        serviceTicketIdGenerator = getTicketIdGenerator(config);
+    }
+
+    /**
+     * Sets the proxy ticket configuration whose ID generator verifies proxy ticket tags.
+     *
+     * @param config Proxy ticket configuration.
+     */
+    public void setProxyTicketConfiguration(@Nullable final ProxyTicketConfiguration config) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        proxyTicketIdGenerator = getTicketIdGenerator(config);
+    }
+
     @Nonnull
     @Override
     protected Event doExecute(
@@ -71,13 +109,19 @@ public class ValidateTicketAction
             return ProtocolError.IllegalState.event(this);
         }
 
-        final Ticket ticket;
+        Ticket ticket;
         try {
             final String ticketId = request.getTicket();
             log.debug("Attempting to validate {}", ticketId);
             if (ticketId.startsWith("ST-")) {
+                if (!verifyTag(serviceTicketIdGenerator, ticketId)) {
+                    return ProtocolError.TicketExpired.event(this);
+                }
                 ticket = ticketService.removeServiceTicket(request.getTicket());
             } else if (ticketId.startsWith("PT-")) {
+                if (!verifyTag(proxyTicketIdGenerator, ticketId)) {
+                    return ProtocolError.TicketExpired.event(this);
+                }
                 ticket = ticketService.removeProxyTicket(ticketId);
             } else {
                 return ProtocolError.InvalidTicketFormat.event(this);
@@ -94,7 +138,15 @@ public class ValidateTicketAction
             return ProtocolError.TicketExpired.event(this);
         }
 
-        if (!ticket.getService().equalsIgnoreCase(request.getService())) {
+        if (ticketService instanceof SealedTicketService) {
+            // Sealed tickets only carry a hash of their service, which is checked and replaced with the URL here
+            final Ticket bound = ((SealedTicketService) ticketService).bindService(ticket, request.getService());
+            if (bound == null) {
+                log.debug("Service issued for {} does not match {}", ticket, request.getService());
+                return ProtocolError.ServiceMismatch.event(this);
+            }
+            ticket = bound;
+        } else if (!ticket.getService().equalsIgnoreCase(request.getService())) {
             log.debug("Service issued for {} does not match {}", ticket.getService(), request.getService());
             return ProtocolError.ServiceMismatch.event(this);
         }
@@ -107,4 +159,26 @@ public class ValidateTicketAction
         }
         return Events.ProxyTicketValidated.event(this);
     }
+
+    private boolean verifyTag(
+            @Nullable final TicketIdentifierGenerationStrategy generator, @Nonnull final String ticketId) {
+        if (generator == null || generator.verifyIdentifier(ticketId)) {
+            return true;
+        }
+        log.debug("Rejecting {} with invalid tag", ticketId);
+        return false;
+    }
+
+    @Nullable
+    private static TicketIdentifierGenerationStrategy getTicketIdGenerator(
+            @Nullable final AbstractTicketConfiguration config) {
+        if (config == null || config.getSecurityConfiguration() == null) {
+            return null;
+        }
+        final IdentifierGenerationStrategy generator = config.getSecurityConfiguration().getIdGenerator();
+        if (generator instanceof TicketIdentifierGenerationStrategy) {
+            return (TicketIdentifierGenerationStrategy) generator;
+        }
+        return null;
+    }
 }
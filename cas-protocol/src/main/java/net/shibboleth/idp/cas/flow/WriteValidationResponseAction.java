@@ -0,0 +1,123 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.flow;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletResponse;
+
+import net.shibboleth.idp.cas.protocol.ProtocolError;
+import net.shibboleth.idp.cas.protocol.ServiceResponseWriter;
+import net.shibboleth.idp.cas.protocol.TicketValidationResponse;
+import net.shibboleth.idp.cas.service.ServiceContext;
+import net.shibboleth.idp.profile.AbstractProfileAction;
+import net.shibboleth.idp.session.IdPSession;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.webflow.execution.Event;
+import org.springframework.webflow.execution.RequestContext;
+
+/**
+ * Writes the CAS ticket validation response of the <code>/serviceValidate</code> and <code>/proxyValidate</code>
+ * URIs directly to the servlet response by means of a {@link ServiceResponseWriter} and marks the response
+ * complete, such that the end state view is not rendered.
+ * <p>
+ * A failure document is written if flash scope carries the <code>code</code> and <code>detailCode</code> set by the
+ * failure end state, otherwise a success document is written from the {@link TicketValidationResponse} stored
+ * under {@value FlowStateSupport#TICKET_VALIDATION_RESPONSE_KEY}. Encoded attributes are cached per IdP session and
+ * service group if the writer has an attribute cache.
+ * <p>
+ * If disabled, the action does nothing and the end state view is rendered as before, which allows customized
+ * views to be kept.
+ */
+public class WriteValidationResponseAction extends AbstractProfileAction {
+
+    /** Size of the buffer between the writer and the servlet output stream. */
+    private static final int BUFFER_SIZE = 2048;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(WriteValidationResponseAction.class);
+
+    /** Writes validation response documents. */
+    @Nonnull private final ServiceResponseWriter writer;
+
+    /** Flag indicating whether responses are written by this action rather than the view. */
+    private boolean enabled = true;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param writer Validation response writer.
+     */
+    public WriteValidationResponseAction(@Nonnull final ServiceResponseWriter writer) {
+        this.writer = Constraint.isNotNull(writer, "Writer cannot be null");
+    }
+
+    /**
+     * Sets whether the response is written by this action or left to the end state view.
+     *
+     * @param enable True to write the response, false to render the view. Default is true.
+     */
+    public void setEnabled(final boolean enable) {
+        enabled = enable;
+    }
+
+    @Nonnull
+    @Override
+    protected Event doExecute(
+            final @Nonnull RequestContext springRequestContext,
+            final @Nonnull ProfileRequestContext profileRequestContext) {
+
+        if (!enabled) {
+            return Events.Proceed.event(this);
+        }
+        final Object nativeResponse = springRequestContext.getExternalContext().getNativeResponse();
+        if (!(nativeResponse instanceof HttpServletResponse)) {
+            log.debug("Not a servlet response; leaving response to view");
+            return Events.Proceed.event(this);
+        }
+        final HttpServletResponse response = (HttpServletResponse) nativeResponse;
+        final String code = springRequestContext.getFlashScope().getString("code");
+        final String detailCode = springRequestContext.getFlashScope().getString("detailCode");
+        final TicketValidationResponse validationResponse =
+                FlowStateSupport.getTicketValidationResponse(springRequestContext);
+        try {
+            response.setContentType(ServiceResponseWriter.CONTENT_TYPE);
+            final OutputStream out = new BufferedOutputStream(response.getOutputStream(), BUFFER_SIZE);
+            if (code != null) {
+                writer.writeFailure(out, code, detailCode != null ? detailCode : "");
+            } else if (validationResponse != null) {
+                writer.writeSuccess(out, validationResponse, attributeCacheKey(springRequestContext,
+                        profileRequestContext));
+            } else {
+                log.info("TicketValidationResponse not found in flow state.");
+                writer.writeFailure(
+                        out, ProtocolError.IllegalState.getCode(), ProtocolError.IllegalState.getDetailCode());
+            }
+            out.flush();
+        } catch (IOException e) {
+            log.warn("Error writing ticket validation response: {}", e.getMessage());
+        }
+        springRequestContext.getExternalContext().recordResponseComplete();
+        return Events.Success.event(this);
+    }
+
+    @Nullable private String attributeCacheKey(
+            @Nonnull final RequestContext springRequestContext,
+            @Nonnull final ProfileRequestContext profileRequestContext) {
+        final IdPSession session = FlowStateSupport.getIdPSession(springRequestContext);
+        final ServiceContext serviceContext = profileRequestContext.getSubcontext(ServiceContext.class);
+        if (session == null || serviceContext == null || serviceContext.getService().getGroup() == null) {
+            return null;
+        }
+        return session.getId() + '\n' + serviceContext.getService().getGroup();
+    }
+}
@@ -69,6 +69,16 @@ public enum ProtocolError {
         this.detailCode = detailCode;
     }
 
+    /** @return Error code, e.g. <code>INVALID_TICKET</code>. */
+    public String getCode() {
+        return code;
+    }
+
+    /** @return Error detail code, e.g. <code>E_TICKET_EXPIRED</code>. */
+    public String getDetailCode() {
+        return detailCode;
+    }
+
     /**
      * Converts enumeration name to an identifier suitable for a Spring Webflow event identifier.
      *
@@ -0,0 +1,325 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Writes CAS 2.0/3.0 <code>cas:serviceResponse</code> ticket validation documents directly to an output stream as
+ * UTF-8, without a view layer. The envelope and all other static markup are encoded once, as is the complete
+ * document for each {@link ProtocolError}, so a failure response is a single write of a shared byte array.
+ * <p>
+ * The encoded <code>cas:attributes</code> block of a success response may optionally be cached under a key chosen
+ * by the caller, typically the IdP session and service group, for a short time. This is correct only as long as
+ * the released attributes depend on nothing but that key, i.e. attribute resolution and filtering do not
+ * distinguish services within a group, and the cache time to live bounds how long attribute changes go unseen.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class ServiceResponseWriter {
+
+    /** Content type of written documents. */
+    public static final String CONTENT_TYPE = "text/xml;charset=UTF-8";
+
+    /** Document start through the opening envelope tag. */
+    private static final byte[] ENVELOPE_START = encode(
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<cas:serviceResponse xmlns:cas=\"http://www.yale.edu/tp/cas\">\n");
+
+    /** Closing envelope tag through document end. */
+    private static final byte[] ENVELOPE_END = encode("</cas:serviceResponse>\n");
+
+    /** Success start through the opening user tag. */
+    private static final byte[] SUCCESS_START = encode("  <cas:authenticationSuccess>\n    <cas:user>");
+
+    /** Closing user tag. */
+    private static final byte[] USER_END = encode("</cas:user>\n");
+
+    /** Opening proxy-granting ticket IOU tag. */
+    private static final byte[] PGT_START = encode("    <cas:proxyGrantingTicket>");
+
+    /** Closing proxy-granting ticket IOU tag. */
+    private static final byte[] PGT_END = encode("</cas:proxyGrantingTicket>\n");
+
+    /** Opening attributes tag. */
+    private static final byte[] ATTRIBUTES_START = encode("    <cas:attributes>\n");
+
+    /** Closing attributes tag. */
+    private static final byte[] ATTRIBUTES_END = encode("    </cas:attributes>\n");
+
+    /** Indentation and start of an attribute element tag. */
+    private static final byte[] ATTRIBUTE_OPEN = encode("      <cas:");
+
+    /** Start of an attribute element closing tag. */
+    private static final byte[] ATTRIBUTE_CLOSE = encode("</cas:");
+
+    /** Opening proxies tag. */
+    private static final byte[] PROXIES_START = encode("    <cas:proxies>\n      <cas:proxy>");
+
+    /** Separator between proxies. */
+    private static final byte[] PROXY_SEPARATOR = encode("</cas:proxy>\n      <cas:proxy>");
+
+    /** Closing proxies tag. */
+    private static final byte[] PROXIES_END = encode("</cas:proxy>\n    </cas:proxies>\n");
+
+    /** Success end. */
+    private static final byte[] SUCCESS_END = encode("  </cas:authenticationSuccess>\n");
+
+    /** Escaped ampersand. */
+    private static final byte[] AMP = encode("&amp;");
+
+    /** Escaped less-than sign. */
+    private static final byte[] LT = encode("&lt;");
+
+    /** Escaped greater-than sign. */
+    private static final byte[] GT = encode("&gt;");
+
+    /** Escaped double quote. */
+    private static final byte[] QUOT = encode("&quot;");
+
+    /** Escaped apostrophe. */
+    private static final byte[] APOS = encode("&apos;");
+
+    /** Complete failure documents by code and detail code. */
+    private static final Map<String, byte[]> FAILURES = new HashMap<>();
+
+    /** Maximum number of cached attribute blocks. */
+    @Positive private int attributeCacheSize = 10000;
+
+    /** Time in ms attribute blocks are cached; zero disables the cache. */
+    @Duration private long attributeCacheTTL;
+
+    /** Encoded attribute blocks, or null if disabled. */
+    @Nullable private volatile Cache<String, byte[]> attributeCache;
+
+    static {
+        for (final ProtocolError error : ProtocolError.values()) {
+            FAILURES.put(
+                    failureKey(error.getCode(), error.getDetailCode()),
+                    encodeFailure(error.getCode(), error.getDetailCode()));
+        }
+    }
+
+    /**
+     * Sets the time encoded attribute blocks are cached.
+     *
+     * @param ttl Cache time to live in milliseconds; zero disables the cache. Default is zero.
+     */
+    public void setAttributeCacheTTL(@Duration final long ttl) {
+        attributeCacheTTL = Constraint.isGreaterThanOrEqual(0, ttl, "Attribute cache TTL cannot be negative");
+        buildAttributeCache();
+    }
+
+    /**
+     * Sets the maximum number of cached attribute blocks.
+     *
+     * @param size Maximum number of cached attribute blocks. Default is 10000.
+     */
+    public void setAttributeCacheSize(@Positive final int size) {
+        attributeCacheSize = (int) Constraint.isGreaterThan(0, size, "Attribute cache size must be positive");
+        buildAttributeCache();
+    }
+
+    /**
+     * Writes a success document.
+     *
+     * @param out Output stream, which should be buffered.
+     * @param response Ticket validation response.
+     * @param attributeCacheKey Key under which the encoded attributes may be cached, or null to not cache them.
+     *
+     * @throws IOException On errors writing to the stream.
+     */
+    public void writeSuccess(
+            @Nonnull final OutputStream out,
+            @Nonnull final TicketValidationResponse response,
+            @Nullable final String attributeCacheKey) throws IOException {
+        out.write(ENVELOPE_START);
+        out.write(SUCCESS_START);
+        writeEscaped(out, response.getUserName());
+        out.write(USER_END);
+        if (response.getPgtIou() != null) {
+            out.write(PGT_START);
+            writeEscaped(out, response.getPgtIou());
+            out.write(PGT_END);
+        }
+        if (!response.getAttributes().isEmpty()) {
+            final Cache<String, byte[]> cache = attributeCacheKey != null ? attributeCache : null;
+            byte[] attributes = cache != null ? cache.getIfPresent(attributeCacheKey) : null;
+            if (attributes == null) {
+                final ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+                writeAttributes(block, response.getAttributes());
+                attributes = block.toByteArray();
+                if (cache != null) {
+                    cache.put(attributeCacheKey, attributes);
+                }
+            }
+            out.write(attributes);
+        }
+        final List<String> proxies = response.getProxies();
+        if (!proxies.isEmpty()) {
+            out.write(PROXIES_START);
+            for (int i = 0; i < proxies.size(); i++) {
+                if (i > 0) {
+                    out.write(PROXY_SEPARATOR);
+                }
+                writeEscaped(out, proxies.get(i));
+            }
+            out.write(PROXIES_END);
+        }
+        out.write(SUCCESS_END);
+        out.write(ENVELOPE_END);
+    }
+
+    /**
+     * Writes a failure document.
+     *
+     * @param out Output stream.
+     * @param code Failure code, e.g. <code>INVALID_TICKET</code>.
+     * @param detailCode Failure detail code, e.g. <code>E_TICKET_EXPIRED</code>.
+     *
+     * @throws IOException On errors writing to the stream.
+     */
+    public void writeFailure(
+            @Nonnull final OutputStream out, @Nonnull final String code, @Nonnull final String detailCode)
+            throws IOException {
+        final byte[] document = FAILURES.get(failureKey(code, detailCode));
+        out.write(document != null ? document : encodeFailure(code, detailCode));
+    }
+
+    /**
+     * Writes the attributes block.
+     *
+     * @param out Output stream.
+     * @param attributes Attribute values by name.
+     *
+     * @throws IOException On errors writing to the stream.
+     */
+    private static void writeAttributes(
+            @Nonnull final OutputStream out, @Nonnull final Map<String, List<String>> attributes) throws IOException {
+        out.write(ATTRIBUTES_START);
+        for (final Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+            for (final String value : attribute.getValue()) {
+                out.write(ATTRIBUTE_OPEN);
+                writeEscaped(out, attribute.getKey());
+                out.write('>');
+                writeEscaped(out, value);
+                out.write(ATTRIBUTE_CLOSE);
+                writeEscaped(out, attribute.getKey());
+                out.write('>');
+                out.write('\n');
+            }
+        }
+        out.write(ATTRIBUTES_END);
+    }
+
+    /**
+     * Writes text as UTF-8, escaping XML markup characters.
+     *
+     * @param out Output stream.
+     * @param text Text to write.
+     *
+     * @throws IOException On errors writing to the stream.
+     */
+    private static void writeEscaped(@Nonnull final OutputStream out, @Nullable final String text)
+            throws IOException {
+        if (text == null) {
+            return;
+        }
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    out.write(AMP);
+                    break;
+                case '<':
+                    out.write(LT);
+                    break;
+                case '>':
+                    out.write(GT);
+                    break;
+                case '"':
+                    out.write(QUOT);
+                    break;
+                case '\'':
+                    out.write(APOS);
+                    break;
+                default:
+                    if (c < 0x80) {
+                        out.write(c);
+                    } else if (c < 0x800) {
+                        out.write(0xc0 | (c >> 6));
+                        out.write(0x80 | (c & 0x3f));
+                    } else if (Character.isHighSurrogate(c) && i + 1 < length
+                            && Character.isLowSurrogate(text.charAt(i + 1))) {
+                        final int cp = Character.toCodePoint(c, text.charAt(++i));
+                        out.write(0xf0 | (cp >> 18));
+                        out.write(0x80 | ((cp >> 12) & 0x3f));
+                        out.write(0x80 | ((cp >> 6) & 0x3f));
+                        out.write(0x80 | (cp & 0x3f));
+                    } else if (Character.isSurrogate(c)) {
+                        // Unpaired surrogate cannot be encoded
+                        out.write('?');
+                    } else {
+                        out.write(0xe0 | (c >> 12));
+                        out.write(0x80 | ((c >> 6) & 0x3f));
+                        out.write(0x80 | (c & 0x3f));
+                    }
+            }
+        }
+    }
+
+    @Nonnull private static byte[] encodeFailure(@Nonnull final String code, @Nonnull final String detailCode) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try {
+            out.write(ENVELOPE_START);
+            out.write(encode("  <cas:authenticationFailure code=\""));
+            writeEscaped(out, code);
+            out.write(encode("\">\n    "));
+            writeEscaped(out, detailCode);
+            out.write(encode("\n  </cas:authenticationFailure>\n"));
+            out.write(ENVELOPE_END);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write to memory", e);
+        }
+        return out.toByteArray();
+    }
+
+    @Nonnull private static String failureKey(@Nullable final String code, @Nullable final String detailCode) {
+        return code + ' ' + detailCode;
+    }
+
+    @Nonnull private static byte[] encode(@Nonnull final String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Creates the attribute block cache according to the current settings. */
+    private void buildAttributeCache() {
+        if (attributeCacheTTL > 0) {
+            attributeCache = CacheBuilder.newBuilder()
+                    .maximumSize(attributeCacheSize)
+                    .expireAfterWrite(attributeCacheTTL, TimeUnit.MILLISECONDS)
+                    .<String, byte[]>build();
+        } else {
+            attributeCache = null;
+        }
+    }
+}
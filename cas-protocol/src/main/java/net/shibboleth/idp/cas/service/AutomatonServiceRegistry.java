@@ -0,0 +1,102 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service registry with the same first-match semantics as {@link PatternServiceRegistry}, but which compiles all
+ * definition patterns into a single automaton that is matched in time linear in the length of the service URL.
+ * Unlike <code>java.util.regex</code>, the automaton never backtracks, so no combination of pattern and service
+ * URL can cause excessive CPU use.
+ * <p>
+ * Only the subset of regular expression syntax described in {@link ServicePatternParser} is supported. Definitions
+ * using anything else, or created with pattern flags, are rejected when they are set rather than when a service
+ * is looked up.
+ */
+public class AutomatonServiceRegistry implements VersionedServiceRegistry {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(AutomatonServiceRegistry.class);
+
+    /** Current definitions and the automaton compiled from them. */
+    @Nonnull
+    private volatile Compiled compiled = new Compiled(Collections.<ServiceDefinition>emptyList());
+
+    /** Registry version, incremented after each change of definitions. */
+    private volatile long version;
+
+    /**
+     * Sets the list of service definitions that back the registry.
+     *
+     * @param definitions List of service definitions, each of which defines a match pattern to evaluate a candidate
+     *                    service URL.
+     *
+     * @throws IllegalArgumentException If any definition pattern is not supported by the automaton.
+     */
+    public synchronized void setDefinitions(@Nonnull @NonnullElements final List<ServiceDefinition> definitions) {
+        Constraint.isNotNull(definitions, "Service definition list cannot be null");
+        compiled = new Compiled(definitions);
+        version++;
+        log.debug("Compiled {} service definitions into automaton of {} states",
+                definitions.size(), compiled.automaton.getNfaSize());
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    @Nullable
+    public Service lookup(@Nonnull final String serviceURL) {
+        Constraint.isNotNull(serviceURL, "Service URL cannot be null");
+        final Compiled current = compiled;
+        final int index = current.automaton.match(serviceURL);
+        if (index < 0) {
+            return null;
+        }
+        final ServiceDefinition def = current.definitions.get(index);
+        log.debug("Found match for {} in {}", serviceURL, def);
+        return new Service(serviceURL, def.getGroup(), def.isAuthorizedToProxy());
+    }
+
+    /** Immutable pairing of definitions with their automaton. */
+    private static final class Compiled {
+
+        /** Service definitions in priority order. */
+        @Nonnull private final List<ServiceDefinition> definitions;
+
+        /** Automaton over definition patterns. */
+        @Nonnull private final ServiceAutomaton automaton;
+
+        /**
+         * Compiles the given definitions.
+         *
+         * @param defs Service definitions.
+         */
+        Compiled(@Nonnull final List<ServiceDefinition> defs) {
+            definitions = new ArrayList<>(defs);
+            final List<String> expressions = new ArrayList<>(defs.size());
+            for (final ServiceDefinition def : definitions) {
+                if (def.getMatchPattern().flags() != 0) {
+                    throw new IllegalArgumentException("Pattern flags are not supported: " + def);
+                }
+                expressions.add(def.getMatchPattern().pattern());
+            }
+            automaton = new ServiceAutomaton(expressions);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.service;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service registry decorator that caches lookup results of an underlying registry, including the absence of a
+ * match, so that repeated lookups of the same service URL neither evaluate definitions nor allocate a new
+ * {@link Service}. Since {@link Service} is immutable, cached instances are shared among callers.
+ * <p>
+ * The cache is bounded in size. To keep a flood of distinct, rarely repeated service URLs from evicting frequently
+ * used entries, a result is admitted to the cache only when its service URL is looked up a second time while
+ * still remembered by a bounded record of recently seen URLs.
+ * <p>
+ * If the underlying registry is a {@link VersionedServiceRegistry}, the whole cache is replaced atomically as soon
+ * as a lookup observes a new registry version, so no result computed from superseded definitions is returned
+ * afterward. The cache may also be discarded explicitly by {@link #invalidate()}.
+ */
+public class CachingServiceRegistry implements ServiceRegistry {
+
+    /** Default maximum number of cached lookup results. */
+    private static final int DEFAULT_MAX_SIZE = 10000;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(CachingServiceRegistry.class);
+
+    /** Underlying registry. */
+    @Nonnull private final ServiceRegistry delegate;
+
+    /** Maximum number of cached lookup results. */
+    @Positive private int maxSize = DEFAULT_MAX_SIZE;
+
+    /** Current cache generation. */
+    @Nonnull private volatile Generation generation;
+
+
+    /**
+     * Creates a new instance.
+     *
+     * @param registry Underlying registry whose results are cached.
+     */
+    public CachingServiceRegistry(@Nonnull final ServiceRegistry registry) {
+        delegate = Constraint.isNotNull(registry, "Service registry cannot be null");
+        generation = new Generation(version(), maxSize);
+    }
+
+    /**
+     * Sets the maximum number of cached lookup results. Discards all cached results.
+     *
+     * @param size Maximum cache size. Default is 10000.
+     */
+    public void setMaxSize(@Positive final int size) {
+        maxSize = (int) Constraint.isGreaterThan(0, size, "Max size must be positive");
+        invalidate();
+    }
+
+    /** Discards all cached lookup results. */
+    public void invalidate() {
+        generation = new Generation(version(), maxSize);
+    }
+
+    /** @return Cache statistics of the current cache generation. */
+    @Nonnull public CacheStats getStats() {
+        return generation.results.stats();
+    }
+
+    /** @return Number of lookups answered from the current cache generation. */
+    public long getHitCount() {
+        return getStats().hitCount();
+    }
+
+    /** @return Number of lookups in the current cache generation delegated to the underlying registry. */
+    public long getMissCount() {
+        return getStats().missCount();
+    }
+
+    @Override
+    @Nullable
+    public Service lookup(@Nonnull final String serviceURL) {
+        Constraint.isNotNull(serviceURL, "Service URL cannot be null");
+        final Generation current = currentGeneration();
+        final Optional<Service> cached = current.results.getIfPresent(serviceURL);
+        if (cached != null) {
+            return cached.orNull();
+        }
+        final Service service = delegate.lookup(serviceURL);
+        if (current.seen.getIfPresent(serviceURL) != null) {
+            current.results.put(serviceURL, Optional.fromNullable(service));
+            current.seen.invalidate(serviceURL);
+        } else {
+            current.seen.put(serviceURL, Boolean.TRUE);
+        }
+        return service;
+    }
+
+    /**
+     * Gets the cache generation for the current registry version, replacing the cache if the registry changed.
+     *
+     * @return Current cache generation.
+     */
+    @Nonnull private Generation currentGeneration() {
+        final Generation current = generation;
+        if (!(delegate instanceof VersionedServiceRegistry)) {
+            return current;
+        }
+        final long version = ((VersionedServiceRegistry) delegate).getVersion();
+        if (current.version == version) {
+            return current;
+        }
+        synchronized (this) {
+            if (generation.version != version) {
+                log.debug("Service registry changed to version {}; discarding cached lookups", version);
+                generation = new Generation(version, maxSize);
+            }
+            return generation;
+        }
+    }
+
+    private long version() {
+        return delegate instanceof VersionedServiceRegistry ? ((VersionedServiceRegistry) delegate).getVersion() : 0;
+    }
+
+    /** Cached lookup results for a single registry version. */
+    private static final class Generation {
+
+        /** Registry version the results were computed from. */
+        private final long version;
+
+        /** Cached lookup results; absent values denote no match. */
+        @Nonnull private final Cache<String, Optional<Service>> results;
+
+        /** Service URLs looked up once but not yet admitted to the results cache. */
+        @Nonnull private final Cache<String, Boolean> seen;
+
+        /**
+         * Creates a new generation.
+         *
+         * @param version Registry version.
+         * @param maxSize Maximum number of cached results.
+         */
+        Generation(final long version, final int maxSize) {
+            this.version = version;
+            results = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats().build();
+            seen = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+        }
+    }
+}
@@ -17,11 +17,14 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Service registry that evaluates a candidate service URL against one or more defined services, where each
- * definition contains a service URL match pattern used to evaluate membership in the registry.
+ * definition contains a service URL match pattern used to evaluate membership in the registry. Definitions are
+ * evaluated in order and the first match wins. To avoid evaluating every pattern on each lookup, definitions are
+ * indexed by the literal prefix of their pattern, and only those whose prefix the service URL starts with are
+ * evaluated.
  *
  * @author Marvin S. Addison
  */
-public class PatternServiceRegistry implements ServiceRegistry {
+public class PatternServiceRegistry implements VersionedServiceRegistry {
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(PatternServiceRegistry.class);
@@ -31,20 +34,34 @@ public class PatternServiceRegistry implements ServiceRegistry {
     @NonnullElements
     private List<ServiceDefinition> definitions = Collections.emptyList();
 
+    /** Prefix index over {@link #definitions}. */
+    @Nonnull
+    private volatile ServiceDefinitionIndex index = new ServiceDefinitionIndex(definitions);
+
+    /** Registry version, incremented after each change of definitions. */
+    private volatile long version;
+
     /**
      * Sets the list of service definitions that back the registry.
      * @param definitions List of service definitions, each of which defines a match pattern to evaluate a candidate
      *                    service URL.
      */
-    public void setDefinitions(@Nonnull @NonnullElements List<ServiceDefinition> definitions) {
+    public synchronized void setDefinitions(@Nonnull @NonnullElements List<ServiceDefinition> definitions) {
         this.definitions = Constraint.isNotNull(definitions, "Service definition list cannot be null");
+        this.index = new ServiceDefinitionIndex(definitions);
+        version++;
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
     }
 
     @Override
     @Nullable
     public Service lookup(@Nonnull String serviceURL) {
         Constraint.isNotNull(serviceURL, "Service URL cannot be null");
-        for (ServiceDefinition def : definitions) {
+        for (ServiceDefinition def : index.candidates(serviceURL)) {
             log.debug("Evaluating whether {} matches {}", serviceURL, def);
             if (def.matches(serviceURL)) {
                 log.debug("Found match");
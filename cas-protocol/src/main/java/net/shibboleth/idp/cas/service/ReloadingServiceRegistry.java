@@ -0,0 +1,223 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.component.DestructableComponent;
+import net.shibboleth.utilities.java.support.component.InitializableComponent;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.core.io.Resource;
+
+/**
+ * Service registry backed by service definitions declared in an external Spring bean file that is reloaded when
+ * it changes, without a restart. Every top-level {@link ServiceDefinition} bean in the file is a definition, in the
+ * order declared.
+ * <p>
+ * A background thread polls the resource for modification. On change, the file is parsed and compiled into a
+ * new immutable registry snapshot, including its prefix index or automaton, which is then published with a single
+ * volatile write. Lookups never block and always see either the complete previous snapshot or the complete new
+ * one. A file that fails to load or compile is logged and the previous snapshot remains in effect.
+ */
+public class ReloadingServiceRegistry implements VersionedServiceRegistry, InitializableComponent,
+        DestructableComponent {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(ReloadingServiceRegistry.class);
+
+    /** Resource containing service definition beans. */
+    @Nonnull private final Resource definitionsResource;
+
+    /** Time in ms between checks for resource modification. */
+    @Duration @Positive private long pollInterval = 300000;
+
+    /** Flag indicating whether to compile definitions into a linear-time automaton. */
+    private boolean useAutomaton;
+
+    /** Current registry snapshot. */
+    @Nonnull private volatile ServiceRegistry snapshot = new PatternServiceRegistry();
+
+    /** Registry version, incremented after each snapshot swap. */
+    private volatile long version;
+
+    /** Last modification time of the resource when it was last loaded. */
+    private long lastModified;
+
+    /** Executor that polls for changes. */
+    @Nullable private ScheduledExecutorService executor;
+
+    /** Initialization flag. */
+    private boolean initialized;
+
+    /** Destruction flag. */
+    private boolean destroyed;
+
+
+    /**
+     * Creates a new instance.
+     *
+     * @param resource Spring bean file containing {@link ServiceDefinition} beans.
+     */
+    public ReloadingServiceRegistry(@Nonnull final Resource resource) {
+        definitionsResource = Constraint.isNotNull(resource, "Definitions resource cannot be null");
+    }
+
+    /**
+     * Sets the time between checks of the definitions resource for modification.
+     *
+     * @param interval Poll interval in milliseconds. Default is 5m.
+     */
+    public void setPollInterval(@Duration @Positive final long interval) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        pollInterval = Constraint.isGreaterThan(0, interval, "Poll interval must be positive");
+    }
+
+    /**
+     * Sets whether definitions are compiled into a linear-time automaton as by {@link AutomatonServiceRegistry}
+     * rather than matched with <code>java.util.regex</code> as by {@link PatternServiceRegistry}.
+     *
+     * @param automaton True to use the automaton, false otherwise. Default is false.
+     */
+    public void setUseAutomaton(final boolean automaton) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        useAutomaton = automaton;
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    @Override
+    public void initialize() throws ComponentInitializationException {
+        if (initialized) {
+            return;
+        }
+        try {
+            reload();
+        } catch (Exception e) {
+            throw new ComponentInitializationException("Error loading service definitions from "
+                    + definitionsResource, e);
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "cas-service-registry-reloader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reloadIfModified();
+            }
+        }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+        initialized = true;
+    }
+
+    @Override
+    public boolean isDestroyed() {
+        return destroyed;
+    }
+
+    @Override
+    public void destroy() {
+        destroyed = true;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    @Nullable
+    public Service lookup(@Nonnull final String serviceURL) {
+        return snapshot.lookup(serviceURL);
+    }
+
+    /**
+     * Loads and compiles the service definitions and publishes them as the current snapshot. This is called
+     * automatically when the definitions resource changes, but may also be called to force a reload.
+     *
+     * @throws Exception If the definitions cannot be loaded or compiled, in which case the current snapshot is
+     *                   retained.
+     */
+    public synchronized void reload() throws Exception {
+        final long modified = definitionsResource.lastModified();
+        final List<ServiceDefinition> definitions = loadDefinitions();
+        final ServiceRegistry next;
+        if (useAutomaton) {
+            final AutomatonServiceRegistry registry = new AutomatonServiceRegistry();
+            registry.setDefinitions(definitions);
+            next = registry;
+        } else {
+            final PatternServiceRegistry registry = new PatternServiceRegistry();
+            registry.setDefinitions(definitions);
+            next = registry;
+        }
+        snapshot = next;
+        version++;
+        lastModified = modified;
+        log.info("Loaded {} service definitions from {}", definitions.size(), definitionsResource);
+    }
+
+    /** Reloads the definitions if the resource has been modified since it was last loaded. */
+    private void reloadIfModified() {
+        try {
+            synchronized (this) {
+                if (definitionsResource.lastModified() == lastModified) {
+                    return;
+                }
+            }
+            reload();
+        } catch (Exception e) {
+            log.error("Error reloading service definitions from {}; retaining previous definitions",
+                    definitionsResource, e);
+            synchronized (this) {
+                // Do not retry the same broken content on every poll
+                try {
+                    lastModified = definitionsResource.lastModified();
+                } catch (Exception ignored) {
+                    log.debug("Cannot determine modification time of {}", definitionsResource);
+                }
+            }
+        }
+    }
+
+    @Nonnull private List<ServiceDefinition> loadDefinitions() {
+        final GenericApplicationContext context = new GenericApplicationContext();
+        try {
+            new XmlBeanDefinitionReader(context).loadBeanDefinitions(definitionsResource);
+            context.refresh();
+            final List<ServiceDefinition> definitions =
+                    new ArrayList<>(context.getBeansOfType(ServiceDefinition.class).values());
+            return Collections.unmodifiableList(definitions);
+        } finally {
+            context.close();
+        }
+    }
+}
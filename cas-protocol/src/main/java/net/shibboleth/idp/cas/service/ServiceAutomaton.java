@@ -0,0 +1,377 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.service;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Matches input against a list of regular expressions in a single pass, reporting the lowest-index expression
+ * that matches the whole input. Expressions are parsed by {@link ServicePatternParser}, compiled together into
+ * one Thompson NFA, and executed as a lazily constructed DFA, so matching takes time linear in the input length
+ * regardless of the expressions, and never backtracks.
+ * <p>
+ * DFA states are built on demand and shared between threads. The number of cached states is bounded; when the
+ * bound is reached the cache is discarded and rebuilt, which costs time proportional to the NFA size per input
+ * character in the worst case but still never more.
+ * <p>
+ * Instances are thread safe.
+ */
+final class ServiceAutomaton {
+
+    /** Largest number of NFA states allowed. */
+    static final int MAX_NFA_STATES = 100000;
+
+    /** Default largest number of cached DFA states. */
+    static final int DEFAULT_MAX_DFA_STATES = 4096;
+
+    /** NFA state that consumes a code point in a set. */
+    private static final byte CHAR = 0;
+
+    /** NFA state with epsilon transitions to up to two states. */
+    private static final byte SPLIT = 1;
+
+    /** NFA state accepting an expression. */
+    private static final byte MATCH = 2;
+
+    /** Number of code points with array-based DFA transitions. */
+    private static final int ASCII = 128;
+
+    /** NFA state types. */
+    @Nonnull private byte[] types = new byte[64];
+
+    /** Code point ranges of CHAR states. */
+    @Nonnull private int[][] sets = new int[64][];
+
+    /** First successor, or expression index of MATCH states. */
+    @Nonnull private int[] out1 = new int[64];
+
+    /** Second successor of SPLIT states, or -1. */
+    @Nonnull private int[] out2 = new int[64];
+
+    /** Number of NFA states. */
+    private int size;
+
+    /** Start states of each expression. */
+    @Nonnull private final int[] starts;
+
+    /** Largest number of cached DFA states. */
+    private final int maxDfaStates;
+
+    /** Current DFA state cache. */
+    @Nonnull private volatile StateCache cache;
+
+    /**
+     * Creates a new instance with the default DFA state bound.
+     *
+     * @param expressions Regular expressions in priority order.
+     *
+     * @throws IllegalArgumentException If an expression is malformed or uses unsupported syntax.
+     */
+    ServiceAutomaton(@Nonnull final List<String> expressions) {
+        this(expressions, DEFAULT_MAX_DFA_STATES);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param expressions Regular expressions in priority order.
+     * @param maxStates Largest number of cached DFA states.
+     *
+     * @throws IllegalArgumentException If an expression is malformed or uses unsupported syntax.
+     */
+    ServiceAutomaton(@Nonnull final List<String> expressions, final int maxStates) {
+        maxDfaStates = maxStates;
+        starts = new int[expressions.size()];
+        for (int i = 0; i < starts.length; i++) {
+            final String expression = expressions.get(i);
+            final int match = add(MATCH, null, i, -1);
+            try {
+                starts[i] = compile(ServicePatternParser.parse(expression), match);
+            } catch (IllegalStateException e) {
+                throw new IllegalArgumentException(e.getMessage() + ": " + expression, e);
+            }
+        }
+        cache = new StateCache();
+    }
+
+    /**
+     * Gets the number of NFA states, which bounds the work done per input character.
+     *
+     * @return NFA size.
+     */
+    int getNfaSize() {
+        return size;
+    }
+
+    /**
+     * Matches the given input against all expressions.
+     *
+     * @param input Input to match in its entirety.
+     *
+     * @return Index of the first expression matching the input, or -1 if none match.
+     */
+    int match(@Nonnull final String input) {
+        final StateCache current = cache;
+        DState state = current.start;
+        for (int i = 0; i < input.length() && !state.dead;) {
+            final int cp = input.codePointAt(i);
+            i += Character.charCount(cp);
+            state = next(current, state, cp);
+        }
+        return state.accept;
+    }
+
+    @Nonnull private DState next(@Nonnull final StateCache current, @Nonnull final DState state, final int cp) {
+        DState next = cp < ASCII ? state.ascii[cp] : state.other.get(cp);
+        if (next == null) {
+            next = current.intern(step(state.nfaStates, cp));
+            if (cp < ASCII) {
+                state.ascii[cp] = next;
+            } else {
+                state.other.putIfAbsent(cp, next);
+            }
+        }
+        return next;
+    }
+
+    @Nonnull private int[] step(@Nonnull final int[] from, final int cp) {
+        final int[] targets = new int[from.length];
+        int n = 0;
+        for (final int s : from) {
+            if (types[s] == CHAR && contains(sets[s], cp)) {
+                targets[n++] = out1[s];
+            }
+        }
+        return closure(targets, n);
+    }
+
+    /**
+     * Computes the sorted set of CHAR and MATCH states reachable from the given states by epsilon transitions.
+     *
+     * @param seeds Seed states.
+     * @param count Number of seed states.
+     *
+     * @return Sorted state set.
+     */
+    @Nonnull private int[] closure(@Nonnull final int[] seeds, final int count) {
+        final BitSet visited = new BitSet(size);
+        final BitSet result = new BitSet(size);
+        final Deque<Integer> stack = new ArrayDeque<>();
+        for (int i = 0; i < count; i++) {
+            stack.push(seeds[i]);
+        }
+        while (!stack.isEmpty()) {
+            final int s = stack.pop();
+            if (visited.get(s)) {
+                continue;
+            }
+            visited.set(s);
+            if (types[s] == SPLIT) {
+                stack.push(out1[s]);
+                if (out2[s] >= 0) {
+                    stack.push(out2[s]);
+                }
+            } else {
+                result.set(s);
+            }
+        }
+        final int[] states = new int[result.cardinality()];
+        int n = 0;
+        for (int s = result.nextSetBit(0); s >= 0; s = result.nextSetBit(s + 1)) {
+            states[n++] = s;
+        }
+        return states;
+    }
+
+    private static boolean contains(@Nonnull final int[] ranges, final int cp) {
+        int lo = 0;
+        int hi = ranges.length / 2 - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (cp < ranges[mid * 2]) {
+                hi = mid - 1;
+            } else if (cp > ranges[mid * 2 + 1]) {
+                lo = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compiles a syntax tree into NFA states that continue to the given state.
+     *
+     * @param node Syntax tree.
+     * @param next Continuation state.
+     *
+     * @return Start state of the compiled node.
+     */
+    private int compile(@Nonnull final ServicePatternParser.Node node, final int next) {
+        if (node instanceof ServicePatternParser.CharSet) {
+            return add(CHAR, ((ServicePatternParser.CharSet) node).ranges, next, -1);
+        }
+        if (node instanceof ServicePatternParser.Concatenation) {
+            final List<ServicePatternParser.Node> items = ((ServicePatternParser.Concatenation) node).items;
+            int start = next;
+            for (int i = items.size() - 1; i >= 0; i--) {
+                start = compile(items.get(i), start);
+            }
+            return start;
+        }
+        if (node instanceof ServicePatternParser.Alternation) {
+            final List<ServicePatternParser.Node> options = ((ServicePatternParser.Alternation) node).options;
+            int start = compile(options.get(options.size() - 1), next);
+            for (int i = options.size() - 2; i >= 0; i--) {
+                start = add(SPLIT, null, compile(options.get(i), next), start);
+            }
+            return start;
+        }
+        final ServicePatternParser.Repetition repetition = (ServicePatternParser.Repetition) node;
+        int start;
+        if (repetition.max < 0) {
+            final int loop = add(SPLIT, null, -1, next);
+            out1[loop] = compile(repetition.node, loop);
+            start = loop;
+        } else {
+            start = next;
+            for (int i = repetition.min; i < repetition.max; i++) {
+                start = add(SPLIT, null, compile(repetition.node, start), next);
+            }
+        }
+        for (int i = 0; i < repetition.min; i++) {
+            start = compile(repetition.node, start);
+        }
+        return start;
+    }
+
+    private int add(final byte type, final int[] set, final int first, final int second) {
+        if (size == MAX_NFA_STATES) {
+            throw new IllegalStateException("Expressions exceed " + MAX_NFA_STATES + " automaton states");
+        }
+        if (size == types.length) {
+            final int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            sets = Arrays.copyOf(sets, capacity);
+            out1 = Arrays.copyOf(out1, capacity);
+            out2 = Arrays.copyOf(out2, capacity);
+        }
+        types[size] = type;
+        sets[size] = set;
+        out1[size] = first;
+        out2[size] = second;
+        return size++;
+    }
+
+    /** Set of DFA states built so far, discarded as a whole when it grows too large. */
+    private final class StateCache {
+
+        /** DFA states keyed by NFA state set. */
+        @Nonnull private final ConcurrentMap<StateKey, DState> states = new ConcurrentHashMap<>();
+
+        /** Start state. */
+        @Nonnull private final DState start;
+
+        /** Creates a new cache. */
+        StateCache() {
+            start = intern(closure(starts, starts.length));
+        }
+
+        @Nonnull DState intern(@Nonnull final int[] nfaStates) {
+            final StateKey key = new StateKey(nfaStates);
+            DState state = states.get(key);
+            if (state == null) {
+                if (states.size() >= maxDfaStates && cache == this) {
+                    cache = new StateCache();
+                }
+                state = new DState(nfaStates, acceptOf(nfaStates));
+                final DState existing = states.putIfAbsent(key, state);
+                if (existing != null) {
+                    state = existing;
+                }
+            }
+            return state;
+        }
+
+        private int acceptOf(@Nonnull final int[] nfaStates) {
+            int accept = -1;
+            for (final int s : nfaStates) {
+                if (types[s] == MATCH && (accept < 0 || out1[s] < accept)) {
+                    accept = out1[s];
+                }
+            }
+            return accept;
+        }
+    }
+
+    /** DFA state. */
+    private static final class DState {
+
+        /** Sorted NFA states represented by this state. */
+        @Nonnull private final int[] nfaStates;
+
+        /** Index of the first expression accepted in this state, or -1. */
+        private final int accept;
+
+        /** True if no expression can match from this state. */
+        private final boolean dead;
+
+        /** Transitions on ASCII code points. */
+        @Nonnull private final DState[] ascii = new DState[ASCII];
+
+        /** Transitions on other code points. */
+        @Nonnull private final ConcurrentMap<Integer, DState> other = new ConcurrentHashMap<>();
+
+        /**
+         * Creates a new state.
+         *
+         * @param states Sorted NFA states.
+         * @param acceptIndex Accepted expression index or -1.
+         */
+        DState(@Nonnull final int[] states, final int acceptIndex) {
+            nfaStates = states;
+            accept = acceptIndex;
+            dead = states.length == 0;
+        }
+    }
+
+    /** Key of a DFA state. */
+    private static final class StateKey {
+
+        /** Sorted NFA states. */
+        @Nonnull private final int[] states;
+
+        /** Cached hash code. */
+        private final int hash;
+
+        /**
+         * Creates a new key.
+         *
+         * @param s Sorted NFA states.
+         */
+        StateKey(@Nonnull final int[] s) {
+            states = s;
+            hash = Arrays.hashCode(s);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof StateKey && Arrays.equals(states, ((StateKey) o).states);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -50,6 +50,13 @@ public class ServiceDefinition {
         matchPattern = Constraint.isNotNull(pattern, "Pattern cannot be null or empty");
     }
 
+    /**
+     * @return Pattern used to match candidate services.
+     */
+    @Nonnull public Pattern getMatchPattern() {
+        return matchPattern;
+    }
+
     /**
      * @return Group name to which services matching this definition belong.
      */
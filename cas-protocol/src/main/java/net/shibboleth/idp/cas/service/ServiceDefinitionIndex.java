@@ -0,0 +1,179 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+
+/**
+ * Immutable index over an ordered list of service definitions that narrows the definitions whose pattern could
+ * match a service URL. Each pattern is reduced to the literal prefix every matching URL must start with, e.g.
+ * <code>https://app.example.org/</code> for <code>https://app\.example\.org/.*</code>, and prefixes are stored in
+ * a character trie. A lookup walks the trie along the URL and collects the definitions whose prefix the URL starts
+ * with, together with those whose pattern has no usable prefix. Candidates are returned in definition order so
+ * that the first matching candidate is also the first matching definition.
+ */
+final class ServiceDefinitionIndex {
+
+    /** Regular expression metacharacters that end a literal prefix. */
+    private static final String METACHARACTERS = ".[]{}()*+?^$|";
+
+    /** Definitions in registration order. */
+    @Nonnull @NonnullElements private final ServiceDefinition[] definitions;
+
+    /** Root of prefix trie. */
+    @Nonnull private final Node root = new Node();
+
+    /**
+     * Creates a new index.
+     *
+     * @param definitions Ordered list of service definitions.
+     */
+    ServiceDefinitionIndex(@Nonnull @NonnullElements final List<ServiceDefinition> definitions) {
+        this.definitions = definitions.toArray(new ServiceDefinition[definitions.size()]);
+        for (int i = 0; i < this.definitions.length; i++) {
+            Node node = root;
+            for (final char c : literalPrefix(this.definitions[i].getMatchPattern()).toCharArray()) {
+                Node child = node.children.get(c);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            node.add(i);
+        }
+    }
+
+    /**
+     * Gets the definitions whose pattern could match the given service URL, in definition order.
+     *
+     * @param serviceURL Service URL.
+     *
+     * @return Candidate definitions; a definition not returned cannot match the URL.
+     */
+    @Nonnull @NonnullElements List<ServiceDefinition> candidates(@Nonnull final String serviceURL) {
+        int[] found = new int[8];
+        int count = 0;
+        Node node = root;
+        int pos = 0;
+        while (node != null) {
+            if (count + node.size > found.length) {
+                found = Arrays.copyOf(found, Math.max(found.length * 2, count + node.size));
+            }
+            System.arraycopy(node.indices, 0, found, count, node.size);
+            count += node.size;
+            node = pos < serviceURL.length() ? node.children.get(serviceURL.charAt(pos++)) : null;
+        }
+        Arrays.sort(found, 0, count);
+        final List<ServiceDefinition> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(definitions[found[i]]);
+        }
+        return result;
+    }
+
+    /**
+     * Extracts the literal prefix that every string matching the given pattern must start with. The prefix is
+     * conservative: it is empty for patterns with flags, a top-level alternation, or a leading construct other than
+     * a literal character.
+     *
+     * @param pattern Regular expression pattern.
+     *
+     * @return Literal prefix, possibly empty.
+     */
+    @Nonnull static String literalPrefix(@Nonnull final Pattern pattern) {
+        final String regex = pattern.pattern();
+        if (pattern.flags() != 0 || hasTopLevelAlternation(regex)) {
+            return "";
+        }
+        final StringBuilder prefix = new StringBuilder();
+        int i = regex.startsWith("^") ? 1 : 0;
+        while (i < regex.length()) {
+            final char c = regex.charAt(i);
+            final char literal;
+            final int next;
+            if (c == '\\') {
+                if (i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    // Character class, quoting, or back reference
+                    break;
+                }
+                literal = regex.charAt(i + 1);
+                next = i + 2;
+            } else if (METACHARACTERS.indexOf(c) >= 0) {
+                break;
+            } else {
+                literal = c;
+                next = i + 1;
+            }
+            if (next < regex.length()) {
+                final char quantifier = regex.charAt(next);
+                if (quantifier == '?' || quantifier == '*' || quantifier == '{') {
+                    // Literal is optional or repeated a variable number of times
+                    break;
+                }
+                if (quantifier == '+') {
+                    prefix.append(literal);
+                    break;
+                }
+            }
+            prefix.append(literal);
+            i = next;
+        }
+        return prefix.toString();
+    }
+
+    private static boolean hasTopLevelAlternation(@Nonnull final String regex) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            final char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                if (c == ']') {
+                    inClass = false;
+                }
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Trie node. */
+    private static final class Node {
+
+        /** Child nodes keyed by next prefix character. */
+        @Nonnull private final Map<Character, Node> children = new HashMap<>();
+
+        /** Indices of definitions whose prefix ends at this node. */
+        @Nonnull private int[] indices = new int[0];
+
+        /** Number of valid entries in {@link #indices}. */
+        private int size;
+
+        void add(final int index) {
+            if (size == indices.length) {
+                indices = Arrays.copyOf(indices, Math.max(2, size * 2));
+            }
+            indices[size++] = index;
+        }
+    }
+}
@@ -0,0 +1,506 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Parses the subset of <code>java.util.regex</code> syntax that can be matched by a finite automaton into a syntax
+ * tree. The supported subset is:
+ *
+ * <ul>
+ *     <li>Literal characters and escaped metacharacters, plus <code>\t \n \r \f \a \e \xhh \\uhhhh</code> and
+ *     <code>\Q...\E</code> quoting.</li>
+ *     <li><code>.</code> (any character except line terminators) and the predefined classes
+ *     <code>\d \D \s \S \w \W</code>.</li>
+ *     <li>Character classes with ranges and negation, e.g. <code>[^A-Za-z0-9_-]</code>.</li>
+ *     <li>Capturing and non-capturing groups, and alternation.</li>
+ *     <li>Greedy and reluctant quantifiers <code>* + ? {n} {n,} {n,m}</code>; since a pattern always matches the
+ *     whole input, reluctance does not change the outcome.</li>
+ *     <li><code>^</code> at the start and <code>$</code> at the end of the pattern.</li>
+ * </ul>
+ *
+ * Everything else, notably back references, lookaround, possessive quantifiers, boundaries, embedded flags, and
+ * class intersections, is rejected with an {@link IllegalArgumentException}.
+ */
+final class ServicePatternParser {
+
+    /** Largest code point. */
+    static final int MAX_CODE_POINT = Character.MAX_CODE_POINT;
+
+    /** Largest allowed bound of a counted quantifier. */
+    private static final int MAX_REPEAT = 100;
+
+    /** Line terminators excluded by <code>.</code>. */
+    private static final int[] LINE_TERMINATORS = ranges('\n', '\n', '\r', '\r', 0x85, 0x85, 0x2028, 0x2029);
+
+    /** Digit class. */
+    private static final int[] DIGIT = ranges('0', '9');
+
+    /** Whitespace class. */
+    private static final int[] SPACE = ranges('\t', '\r', ' ', ' ');
+
+    /** Word character class. */
+    private static final int[] WORD = ranges('0', '9', 'A', 'Z', '_', '_', 'a', 'z');
+
+    /** Pattern being parsed. */
+    @Nonnull private final String regex;
+
+    /** Parse position. */
+    private int pos;
+
+    /**
+     * Creates a new parser.
+     *
+     * @param regex Regular expression.
+     */
+    private ServicePatternParser(@Nonnull final String regex) {
+        this.regex = regex;
+    }
+
+    /**
+     * Parses the given regular expression.
+     *
+     * @param regex Regular expression.
+     *
+     * @return Syntax tree.
+     *
+     * @throws IllegalArgumentException If the expression is malformed or uses unsupported syntax.
+     */
+    @Nonnull static Node parse(@Nonnull final String regex) {
+        final ServicePatternParser parser = new ServicePatternParser(regex);
+        if (regex.startsWith("^")) {
+            parser.pos = 1;
+        }
+        final Node node = parser.parseAlternation();
+        if (parser.pos < regex.length()) {
+            throw parser.error("Unexpected ')'");
+        }
+        return node;
+    }
+
+    @Nonnull private Node parseAlternation() {
+        final List<Node> options = new ArrayList<>();
+        options.add(parseConcatenation());
+        while (pos < regex.length() && regex.charAt(pos) == '|') {
+            pos++;
+            options.add(parseConcatenation());
+        }
+        return options.size() == 1 ? options.get(0) : new Alternation(options);
+    }
+
+    @Nonnull private Node parseConcatenation() {
+        final List<Node> items = new ArrayList<>();
+        while (pos < regex.length()) {
+            final char c = regex.charAt(pos);
+            if (c == '|' || c == ')') {
+                break;
+            }
+            if (c == '$') {
+                if (pos != regex.length() - 1) {
+                    throw error("'$' is only supported at the end of the pattern");
+                }
+                pos++;
+                break;
+            }
+            items.add(parseQuantified());
+        }
+        return items.size() == 1 ? items.get(0) : new Concatenation(items);
+    }
+
+    @Nonnull private Node parseQuantified() {
+        Node node = parseAtom();
+        while (pos < regex.length()) {
+            final char c = regex.charAt(pos);
+            final int min;
+            final int max;
+            if (c == '*') {
+                pos++;
+                min = 0;
+                max = -1;
+            } else if (c == '+') {
+                pos++;
+                min = 1;
+                max = -1;
+            } else if (c == '?') {
+                pos++;
+                min = 0;
+                max = 1;
+            } else if (c == '{') {
+                pos++;
+                min = parseNumber();
+                if (pos < regex.length() && regex.charAt(pos) == ',') {
+                    pos++;
+                    max = pos < regex.length() && regex.charAt(pos) == '}' ? -1 : parseNumber();
+                } else {
+                    max = min;
+                }
+                expect('}');
+                if (max != -1 && max < min) {
+                    throw error("Invalid quantifier bounds");
+                }
+            } else {
+                break;
+            }
+            if (pos < regex.length()) {
+                if (regex.charAt(pos) == '+') {
+                    throw error("Possessive quantifiers are not supported");
+                }
+                if (regex.charAt(pos) == '?') {
+                    // Reluctant quantifier is equivalent for whole-input matching
+                    pos++;
+                }
+            }
+            node = new Repetition(node, min, max);
+        }
+        return node;
+    }
+
+    @Nonnull private Node parseAtom() {
+        final char c = regex.charAt(pos);
+        switch (c) {
+            case '(':
+                pos++;
+                if (regex.startsWith("?:", pos)) {
+                    pos += 2;
+                } else if (pos < regex.length() && regex.charAt(pos) == '?') {
+                    throw error("Lookaround, named groups and embedded flags are not supported");
+                }
+                final Node group = parseAlternation();
+                expect(')');
+                return group;
+            case '[':
+                pos++;
+                return new CharSet(parseClass());
+            case '.':
+                pos++;
+                return new CharSet(complement(LINE_TERMINATORS));
+            case '\\':
+                pos++;
+                if (pos < regex.length() && regex.charAt(pos) == 'Q') {
+                    return parseQuoted();
+                }
+                return new CharSet(parseEscape(false));
+            case '^':
+                throw error("'^' is only supported at the start of the pattern");
+            case '*':
+            case '+':
+            case '?':
+            case '{':
+                throw error("Dangling quantifier");
+            default:
+                final int cp = regex.codePointAt(pos);
+                pos += Character.charCount(cp);
+                return new CharSet(ranges(cp, cp));
+        }
+    }
+
+    @Nonnull private Node parseQuoted() {
+        pos++;
+        int end = regex.indexOf("\\E", pos);
+        if (end < 0) {
+            end = regex.length();
+        }
+        final List<Node> items = new ArrayList<>();
+        while (pos < end) {
+            final int cp = regex.codePointAt(pos);
+            pos += Character.charCount(cp);
+            items.add(new CharSet(ranges(cp, cp)));
+        }
+        pos = Math.min(regex.length(), end + 2);
+        return new Concatenation(items);
+    }
+
+    @Nonnull private int[] parseClass() {
+        boolean negated = false;
+        if (pos < regex.length() && regex.charAt(pos) == '^') {
+            negated = true;
+            pos++;
+        }
+        if (pos < regex.length() && regex.charAt(pos) == ']') {
+            throw error("Empty character class");
+        }
+        final List<int[]> parts = new ArrayList<>();
+        while (true) {
+            if (pos >= regex.length()) {
+                throw error("Unclosed character class");
+            }
+            final char c = regex.charAt(pos);
+            if (c == ']') {
+                pos++;
+                break;
+            }
+            if (c == '[' || regex.startsWith("&&", pos)) {
+                throw error("Nested classes and intersections are not supported");
+            }
+            final int[] item;
+            if (c == '\\') {
+                pos++;
+                item = parseEscape(true);
+            } else {
+                final int cp = regex.codePointAt(pos);
+                pos += Character.charCount(cp);
+                item = ranges(cp, cp);
+            }
+            if (item.length == 2 && item[0] == item[1] && pos + 1 < regex.length() && regex.charAt(pos) == '-'
+                    && regex.charAt(pos + 1) != ']') {
+                pos++;
+                final int[] upper;
+                if (regex.charAt(pos) == '\\') {
+                    pos++;
+                    upper = parseEscape(true);
+                } else {
+                    final int cp = regex.codePointAt(pos);
+                    pos += Character.charCount(cp);
+                    upper = ranges(cp, cp);
+                }
+                if (upper.length != 2 || upper[0] != upper[1] || upper[0] < item[0]) {
+                    throw error("Invalid character range");
+                }
+                parts.add(ranges(item[0], upper[0]));
+            } else {
+                parts.add(item);
+            }
+        }
+        final int[] union = union(parts);
+        return negated ? complement(union) : union;
+    }
+
+    @Nonnull private int[] parseEscape(final boolean inClass) {
+        if (pos >= regex.length()) {
+            throw error("Trailing backslash");
+        }
+        final char c = regex.charAt(pos++);
+        switch (c) {
+            case 'd':
+                return DIGIT;
+            case 'D':
+                return complement(DIGIT);
+            case 's':
+                return SPACE;
+            case 'S':
+                return complement(SPACE);
+            case 'w':
+                return WORD;
+            case 'W':
+                return complement(WORD);
+            case 't':
+                return ranges('\t', '\t');
+            case 'n':
+                return ranges('\n', '\n');
+            case 'r':
+                return ranges('\r', '\r');
+            case 'f':
+                return ranges('\f', '\f');
+            case 'a':
+                return ranges(7, 7);
+            case 'e':
+                return ranges(27, 27);
+            case 'x':
+                return single(parseHex(2));
+            case 'u':
+                return single(parseHex(4));
+            default:
+                if (Character.isLetterOrDigit(c)) {
+                    throw error("Unsupported escape \\" + c);
+                }
+                return ranges(c, c);
+        }
+    }
+
+    @Nonnull private int[] single(final int cp) {
+        return ranges(cp, cp);
+    }
+
+    private int parseHex(final int digits) {
+        if (pos + digits > regex.length()) {
+            throw error("Truncated hexadecimal escape");
+        }
+        try {
+            final int value = Integer.parseInt(regex.substring(pos, pos + digits), 16);
+            pos += digits;
+            return value;
+        } catch (NumberFormatException e) {
+            throw error("Invalid hexadecimal escape");
+        }
+    }
+
+    private int parseNumber() {
+        final int start = pos;
+        while (pos < regex.length() && Character.isDigit(regex.charAt(pos))) {
+            pos++;
+        }
+        if (start == pos || pos - start > 3) {
+            throw error("Invalid quantifier bound");
+        }
+        final int value = Integer.parseInt(regex.substring(start, pos));
+        if (value > MAX_REPEAT) {
+            throw error("Quantifier bound exceeds " + MAX_REPEAT);
+        }
+        return value;
+    }
+
+    private void expect(final char c) {
+        if (pos >= regex.length() || regex.charAt(pos) != c) {
+            throw error("Expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    @Nonnull private IllegalArgumentException error(@Nonnull final String message) {
+        return new IllegalArgumentException(message + " at index " + pos + " of " + regex);
+    }
+
+    /**
+     * Creates a normalized range list from pairs of inclusive bounds.
+     *
+     * @param bounds Pairs of lower and upper bounds.
+     *
+     * @return Sorted, non-overlapping range list.
+     */
+    @Nonnull static int[] ranges(@Nonnull final int... bounds) {
+        return union(Collections.singletonList(bounds));
+    }
+
+    /**
+     * Computes the union of range lists.
+     *
+     * @param parts Range lists.
+     *
+     * @return Sorted, non-overlapping range list.
+     */
+    @Nonnull static int[] union(@Nonnull final List<int[]> parts) {
+        final List<int[]> pairs = new ArrayList<>();
+        for (final int[] part : parts) {
+            for (int i = 0; i < part.length; i += 2) {
+                pairs.add(new int[] {part[i], part[i + 1]});
+            }
+        }
+        Collections.sort(pairs, new java.util.Comparator<int[]>() {
+            @Override
+            public int compare(final int[] a, final int[] b) {
+                return Integer.compare(a[0], b[0]);
+            }
+        });
+        final int[] result = new int[pairs.size() * 2];
+        int n = 0;
+        for (final int[] pair : pairs) {
+            if (n > 0 && pair[0] <= result[n - 1] + 1) {
+                result[n - 1] = Math.max(result[n - 1], pair[1]);
+            } else {
+                result[n++] = pair[0];
+                result[n++] = pair[1];
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Computes the complement of a normalized range list over all code points.
+     *
+     * @param ranges Normalized range list.
+     *
+     * @return Complement range list.
+     */
+    @Nonnull static int[] complement(@Nonnull final int[] ranges) {
+        final int[] result = new int[ranges.length + 2];
+        int n = 0;
+        int next = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] > next) {
+                result[n++] = next;
+                result[n++] = ranges[i] - 1;
+            }
+            next = ranges[i + 1] + 1;
+        }
+        if (next <= MAX_CODE_POINT) {
+            result[n++] = next;
+            result[n++] = MAX_CODE_POINT;
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /** Syntax tree node. */
+    abstract static class Node {}
+
+    /** Matches a single code point in a set of ranges. */
+    static final class CharSet extends Node {
+
+        /** Sorted, non-overlapping inclusive ranges. */
+        @Nonnull final int[] ranges;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param r Normalized range list.
+         */
+        CharSet(@Nonnull final int[] r) {
+            ranges = r;
+        }
+    }
+
+    /** Matches a sequence of nodes. */
+    static final class Concatenation extends Node {
+
+        /** Nodes in order. */
+        @Nonnull final List<Node> items;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param nodes Nodes in order.
+         */
+        Concatenation(@Nonnull final List<Node> nodes) {
+            items = nodes;
+        }
+    }
+
+    /** Matches any of several nodes. */
+    static final class Alternation extends Node {
+
+        /** Alternatives. */
+        @Nonnull final List<Node> options;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param nodes Alternatives.
+         */
+        Alternation(@Nonnull final List<Node> nodes) {
+            options = nodes;
+        }
+    }
+
+    /** Matches a node repeatedly. */
+    static final class Repetition extends Node {
+
+        /** Repeated node. */
+        @Nonnull final Node node;
+
+        /** Minimum number of repetitions. */
+        final int min;
+
+        /** Maximum number of repetitions, or -1 for unbounded. */
+        final int max;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param n Repeated node.
+         * @param lower Minimum number of repetitions.
+         * @param upper Maximum number of repetitions, or -1 for unbounded.
+         */
+        Repetition(@Nonnull final Node n, final int lower, final int upper) {
+            node = n;
+            min = lower;
+            max = upper;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.service;
+
+/**
+ * Service registry whose contents may change over time and that exposes a version to detect changes.
+ */
+public interface VersionedServiceRegistry extends ServiceRegistry {
+    /**
+     * Gets the registry version. The version changes whenever the outcome of a lookup may have changed, and is
+     * published only after the change is visible to {@link #lookup(String)}.
+     *
+     * @return Registry version.
+     */
+    long getVersion();
+}
@@ -0,0 +1,227 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.session;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.idp.session.IdPSession;
+import net.shibboleth.idp.session.SPSession;
+import net.shibboleth.idp.session.SessionException;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.component.DestructableComponent;
+import net.shibboleth.utilities.java.support.component.InitializableComponent;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records SP sessions in their IdP sessions asynchronously, off the request thread.
+ * <p>
+ * SP sessions are queued per IdP session and written by a background thread once per flush interval. Additions
+ * for the same service to the same IdP session within an interval are coalesced such that only the latest is
+ * written, which spares rewriting the IdP session record for services validating repeatedly. The number of queued
+ * SP sessions is bounded; when the bound is reached, or once the recorder is destroyed, {@link #record} declines
+ * and the caller is expected to add the SP session synchronously. Queued SP sessions are written on destruction.
+ * <p>
+ * Since recording is deferred, an SP session is not visible in the IdP session, e.g. to logout, until the next
+ * flush.
+ */
+public class AsyncSPSessionRecorder implements InitializableComponent, DestructableComponent {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(AsyncSPSessionRecorder.class);
+
+    /** Time in ms between flushes; zero disables asynchronous recording. */
+    @Duration private long flushInterval;
+
+    /** Maximum number of queued SP sessions. */
+    @Positive private int maxPending = 10000;
+
+    /** Queued SP sessions by IdP session ID. Guarded by this. */
+    @Nonnull private Map<String, Batch> pending = new LinkedHashMap<>();
+
+    /** Number of queued SP sessions. Guarded by this. */
+    private int pendingCount;
+
+    /** Executor that flushes queued SP sessions. */
+    @Nullable private ScheduledExecutorService executor;
+
+    /** Initialization flag. */
+    private boolean initialized;
+
+    /** Destruction flag. Guarded by this. */
+    private boolean destroyed;
+
+
+    /**
+     * Sets the time between writes of queued SP sessions.
+     *
+     * @param interval Flush interval in milliseconds; zero disables asynchronous recording. Default is zero.
+     */
+    public void setFlushInterval(@Duration final long interval) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        flushInterval = Constraint.isGreaterThanOrEqual(0, interval, "Flush interval cannot be negative");
+    }
+
+    /**
+     * Sets the maximum number of queued SP sessions, beyond which SP sessions are recorded synchronously.
+     *
+     * @param max Maximum number of queued SP sessions. Default is 10000.
+     */
+    public void setMaxPending(@Positive final int max) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxPending = (int) Constraint.isGreaterThan(0, max, "Max pending must be positive");
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    @Override
+    public void initialize() {
+        if (initialized) {
+            return;
+        }
+        if (flushInterval > 0) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "cas-sp-session-recorder");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        }
+        initialized = true;
+    }
+
+    @Override
+    public boolean isDestroyed() {
+        synchronized (this) {
+            return destroyed;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        synchronized (this) {
+            destroyed = true;
+        }
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(flushInterval, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    /** @return Number of SP sessions queued and not yet written. */
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Queues an SP session to be added to an IdP session.
+     *
+     * @param session IdP session.
+     * @param spSession SP session to add.
+     *
+     * @return True if the SP session was queued, false if the caller must add it synchronously.
+     */
+    public boolean record(@Nonnull final IdPSession session, @Nonnull final SPSession spSession) {
+        if (executor == null) {
+            return false;
+        }
+        synchronized (this) {
+            if (destroyed) {
+                return false;
+            }
+            Batch batch = pending.get(session.getId());
+            final boolean replaces = batch != null && batch.spSessions.containsKey(spSession.getId());
+            if (!replaces && pendingCount >= maxPending) {
+                log.debug("SP session queue full, declining {}", spSession);
+                return false;
+            }
+            if (batch == null) {
+                batch = new Batch(session);
+                pending.put(session.getId(), batch);
+            }
+            // Remove first so the entry moves to the end and is written in order of addition
+            batch.spSessions.remove(spSession.getId());
+            batch.spSessions.put(spSession.getId(), spSession);
+            if (!replaces) {
+                pendingCount++;
+            }
+        }
+        return true;
+    }
+
+    /** Writes all queued SP sessions to their IdP sessions. */
+    public void flush() {
+        final Map<String, Batch> batches;
+        synchronized (this) {
+            if (pendingCount == 0) {
+                return;
+            }
+            batches = pending;
+            pending = new LinkedHashMap<>();
+            pendingCount = 0;
+        }
+        int written = 0;
+        for (final Batch batch : batches.values()) {
+            for (final SPSession spSession : batch.spSessions.values()) {
+                try {
+                    batch.session.addSPSession(spSession);
+                    written++;
+                } catch (SessionException e) {
+                    log.warn("Failed updating IdP session {} with {}: {}",
+                            batch.session.getId(), spSession, e.getMessage());
+                } catch (RuntimeException e) {
+                    log.warn("Error updating IdP session {} with {}", batch.session.getId(), spSession, e);
+                }
+            }
+        }
+        log.debug("Recorded {} SP sessions in {} IdP sessions", written, batches.size());
+    }
+
+    /** SP sessions queued for a single IdP session. */
+    private static final class Batch {
+
+        /** IdP session to update. */
+        @Nonnull private final IdPSession session;
+
+        /** Queued SP sessions by service ID, in order of addition. */
+        @Nonnull private final Map<String, SPSession> spSessions = new LinkedHashMap<>();
+
+        /**
+         * Creates a new batch.
+         *
+         * @param idpSession IdP session to update.
+         */
+        Batch(@Nonnull final IdPSession idpSession) {
+            session = idpSession;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.session;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.idp.session.IdPSession;
+import net.shibboleth.idp.session.SessionException;
+import net.shibboleth.idp.session.SessionManager;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Session manager decorator that discards a session from the local cache of a {@link CachingSessionResolver} when
+ * the session is destroyed, e.g. on logout, so that it is not used for ticket validation on this node afterward.
+ * All operations are delegated unchanged.
+ */
+public class CacheInvalidatingSessionManager implements SessionManager {
+
+    /** Underlying session manager. */
+    @Nonnull private final SessionManager delegate;
+
+    /** Resolver whose cache is kept consistent with session destruction. */
+    @Nonnull private final CachingSessionResolver resolver;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param manager Underlying session manager.
+     * @param cachingResolver Caching session resolver to invalidate.
+     */
+    public CacheInvalidatingSessionManager(
+            @Nonnull final SessionManager manager, @Nonnull final CachingSessionResolver cachingResolver) {
+        delegate = Constraint.isNotNull(manager, "Session manager cannot be null");
+        resolver = Constraint.isNotNull(cachingResolver, "Caching session resolver cannot be null");
+    }
+
+    @Override
+    @Nonnull
+    public IdPSession createSession(@Nonnull @NotEmpty final String principalName) throws SessionException {
+        return delegate.createSession(principalName);
+    }
+
+    @Override
+    public void destroySession(@Nonnull @NotEmpty final String sessionId, final boolean unbind)
+            throws SessionException {
+        try {
+            delegate.destroySession(sessionId, unbind);
+        } finally {
+            // Also covers a resolution that raced with destruction and cached the session being destroyed
+            resolver.invalidate(sessionId);
+        }
+    }
+}
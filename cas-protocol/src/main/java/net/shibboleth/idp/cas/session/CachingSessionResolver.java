@@ -0,0 +1,171 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.session;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import net.shibboleth.idp.session.IdPSession;
+import net.shibboleth.idp.session.SessionResolver;
+import net.shibboleth.idp.session.criterion.SessionIdCriterion;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
+import net.shibboleth.utilities.java.support.resolver.ResolverException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Session resolver decorator that keeps sessions resolved by {@link SessionIdCriterion} in a local cache bounded
+ * in size and time to live, so that repeated ticket validations within the same IdP session do not read and
+ * deserialize the session from a remote store each time. Resolution by any other criteria is delegated unchanged,
+ * and the absence of a session is never cached.
+ * <p>
+ * Cached sessions are returned as is; callers remain responsible for calling {@link IdPSession#checkTimeout()},
+ * which enforces the session timeout and records activity on the cached instance exactly as it would on a freshly
+ * resolved one. Callers that find a session ended should {@link #invalidate(String)} it, and sessions destroyed
+ * through a {@link CacheInvalidatingSessionManager} are invalidated on destruction. Since a session destroyed on
+ * another node or by other means is not visible to the local cache, the time to live bounds how long such a session
+ * may still be used here.
+ */
+public class CachingSessionResolver implements SessionResolver {
+
+    /** Default maximum number of cached sessions. */
+    private static final int DEFAULT_MAX_SIZE = 10000;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(CachingSessionResolver.class);
+
+    /** Underlying resolver. */
+    @Nonnull private final SessionResolver delegate;
+
+    /** Time in ms sessions are cached; zero disables the cache. */
+    @Duration private long timeToLive;
+
+    /** Maximum number of cached sessions. */
+    @Positive private int maxSize = DEFAULT_MAX_SIZE;
+
+    /** Session cache, or null if disabled. */
+    @Nullable private volatile Cache<String, IdPSession> sessions;
+
+
+    /**
+     * Creates a new instance.
+     *
+     * @param resolver Underlying session resolver.
+     */
+    public CachingSessionResolver(@Nonnull final SessionResolver resolver) {
+        delegate = Constraint.isNotNull(resolver, "Session resolver cannot be null");
+    }
+
+    /**
+     * Sets the time resolved sessions are cached. Discards all cached sessions.
+     *
+     * @param ttl Cache time to live in milliseconds; zero disables the cache. Default is zero.
+     */
+    public void setTimeToLive(@Duration final long ttl) {
+        timeToLive = Constraint.isGreaterThanOrEqual(0, ttl, "Time to live cannot be negative");
+        buildCache();
+    }
+
+    /**
+     * Sets the maximum number of cached sessions. Discards all cached sessions.
+     *
+     * @param size Maximum cache size. Default is 10000.
+     */
+    public void setMaxSize(@Positive final int size) {
+        maxSize = (int) Constraint.isGreaterThan(0, size, "Max size must be positive");
+        buildCache();
+    }
+
+    /** @return Cache statistics, or empty statistics if the cache is disabled. */
+    @Nonnull public CacheStats getStats() {
+        final Cache<String, IdPSession> cache = sessions;
+        return cache != null ? cache.stats() : new CacheStats(0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Adds a session obtained by other means, e.g. from the session context of a login request, to the cache.
+     *
+     * @param session IdP session.
+     */
+    public void put(@Nonnull final IdPSession session) {
+        final Cache<String, IdPSession> cache = sessions;
+        if (cache != null) {
+            cache.put(session.getId(), session);
+        }
+    }
+
+    /**
+     * Discards the cached session with the given ID, if any.
+     *
+     * @param sessionId IdP session ID.
+     */
+    public void invalidate(@Nonnull final String sessionId) {
+        final Cache<String, IdPSession> cache = sessions;
+        if (cache != null) {
+            log.debug("Discarding cached session {}", sessionId);
+            cache.invalidate(sessionId);
+        }
+    }
+
+    @Override
+    @Nonnull
+    public Iterable<IdPSession> resolve(@Nullable final CriteriaSet criteria) throws ResolverException {
+        if (sessions == null || sessionId(criteria) == null) {
+            return delegate.resolve(criteria);
+        }
+        final IdPSession session = resolveSingle(criteria);
+        return session != null ? Collections.singletonList(session) : Collections.<IdPSession>emptyList();
+    }
+
+    @Override
+    @Nullable
+    public IdPSession resolveSingle(@Nullable final CriteriaSet criteria) throws ResolverException {
+        final Cache<String, IdPSession> cache = sessions;
+        final String sessionId = sessionId(criteria);
+        if (cache == null || sessionId == null) {
+            return delegate.resolveSingle(criteria);
+        }
+        final IdPSession cached = cache.getIfPresent(sessionId);
+        if (cached != null) {
+            log.debug("Found session {} in cache", sessionId);
+            return cached;
+        }
+        final IdPSession session = delegate.resolveSingle(criteria);
+        if (session != null) {
+            cache.put(sessionId, session);
+        }
+        return session;
+    }
+
+    @Nullable private static String sessionId(@Nullable final CriteriaSet criteria) {
+        if (criteria == null || criteria.size() != 1) {
+            return null;
+        }
+        final SessionIdCriterion criterion = criteria.get(SessionIdCriterion.class);
+        return criterion != null ? criterion.getSessionId() : null;
+    }
+
+    /** Creates the session cache according to the current settings. */
+    private void buildCache() {
+        if (timeToLive > 0) {
+            sessions = CacheBuilder.newBuilder()
+                    .maximumSize(maxSize)
+                    .expireAfterWrite(timeToLive, TimeUnit.MILLISECONDS)
+                    .recordStats()
+                    .<String, IdPSession>build();
+        } else {
+            sessions = null;
+        }
+    }
+}
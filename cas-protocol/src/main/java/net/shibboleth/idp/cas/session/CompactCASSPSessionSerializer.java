@@ -0,0 +1,241 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.session;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import net.shibboleth.idp.session.SPSession;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Serializer for {@link CASSPSession} class that writes a compact delimited form instead of JSON and reads both.
+ * <p>
+ * The compact form is <code>~1;creation;lifetime;ticket;service</code>, where the creation instant and the
+ * lifetime, i.e. expiration less creation, are milliseconds in radix 36. A service URL that starts with one of the
+ * configured service prefixes, e.g. the literal prefixes of the service definitions of the service registry, is
+ * written as a short code of the longest such prefix followed by the remainder of the URL. Prefix codes are derived
+ * from the prefix itself, so prefixes may be added or reordered freely, but a prefix must not be removed while
+ * records written with it may still be read. Ticket IDs may optionally be replaced with a short hash when the full
+ * ticket ID is not needed after validation.
+ * <p>
+ * Records in the JSON form of {@link CASSPSessionSerializer} are always readable, and JSON is written unless
+ * {@link #setWriteCompact(boolean) writeCompact} is enabled. To roll out the compact form across several nodes,
+ * first deploy this serializer with the default on all nodes, then enable it.
+ */
+public class CompactCASSPSessionSerializer extends CASSPSessionSerializer {
+
+    /** Leading character and version of the compact form. */
+    @Nonnull @NotEmpty private static final String COMPACT_HEADER = "~1;";
+
+    /** Field delimiter of the compact form. */
+    private static final char DELIMITER = ';';
+
+    /** Service field type of a literal service URL. */
+    private static final char LITERAL_SERVICE = 'L';
+
+    /** Service field type of a dictionary-encoded service URL. */
+    private static final char DICTIONARY_SERVICE = 'D';
+
+    /** Separates prefix code from remainder of a dictionary-encoded service URL. */
+    private static final char CODE_DELIMITER = ':';
+
+    /** Leading character of a hashed ticket ID. */
+    private static final char HASHED_TICKET = '#';
+
+    /** Number of hash bytes kept for hashed ticket IDs. */
+    private static final int TICKET_HASH_LENGTH = 9;
+
+    /** Service prefixes, longest first. */
+    @Nonnull @NonnullElements private List<String> prefixes = Collections.emptyList();
+
+    /** Service prefixes by code. */
+    @Nonnull private Map<String, String> prefixesByCode = Collections.emptyMap();
+
+    /** Flag indicating whether to write the compact form rather than JSON. */
+    private boolean writeCompact;
+
+    /** Flag indicating whether to replace ticket IDs with a short hash. */
+    private boolean hashTicketIds;
+
+
+    /**
+     * Constructor.
+     *
+     * @param offset milliseconds to subtract from record expiration to establish session expiration value
+     */
+    public CompactCASSPSessionSerializer(@Duration @NonNegative final long offset) {
+        super(offset);
+    }
+
+    /**
+     * Sets the service URL prefixes to dictionary-encode.
+     *
+     * @param servicePrefixes Service URL prefixes, e.g. <code>https://app.example.org/</code>.
+     */
+    public void setServicePrefixes(@Nullable @NonnullElements final List<String> servicePrefixes) {
+        if (servicePrefixes == null || servicePrefixes.isEmpty()) {
+            prefixes = Collections.emptyList();
+            prefixesByCode = Collections.emptyMap();
+            return;
+        }
+        final String[] sorted = servicePrefixes.toArray(new String[servicePrefixes.size()]);
+        Arrays.sort(sorted, new Comparator<String>() {
+            @Override
+            public int compare(final String a, final String b) {
+                return b.length() - a.length();
+            }
+        });
+        final Map<String, String> byCode = new HashMap<>(sorted.length * 2);
+        for (final String prefix : sorted) {
+            Constraint.isNotNull(prefix, "Service prefix cannot be null");
+            final String existing = byCode.put(code(prefix), prefix);
+            if (existing != null && !existing.equals(prefix)) {
+                throw new IllegalArgumentException("Service prefixes " + existing + " and " + prefix
+                        + " have the same code");
+            }
+        }
+        prefixes = Collections.unmodifiableList(Arrays.asList(sorted));
+        prefixesByCode = byCode;
+    }
+
+    /**
+     * Sets whether SP sessions are written in the compact form. The compact form is always read.
+     *
+     * @param compact True to write the compact form, false to write JSON. Default is false.
+     */
+    public void setWriteCompact(final boolean compact) {
+        writeCompact = compact;
+    }
+
+    /**
+     * Sets whether ticket IDs are replaced with a short hash in the compact form. Deserialized SP sessions then
+     * carry the hash in place of the ticket ID.
+     *
+     * @param hash True to hash ticket IDs, false to keep them. Default is false.
+     */
+    public void setHashTicketIds(final boolean hash) {
+        hashTicketIds = hash;
+    }
+
+    @Override
+    @Nonnull
+    @NotEmpty
+    public String serialize(@Nonnull final SPSession instance) throws IOException {
+        if (!writeCompact) {
+            return super.serialize(instance);
+        }
+        if (!(instance instanceof CASSPSession)) {
+            throw new IllegalArgumentException("Expected instance of CASSPSession but got " + instance);
+        }
+        final CASSPSession session = (CASSPSession) instance;
+        final long creation = session.getCreationInstant();
+        final String service = session.getId();
+        final StringBuilder sb = new StringBuilder(COMPACT_HEADER.length() + 64 + service.length());
+        sb.append(COMPACT_HEADER);
+        sb.append(Long.toString(creation, Character.MAX_RADIX)).append(DELIMITER);
+        sb.append(Long.toString(session.getExpirationInstant() - creation, Character.MAX_RADIX)).append(DELIMITER);
+        if (hashTicketIds) {
+            sb.append(hashTicketId(session.getTicketId()));
+        } else {
+            sb.append(session.getTicketId());
+        }
+        sb.append(DELIMITER);
+        final String prefix = longestPrefix(service);
+        if (prefix != null) {
+            sb.append(DICTIONARY_SERVICE).append(code(prefix)).append(CODE_DELIMITER);
+            sb.append(service, prefix.length(), service.length());
+        } else {
+            sb.append(LITERAL_SERVICE).append(service);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    @Nonnull
+    public SPSession deserialize(
+            final long version,
+            @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value,
+            @Nullable final Long expiration) throws IOException {
+        if (!value.startsWith(COMPACT_HEADER)) {
+            return super.deserialize(version, context, key, value, expiration);
+        }
+        try {
+            int start = COMPACT_HEADER.length();
+            int end = delimiter(value, start);
+            final long creation = Long.parseLong(value.substring(start, end), Character.MAX_RADIX);
+            start = end + 1;
+            end = delimiter(value, start);
+            final long lifetime = Long.parseLong(value.substring(start, end), Character.MAX_RADIX);
+            start = end + 1;
+            end = delimiter(value, start);
+            final String ticketId = value.substring(start, end);
+            start = end + 1;
+            final String service;
+            if (value.charAt(start) == DICTIONARY_SERVICE) {
+                final int colon = value.indexOf(CODE_DELIMITER, start + 1);
+                if (colon < 0) {
+                    throw new IOException("Malformed service field in CAS SP session record " + key);
+                }
+                final String prefix = prefixesByCode.get(value.substring(start + 1, colon));
+                if (prefix == null) {
+                    throw new IOException("Unknown service prefix code in CAS SP session record " + key);
+                }
+                service = prefix + value.substring(colon + 1);
+            } else if (value.charAt(start) == LITERAL_SERVICE) {
+                service = value.substring(start + 1);
+            } else {
+                throw new IOException("Malformed service field in CAS SP session record " + key);
+            }
+            return new CASSPSession(service, creation, creation + lifetime, ticketId);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed CAS SP session record " + key, e);
+        }
+    }
+
+    @Nullable private String longestPrefix(@Nonnull final String service) {
+        for (final String prefix : prefixes) {
+            if (service.startsWith(prefix)) {
+                return prefix;
+            }
+        }
+        return null;
+    }
+
+    private static int delimiter(@Nonnull final String value, final int from) throws IOException {
+        final int pos = value.indexOf(DELIMITER, from);
+        if (pos < 0) {
+            throw new IOException("Truncated CAS SP session record");
+        }
+        return pos;
+    }
+
+    @Nonnull private static String code(@Nonnull final String prefix) {
+        // String.hashCode is specified, so codes are stable across nodes and restarts
+        return Integer.toString(prefix.hashCode() & Integer.MAX_VALUE, Character.MAX_RADIX);
+    }
+
+    @Nonnull private static String hashTicketId(@Nonnull final String ticketId) {
+        final byte[] hash = Hashing.sha256().hashString(ticketId, StandardCharsets.UTF_8).asBytes();
+        return HASHED_TICKET + BaseEncoding.base64Url().omitPadding().encode(hash, 0, TICKET_HASH_LENGTH);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.session;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import net.shibboleth.idp.session.IdPSession;
+import net.shibboleth.idp.session.SessionException;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces session timeout checks, each of which records session activity and thus costs a write with a
+ * storage-backed session manager, to at most one per session per flush interval.
+ * <p>
+ * A session whose {@link IdPSession#checkTimeout()} succeeded within the last flush interval is considered active
+ * without checking again. Expiry is therefore detected at most one flush interval late, and the last activity
+ * instant recorded in storage lags actual activity by at most the same amount, so the interval should be small
+ * compared to the session timeout. A session found to have ended is never remembered as active.
+ */
+public class SessionActivityTracker {
+
+    /** Default maximum number of tracked sessions. */
+    private static final int DEFAULT_MAX_SIZE = 10000;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(SessionActivityTracker.class);
+
+    /** Time in ms between timeout checks of the same session; zero checks on every call. */
+    @Duration private long flushInterval;
+
+    /** Maximum number of tracked sessions. */
+    @Positive private int maxSize = DEFAULT_MAX_SIZE;
+
+    /** IDs of sessions checked within the flush interval, or null if disabled. */
+    @Nullable private volatile Cache<String, Boolean> recentlyChecked;
+
+
+    /**
+     * Sets the minimum time between timeout checks, and hence activity updates, of the same session.
+     *
+     * @param interval Flush interval in milliseconds; zero checks on every call. Default is zero.
+     */
+    public void setFlushInterval(@Duration final long interval) {
+        flushInterval = Constraint.isGreaterThanOrEqual(0, interval, "Flush interval cannot be negative");
+        buildCache();
+    }
+
+    /**
+     * Sets the maximum number of tracked sessions. Sessions beyond this number are checked on every call.
+     *
+     * @param size Maximum number of tracked sessions. Default is 10000.
+     */
+    public void setMaxSize(@Positive final int size) {
+        maxSize = (int) Constraint.isGreaterThan(0, size, "Max size must be positive");
+        buildCache();
+    }
+
+    /**
+     * Determines whether a session is still active, recording activity on it unless it was checked within the
+     * flush interval.
+     *
+     * @param session IdP session.
+     *
+     * @return True if the session is active, false if it has timed out.
+     *
+     * @throws SessionException On errors checking the session.
+     */
+    public boolean checkTimeout(@Nonnull final IdPSession session) throws SessionException {
+        final Cache<String, Boolean> cache = recentlyChecked;
+        if (cache == null) {
+            return session.checkTimeout();
+        }
+        final String id = session.getId();
+        if (cache.getIfPresent(id) != null) {
+            log.trace("Skipping timeout check of recently checked session {}", id);
+            return true;
+        }
+        if (session.checkTimeout()) {
+            cache.put(id, Boolean.TRUE);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forgets that a session was recently checked, e.g. because it was found to have ended by other means.
+     *
+     * @param sessionId IdP session ID.
+     */
+    public void invalidate(@Nonnull final String sessionId) {
+        final Cache<String, Boolean> cache = recentlyChecked;
+        if (cache != null) {
+            cache.invalidate(sessionId);
+        }
+    }
+
+    /** Creates the tracking cache according to the current settings. */
+    private void buildCache() {
+        if (flushInterval > 0) {
+            recentlyChecked = CacheBuilder.newBuilder()
+                    .maximumSize(maxSize)
+                    .expireAfterWrite(flushInterval, TimeUnit.MILLISECONDS)
+                    .<String, Boolean>build();
+        } else {
+            recentlyChecked = null;
+        }
+    }
+}
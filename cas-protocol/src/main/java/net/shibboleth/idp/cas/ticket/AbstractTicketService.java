@@ -0,0 +1,232 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.ticket;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.idp.cas.config.ProxyGrantingTicketConfiguration;
+import net.shibboleth.idp.cas.config.ProxyTicketConfiguration;
+import net.shibboleth.idp.cas.config.ServiceTicketConfiguration;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import org.joda.time.DateTime;
+import org.joda.time.Instant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Base class for ticket services that handles ticket creation from the configured ticket profiles. Subclasses need
+ * only provide the persistence primitives.
+ */
+public abstract class AbstractTicketService implements TicketService {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(AbstractTicketService.class);
+
+    @Nonnull
+    private final ServiceTicketConfiguration serviceTicketConfiguration;
+
+    @Nonnull
+    private final ProxyGrantingTicketConfiguration proxyGrantingTicketConfiguration;
+
+    @Nonnull
+    private final ProxyTicketConfiguration proxyTicketConfiguration;
+
+
+    /**
+     * Creates a new instance.
+     *
+     * @param serviceTicketConfiguration Service ticket configuration.
+     * @param proxyGrantingTicketConfiguration Proxy-granting ticket configuration.
+     * @param proxyTicketConfiguration Proxy ticket configuration.
+     */
+    public AbstractTicketService(
+            @Nonnull final ServiceTicketConfiguration serviceTicketConfiguration,
+            @Nonnull final ProxyGrantingTicketConfiguration proxyGrantingTicketConfiguration,
+            @Nonnull final ProxyTicketConfiguration proxyTicketConfiguration) {
+        this.serviceTicketConfiguration = Constraint.isNotNull(
+                serviceTicketConfiguration, "ServiceTicketConfiguration cannot be null.");
+        this.proxyGrantingTicketConfiguration = Constraint.isNotNull(
+                proxyGrantingTicketConfiguration, "ProxyGrantingTicketConfiguration cannot be null.");
+        this.proxyTicketConfiguration = Constraint.isNotNull(
+                proxyTicketConfiguration, "ProxyTicketConfiguration cannot be null.");
+    }
+
+    @Override
+    @Nonnull
+    public ServiceTicket createServiceTicket(
+            @Nonnull final String sessionId,
+            @Nonnull final String service,
+            final boolean renew) {
+        Constraint.isNotNull(sessionId, "Session ID cannot be null");
+        Constraint.isNotNull(service, "Service cannot be null");
+        final ServiceTicket st = new ServiceTicket(
+                serviceTicketConfiguration.getSecurityConfiguration().getIdGenerator().generateIdentifier(),
+                sessionId,
+                service,
+                DateTime.now().plus(serviceTicketConfiguration.getTicketValidityPeriod()).toInstant(),
+                renew);
+        log.debug("Generated ticket {}", st);
+        store(st);
+        return st;
+    }
+
+    @Override
+    @Nullable
+    public ServiceTicket removeServiceTicket(@Nonnull final String id) {
+        Constraint.isNotNull(id, "Id cannot be null");
+        return delete(id, ServiceTicket.class);
+    }
+
+    @Override
+    @Nonnull
+    public ProxyGrantingTicket createProxyGrantingTicket(
+            @Nonnull final ServiceTicket serviceTicket, @Nonnull final String pgtId) {
+        Constraint.isNotNull(serviceTicket, "ServiceTicket cannot be null");
+        Constraint.isNotNull(pgtId, "PGT ID cannot be null");
+        final ProxyGrantingTicket pgt = new ProxyGrantingTicket(
+                pgtId,
+                serviceTicket.getSessionId(),
+                serviceTicket.getService(),
+                DateTime.now().plus(proxyGrantingTicketConfiguration.getTicketValidityPeriod()).toInstant(),
+                null);
+        log.debug("Generated ticket {}", pgt);
+        store(pgt);
+        return pgt;
+    }
+
+    @Nonnull
+    @Override
+    public ProxyGrantingTicket createProxyGrantingTicket(
+            @Nonnull final ProxyTicket proxyTicket, @Nonnull final String pgtId) {
+        Constraint.isNotNull(proxyTicket, "ProxyTicket cannot be null");
+        Constraint.isNotNull(pgtId, "PGT ID cannot be null");
+        final ProxyGrantingTicket parent = read(proxyTicket.getPgtId(), ProxyGrantingTicket.class);
+        if (parent == null) {
+            throw new IllegalStateException("Proxy-granting ticket " + proxyTicket.getPgtId() + " not found");
+        }
+        final List<String> proxyChain = proxyChainOf(parent);
+        if (proxyChain.size() + 1 > proxyGrantingTicketConfiguration.getMaxProxyChainDepth()) {
+            throw new IllegalStateException("Proxy chain of " + proxyTicket + " exceeds maximum depth of "
+                    + proxyGrantingTicketConfiguration.getMaxProxyChainDepth());
+        }
+        // A child never outlives its parent, so expiry of an ancestor also ends its descendants
+        final Instant expiration = DateTime.now()
+                .plus(proxyGrantingTicketConfiguration.getTicketValidityPeriod()).toInstant();
+        final ProxyGrantingTicket pgt = new ProxyGrantingTicket(
+                pgtId,
+                proxyTicket.getSessionId(),
+                proxyTicket.getService(),
+                expiration.isAfter(parent.getExpirationInstant()) ? parent.getExpirationInstant() : expiration,
+                proxyTicket.getPgtId(),
+                proxyChain);
+        log.debug("Generated ticket {}", pgt);
+        store(pgt);
+        return pgt;
+    }
+
+    @Override
+    @Nullable
+    public ProxyGrantingTicket fetchProxyGrantingTicket(@Nonnull final String id) {
+        Constraint.isNotNull(id, "Id cannot be null");
+        return read(id, ProxyGrantingTicket.class);
+    }
+
+    @Override
+    @Nullable
+    public ProxyGrantingTicket removeProxyGrantingTicket(@Nonnull final String id) {
+        Constraint.isNotNull(id, "Id cannot be null");
+        return delete(id, ProxyGrantingTicket.class);
+    }
+
+    @Nonnull
+    @Override
+    public ProxyTicket createProxyTicket(
+            @Nonnull final ProxyGrantingTicket pgt, @Nonnull final String service) {
+        Constraint.isNotNull(pgt, "ProxyGrantingTicket cannot be null");
+        Constraint.isNotNull(service, "Service cannot be null");
+        final ProxyTicket pt = new ProxyTicket(
+                proxyTicketConfiguration.getSecurityConfiguration().getIdGenerator().generateIdentifier(),
+                pgt.getSessionId(),
+                service,
+                DateTime.now().plus(proxyTicketConfiguration.getTicketValidityPeriod()).toInstant(),
+                pgt.getId());
+        store(pt);
+        return pt;
+    }
+
+    @Nullable
+    @Override
+    public ProxyTicket removeProxyTicket(final @Nonnull String id) {
+        return delete(id, ProxyTicket.class);
+    }
+
+    /**
+     * Computes the proxy chain of a child of the given proxy-granting ticket, which is the service of the given
+     * ticket followed by the services of its ancestors. Ancestors are only read if the given ticket does not carry
+     * its own chain.
+     *
+     * @param parent Parent proxy-granting ticket.
+     *
+     * @return Services of the child's ancestors, nearest first.
+     */
+    @Nonnull private List<String> proxyChainOf(@Nonnull final ProxyGrantingTicket parent) {
+        final List<String> chain = new ArrayList<>();
+        chain.add(parent.getService());
+        if (parent.getProxyChain() != null) {
+            chain.addAll(parent.getProxyChain());
+            return chain;
+        }
+        String ancestorId = parent.getParentId();
+        while (ancestorId != null) {
+            final ProxyGrantingTicket ancestor = read(ancestorId, ProxyGrantingTicket.class);
+            if (ancestor == null) {
+                throw new IllegalStateException("Proxy-granting ticket " + ancestorId + " not found");
+            }
+            chain.add(ancestor.getService());
+            ancestorId = ancestor.getParentId();
+        }
+        return chain;
+    }
+
+    /**
+     * Stores the given ticket.
+     *
+     * @param ticket Ticket to store.
+     * @param <T> Type of ticket.
+     *
+     * @throws RuntimeException On storage errors.
+     */
+    protected abstract <T extends Ticket> void store(@Nonnull T ticket);
+
+    /**
+     * Reads the ticket of the given type and identifier.
+     *
+     * @param id Ticket ID.
+     * @param clazz Ticket type.
+     * @param <T> Type of ticket.
+     *
+     * @return Ticket or null if not found.
+     *
+     * @throws RuntimeException On storage errors.
+     */
+    @Nullable protected abstract <T extends Ticket> T read(@Nonnull String id, @Nonnull Class<T> clazz);
+
+    /**
+     * Atomically reads and removes the ticket of the given type and identifier.
+     *
+     * @param id Ticket ID.
+     * @param clazz Ticket type.
+     * @param <T> Type of ticket.
+     *
+     * @return Removed ticket or null if not found.
+     *
+     * @throws RuntimeException On storage errors.
+     */
+    @Nullable protected abstract <T extends Ticket> T delete(@Nonnull String id, @Nonnull Class<T> clazz);
+}
@@ -0,0 +1,37 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.ticket;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageService;
+
+/**
+ * Storage service that supports an atomic read-and-remove operation. Backing stores that can natively perform a
+ * conditional delete that returns the deleted value (e.g. <code>GETDEL</code>, <code>DELETE ... RETURNING</code>)
+ * should implement this interface so that ticket consumption costs a single round trip.
+ */
+public interface ConsumingStorageService extends StorageService {
+
+    /**
+     * Atomically reads and removes the record with the given context and key. Of any number of concurrent callers
+     * for the same record, at most one MUST receive a non-null result.
+     *
+     * @param context Storage context.
+     * @param key Record key.
+     * @param <T> Type of object stored in record.
+     *
+     * @return Removed record or null if no live record exists for the given context and key.
+     *
+     * @throws IOException On storage errors.
+     */
+    @Nullable <T> StorageRecord<T> consume(@Nonnull @NotEmpty String context, @Nonnull @NotEmpty String key)
+            throws IOException;
+}
@@ -0,0 +1,647 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.ticket;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.idp.cas.config.ProxyGrantingTicketConfiguration;
+import net.shibboleth.idp.cas.config.ProxyTicketConfiguration;
+import net.shibboleth.idp.cas.config.ServiceTicketConfiguration;
+import net.shibboleth.idp.cas.ticket.serialization.AbstractTicketSerializer;
+import net.shibboleth.idp.cas.ticket.serialization.ProxyGrantingTicketSerializer;
+import net.shibboleth.idp.cas.ticket.serialization.ProxyTicketSerializer;
+import net.shibboleth.idp.cas.ticket.serialization.ServiceTicketSerializer;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.component.DestructableComponent;
+import net.shibboleth.utilities.java.support.component.InitializableComponent;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ticket service that keeps tickets off-heap in a memory-mapped file, which allows tickets, most notably long-lived
+ * proxy-granting tickets, to survive a restart: a new instance pointed at the same file simply reattaches the
+ * mapping. The file is a fixed-capacity table of fixed-size slots divided into independently locked segments, each
+ * an open-addressing hash table with linear probing. Each slot holds the ticket ID and the fields defined by the
+ * ticket serializers:
+ *
+ * <pre>
+ * state(1) type(1) expiration(8) idLength(2) id valueLength(2) value
+ * </pre>
+ *
+ * The state byte is written after all other fields, so a slot never appears live with partially written contents.
+ * Expired and removed slots are reused on insertion, and removed slots followed by a never-used slot are returned to
+ * the never-used state on deletion. Once three quarters of the slots of a segment are no longer unused, the segment
+ * is compacted in place so that probe sequences stay short without a cleanup sweep. The total mapping size,
+ * <code>capacity * slotSize</code>, is limited to 2GB.
+ *
+ * <p>Exactly one instance may be attached to a file at a time: initialization takes an exclusive lock on the file,
+ * held until the instance is destroyed, and fails if another instance in this or any other process holds it. The
+ * service must therefore be declared once per IdP rather than once per flow.</p>
+ */
+public class MappedTicketService extends AbstractTicketService
+        implements InitializableComponent, DestructableComponent {
+
+    /** Default number of slots. */
+    private static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /** Default slot size in bytes. */
+    private static final int DEFAULT_SLOT_SIZE = 512;
+
+    /** File format identifier. */
+    private static final int MAGIC = 0xCA5711CE;
+
+    /** File format version. */
+    private static final int VERSION = 2;
+
+    /** Size of file header in bytes. */
+    private static final int HEADER_SIZE = 20;
+
+    /** Default number of segments. */
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+    /** Size of slot metadata preceding variable-length fields. */
+    private static final int SLOT_OVERHEAD = 14;
+
+    /** Slot state: never used. */
+    private static final byte EMPTY = 0;
+
+    /** Slot state: holds a ticket. */
+    private static final byte LIVE = 1;
+
+    /** Slot state: ticket removed. */
+    private static final byte REMOVED = 2;
+
+    /** Map of ticket classes to type codes. */
+    private static final Map<Class<? extends Ticket>, Byte> TYPE_MAP = new HashMap<>();
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(MappedTicketService.class);
+
+    /** Map of ticket classes to serializers. */
+    private final Map<Class<? extends Ticket>, AbstractTicketSerializer<? extends Ticket>> serializerMap =
+            new HashMap<>();
+
+    /** Path to backing file. */
+    @Nonnull private final File file;
+
+    /** Number of slots. */
+    @Positive private int capacity = DEFAULT_CAPACITY;
+
+    /** Size of a slot in bytes. */
+    @Positive private int slotSize = DEFAULT_SLOT_SIZE;
+
+    /** Number of segments. */
+    @Positive private int concurrencyLevel = DEFAULT_CONCURRENCY_LEVEL;
+
+    /** Backing file, kept open while the instance is attached. */
+    private RandomAccessFile storeFile;
+
+    /** Exclusive lock on the backing file. */
+    private FileLock fileLock;
+
+    /** Mapped table. */
+    private MappedByteBuffer buffer;
+
+    /** Table segments. */
+    private Segment[] segments;
+
+    /** Initialization flag. */
+    private boolean initialized;
+
+    /** Destruction flag. */
+    private boolean destroyed;
+
+    static {
+        TYPE_MAP.put(ServiceTicket.class, (byte) 1);
+        TYPE_MAP.put(ProxyTicket.class, (byte) 2);
+        TYPE_MAP.put(ProxyGrantingTicket.class, (byte) 3);
+    }
+
+
+    /**
+     * Creates a new instance.
+     *
+     * @param file File that backs the ticket store; created if it does not exist.
+     * @param serviceTicketConfiguration Service ticket configuration.
+     * @param proxyGrantingTicketConfiguration Proxy-granting ticket configuration.
+     * @param proxyTicketConfiguration Proxy ticket configuration.
+     */
+    public MappedTicketService(
+            @Nonnull final File file,
+            @Nonnull final ServiceTicketConfiguration serviceTicketConfiguration,
+            @Nonnull final ProxyGrantingTicketConfiguration proxyGrantingTicketConfiguration,
+            @Nonnull final ProxyTicketConfiguration proxyTicketConfiguration) {
+        super(serviceTicketConfiguration, proxyGrantingTicketConfiguration, proxyTicketConfiguration);
+        this.file = Constraint.isNotNull(file, "File cannot be null.");
+        serializerMap.put(ServiceTicket.class, new ServiceTicketSerializer());
+        serializerMap.put(ProxyTicket.class, new ProxyTicketSerializer());
+        serializerMap.put(ProxyGrantingTicket.class, new ProxyGrantingTicketSerializer());
+    }
+
+    /**
+     * Sets whether tickets are written in the compact binary form rather than the legacy delimited form. Both forms
+     * are always read, so this should only be enabled once no older version will reattach the file.
+     *
+     * @param binary True to write the binary form, false to write the legacy form. Default is false.
+     */
+    public void setWriteBinaryTickets(final boolean binary) {
+        for (final AbstractTicketSerializer<? extends Ticket> serializer : serializerMap.values()) {
+            serializer.setWriteBinary(binary);
+        }
+    }
+
+    /**
+     * Sets the maximum number of tickets the store can hold. Has no effect when reattaching an existing file.
+     *
+     * @param slots Number of slots.
+     */
+    public void setCapacity(@Positive final int slots) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        capacity = (int) Constraint.isGreaterThan(0, slots, "Capacity must be positive.");
+    }
+
+    /**
+     * Sets the size of a ticket slot, which bounds the combined length of ticket ID, session ID, and service URL.
+     * Has no effect when reattaching an existing file.
+     *
+     * @param bytes Slot size in bytes.
+     */
+    public void setSlotSize(@Positive final int bytes) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        slotSize = (int) Constraint.isGreaterThan(SLOT_OVERHEAD, bytes, "Slot size too small.");
+    }
+
+    /**
+     * Sets the number of independently locked segments of the table. Has no effect when reattaching an existing
+     * file.
+     *
+     * @param level Number of segments; limited to the capacity.
+     */
+    public void setConcurrencyLevel(@Positive final int level) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        concurrencyLevel = (int) Constraint.isGreaterThan(0, level, "Concurrency level must be positive.");
+    }
+
+    @Override
+    public void initialize() throws ComponentInitializationException {
+        if (initialized) {
+            return;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            try {
+                fileLock = raf.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                fileLock = null;
+            }
+            if (fileLock == null) {
+                throw new ComponentInitializationException(file + " is attached by another ticket service");
+            }
+            if (raf.length() >= HEADER_SIZE) {
+                final int magic = raf.readInt();
+                final int version = raf.readInt();
+                if (magic != MAGIC || version != VERSION) {
+                    throw new ComponentInitializationException(file + " is not a compatible ticket store");
+                }
+                capacity = raf.readInt();
+                slotSize = raf.readInt();
+                concurrencyLevel = raf.readInt();
+                log.info("Reattaching ticket store {} with {} slots", file, capacity);
+            } else {
+                concurrencyLevel = Math.min(concurrencyLevel, capacity);
+                log.info("Creating ticket store {} with {} slots", file, capacity);
+            }
+            final long size = HEADER_SIZE + (long) capacity * slotSize;
+            if (size > Integer.MAX_VALUE) {
+                throw new ComponentInitializationException("Ticket store size exceeds 2GB");
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, capacity);
+            buffer.putInt(12, slotSize);
+            buffer.putInt(16, concurrencyLevel);
+            storeFile = raf;
+        } catch (IOException e) {
+            throw new ComponentInitializationException("Error mapping " + file, e);
+        } finally {
+            if (storeFile == null) {
+                fileLock = null;
+                closeQuietly(raf);
+            }
+        }
+        segments = new Segment[concurrencyLevel];
+        for (int i = 0; i < concurrencyLevel; i++) {
+            final int start = (int) ((long) i * capacity / concurrencyLevel);
+            final int end = (int) ((long) (i + 1) * capacity / concurrencyLevel);
+            segments[i] = new Segment(start, end - start);
+            for (int slot = start; slot < end; slot++) {
+                if (buffer.get(offset(slot)) != EMPTY) {
+                    segments[i].used++;
+                }
+            }
+        }
+        initialized = true;
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    @Override
+    public void destroy() {
+        if (segments != null) {
+            for (final Segment segment : segments) {
+                segment.lock.writeLock().lock();
+            }
+        }
+        try {
+            if (buffer != null) {
+                buffer.force();
+            }
+            if (storeFile != null) {
+                // Closing the file releases the lock so the file can be attached again
+                closeQuietly(storeFile);
+                storeFile = null;
+                fileLock = null;
+            }
+            destroyed = true;
+        } finally {
+            if (segments != null) {
+                for (final Segment segment : segments) {
+                    segment.lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isDestroyed() {
+        return destroyed;
+    }
+
+    /**
+     * Closes a file, logging rather than propagating any error.
+     *
+     * @param raf File to close; may be null.
+     */
+    private void closeQuietly(@Nullable final RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                log.warn("Error closing {}", file, e);
+            }
+        }
+    }
+
+    @Override
+    protected <T extends Ticket> void store(@Nonnull final T ticket) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        log.debug("Storing {}", ticket);
+        final byte[] id = ticket.getId().getBytes(StandardCharsets.UTF_8);
+        final byte[] value;
+        try {
+            value = serializer((Class<T>) ticket.getClass()).serialize(ticket).getBytes(StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to store ticket " + ticket, e);
+        }
+        if (SLOT_OVERHEAD + id.length + value.length > slotSize) {
+            throw new RuntimeException("Ticket " + ticket + " exceeds slot size of " + slotSize);
+        }
+        final long now = System.currentTimeMillis();
+        final int hash = hash(ticket.getId());
+        final Segment segment = segmentFor(hash);
+        segment.lock.writeLock().lock();
+        try {
+            if (segment.used >= segment.compactAt) {
+                compact(segment, now);
+            }
+            int free = -1;
+            int slot = segment.home(hash);
+            for (int i = 0; i < segment.length; i++, slot = segment.next(slot)) {
+                final byte state = buffer.get(offset(slot));
+                if (state == EMPTY) {
+                    if (free < 0) {
+                        free = slot;
+                    }
+                    break;
+                }
+                final boolean expired = buffer.getLong(offset(slot) + 2) <= now;
+                if (state == LIVE && !expired && idEquals(slot, id)) {
+                    throw new RuntimeException("Failed to store ticket " + ticket);
+                }
+                if (free < 0 && (state == REMOVED || expired)) {
+                    free = slot;
+                }
+            }
+            if (free < 0) {
+                throw new RuntimeException("Ticket store is full");
+            }
+            final int offset = offset(free);
+            final byte state = buffer.get(offset);
+            if (state == EMPTY) {
+                segment.used++;
+            } else if (state == LIVE) {
+                // Retire the expired ticket before overwriting it so its ID never pairs with new contents
+                buffer.put(offset, REMOVED);
+            }
+            final ByteBuffer b = slice(free);
+            b.position(offset + 1);
+            b.put(TYPE_MAP.get(ticket.getClass()));
+            b.putLong(ticket.getExpirationInstant().getMillis());
+            b.putShort((short) id.length);
+            b.put(id);
+            b.putShort((short) value.length);
+            b.put(value);
+            buffer.put(offset, LIVE);
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    protected <T extends Ticket> T read(@Nonnull final String id, @Nonnull final Class<T> clazz) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        log.debug("Reading {}", id);
+        final int hash = hash(id);
+        final Segment segment = segmentFor(hash);
+        segment.lock.readLock().lock();
+        try {
+            final int slot = find(segment, hash, id, clazz);
+            if (slot < 0) {
+                log.debug("{} not found", id);
+                return null;
+            }
+            return decode(slot, id, clazz);
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    protected <T extends Ticket> T delete(@Nonnull final String id, @Nonnull final Class<T> clazz) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        log.debug("Deleting {}", id);
+        final int hash = hash(id);
+        final Segment segment = segmentFor(hash);
+        segment.lock.writeLock().lock();
+        try {
+            final int slot = find(segment, hash, id, clazz);
+            if (slot < 0) {
+                log.debug("{} not found", id);
+                return null;
+            }
+            final T ticket = decode(slot, id, clazz);
+            buffer.put(offset(slot), REMOVED);
+            if (buffer.get(offset(segment.next(slot))) == EMPTY) {
+                // No probe sequence continues past this slot, so it and any dead slots before it are unused again
+                final long now = System.currentTimeMillis();
+                for (int i = slot, n = 0; n < segment.length && isDead(i, now); i = segment.previous(i), n++) {
+                    buffer.put(offset(i), EMPTY);
+                    segment.used--;
+                }
+            }
+            log.debug("Deleted ticket {}", id);
+            return ticket;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns every removed or expired slot of a segment to the unused state and moves live tickets that thereby
+     * became unreachable from their home slot back towards it. Caller must hold the segment write lock.
+     *
+     * @param segment Segment to compact.
+     * @param now Current time in milliseconds since the epoch.
+     */
+    private void compact(final Segment segment, final long now) {
+        int live = 0;
+        for (int i = 0, slot = segment.start; i < segment.length; i++, slot++) {
+            if (isDead(slot, now)) {
+                buffer.put(offset(slot), EMPTY);
+            } else if (buffer.get(offset(slot)) == LIVE) {
+                live++;
+            }
+        }
+        // Every move strictly shortens the probe distance of a ticket, so this terminates, and once no ticket can
+        // move closer to its home slot, none has an unused slot on its probe path
+        boolean moved;
+        do {
+            moved = false;
+            for (int i = 0, slot = segment.start; i < segment.length; i++, slot++) {
+                if (buffer.get(offset(slot)) != LIVE) {
+                    continue;
+                }
+                int target = segment.home(hash(readId(slot)));
+                while (target != slot && buffer.get(offset(target)) != EMPTY) {
+                    target = segment.next(target);
+                }
+                if (target != slot) {
+                    final ByteBuffer from = slice(slot);
+                    from.limit(offset(slot) + slotSize);
+                    from.position(offset(slot) + 1);
+                    final ByteBuffer to = slice(target);
+                    to.position(offset(target) + 1);
+                    to.put(from);
+                    buffer.put(offset(target), LIVE);
+                    buffer.put(offset(slot), EMPTY);
+                    moved = true;
+                }
+            }
+        } while (moved);
+        segment.used = live;
+        // Leave room for further insertions before compacting again, even if most slots hold live tickets
+        segment.compactAt = Math.max(segment.threshold(), live + Math.max(1, segment.length / 8));
+        log.debug("Compacted ticket store segment at slot {} to {} live tickets", segment.start, live);
+    }
+
+    private boolean isDead(final int slot, final long now) {
+        final byte state = buffer.get(offset(slot));
+        return state == REMOVED || state == LIVE && buffer.getLong(offset(slot) + 2) <= now;
+    }
+
+    /**
+     * Finds the slot holding the live, unexpired ticket of the given ID and type. Caller must hold the segment lock.
+     *
+     * @param segment Segment of the ticket.
+     * @param hash Hash of the ticket ID.
+     * @param id Ticket ID.
+     * @param clazz Ticket type.
+     *
+     * @return Slot number or -1 if not found.
+     */
+    private int find(final Segment segment, final int hash, final String id, final Class<? extends Ticket> clazz) {
+        final byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        final long now = System.currentTimeMillis();
+        int slot = segment.home(hash);
+        for (int i = 0; i < segment.length; i++, slot = segment.next(slot)) {
+            final int offset = offset(slot);
+            final byte state = buffer.get(offset);
+            if (state == EMPTY) {
+                return -1;
+            }
+            if (state == LIVE && idEquals(slot, idBytes)) {
+                if (buffer.get(offset + 1) != TYPE_MAP.get(clazz) || buffer.getLong(offset + 2) <= now) {
+                    return -1;
+                }
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private <T extends Ticket> T decode(final int slot, final String id, final Class<T> clazz) {
+        final ByteBuffer b = slice(slot);
+        b.position(b.position() + 10);
+        final int idLength = b.getShort() & 0xffff;
+        b.position(b.position() + idLength);
+        final byte[] value = new byte[b.getShort() & 0xffff];
+        b.get(value);
+        try {
+            return serializer(clazz).deserialize(
+                    VERSION, clazz.getSimpleName(), id, new String(value, StandardCharsets.UTF_8), null);
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading ticket " + id, e);
+        }
+    }
+
+    private boolean idEquals(final int slot, final byte[] id) {
+        final ByteBuffer b = slice(slot);
+        b.position(b.position() + 10);
+        final int length = b.getShort() & 0xffff;
+        if (length != id.length) {
+            return false;
+        }
+        final byte[] stored = new byte[length];
+        b.get(stored);
+        return Arrays.equals(stored, id);
+    }
+
+    private String readId(final int slot) {
+        final ByteBuffer b = slice(slot);
+        b.position(b.position() + 10);
+        final byte[] id = new byte[b.getShort() & 0xffff];
+        b.get(id);
+        return new String(id, StandardCharsets.UTF_8);
+    }
+
+    private ByteBuffer slice(final int slot) {
+        final ByteBuffer b = buffer.duplicate();
+        b.position(offset(slot));
+        return b;
+    }
+
+    private int offset(final int slot) {
+        return HEADER_SIZE + slot * slotSize;
+    }
+
+    private Segment segmentFor(final int hash) {
+        return segments[hash % segments.length];
+    }
+
+    private static int hash(final String id) {
+        // String.hashCode() is specified by the JLS, hence stable across restarts
+        final int h = id.hashCode();
+        return (h ^ (h >>> 16)) & 0x7fffffff;
+    }
+
+    private <T extends Ticket> AbstractTicketSerializer<T> serializer(final Class<T> clazz) {
+        return (AbstractTicketSerializer<T>) serializerMap.get(clazz);
+    }
+
+    /** Contiguous range of slots forming an independent hash table with its own lock. */
+    private static final class Segment {
+
+        /** Guards the slots of the segment. */
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        /** First slot. */
+        private final int start;
+
+        /** Number of slots. */
+        private final int length;
+
+        /** Number of slots not in the unused state. */
+        private int used;
+
+        /** Value of {@link #used} at which the segment is compacted before the next insertion. */
+        private int compactAt;
+
+        /**
+         * Creates a new segment.
+         *
+         * @param first First slot.
+         * @param slots Number of slots.
+         */
+        Segment(final int first, final int slots) {
+            start = first;
+            length = slots;
+            compactAt = threshold();
+        }
+
+        /** @return Number of used slots at which compaction is due when there are few live tickets. */
+        int threshold() {
+            return Math.max(1, length * 3 / 4);
+        }
+
+        /**
+         * Gets the slot at which probing for a hash starts.
+         *
+         * @param hash Non-negative hash of a ticket ID.
+         *
+         * @return Home slot.
+         */
+        int home(final int hash) {
+            return start + ((hash * 0x9E3779B9) >>> 1) % length;
+        }
+
+        /**
+         * Gets the slot following the given one in probe order.
+         *
+         * @param slot Slot within the segment.
+         *
+         * @return Next slot, wrapping around to the first slot of the segment.
+         */
+        int next(final int slot) {
+            return slot + 1 == start + length ? start : slot + 1;
+        }
+
+        /**
+         * Gets the slot preceding the given one in probe order.
+         *
+         * @param slot Slot within the segment.
+         *
+         * @return Previous slot, wrapping around to the last slot of the segment.
+         */
+        int previous(final int slot) {
+            return slot == start ? start + length - 1 : slot - 1;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.ticket;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.idp.cas.config.ProxyGrantingTicketConfiguration;
+import net.shibboleth.idp.cas.config.ProxyTicketConfiguration;
+import net.shibboleth.idp.cas.config.ServiceTicketConfiguration;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.component.DestructableComponent;
+import net.shibboleth.utilities.java.support.component.InitializableComponent;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ticket service that holds ticket objects directly in a lock-striped concurrent hash map. There is no serialization
+ * step, and expired tickets are reclaimed incrementally by a hierarchical timing wheel instead of a periodic sweep of
+ * the whole store. Tickets do not survive a restart and are not shared between nodes, so this component is only
+ * suitable for single-node deployments or deployments with sticky sessions on both front- and back-channel.
+ */
+public class MemoryTicketService extends AbstractTicketService
+        implements InitializableComponent, DestructableComponent {
+
+    /** Default timing wheel tick in milliseconds. */
+    private static final long DEFAULT_TICK = 1000;
+
+    /** Default number of map stripes. */
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 64;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(MemoryTicketService.class);
+
+    /** Handler that removes expired tickets from the map. */
+    private final TimingWheel.ExpirationHandler reaper = new TimingWheel.ExpirationHandler() {
+        @Override
+        public void expire(@Nonnull final Ticket ticket) {
+            // Conditional removal leaves alone a newer ticket that happens to reuse the ID
+            if (tickets.remove(ticket.getId(), ticket)) {
+                log.trace("Expired {}", ticket);
+            }
+        }
+    };
+
+    /** Map of ticket ID to ticket. */
+    private ConcurrentMap<String, Ticket> tickets;
+
+    /** Schedules ticket expiration. */
+    private TimingWheel wheel;
+
+    /** Drives the timing wheel. */
+    private Timer timer;
+
+    /** Timing wheel tick in milliseconds. */
+    @Duration @Positive private long tickInterval = DEFAULT_TICK;
+
+    /** Estimated number of concurrently updating threads. */
+    @Positive private int concurrencyLevel = DEFAULT_CONCURRENCY_LEVEL;
+
+    /** Initialization flag. */
+    private boolean initialized;
+
+    /** Destruction flag. */
+    private boolean destroyed;
+
+
+    /**
+     * Creates a new instance.
+     *
+     * @param serviceTicketConfiguration Service ticket configuration.
+     * @param proxyGrantingTicketConfiguration Proxy-granting ticket configuration.
+     * @param proxyTicketConfiguration Proxy ticket configuration.
+     */
+    public MemoryTicketService(
+            @Nonnull final ServiceTicketConfiguration serviceTicketConfiguration,
+            @Nonnull final ProxyGrantingTicketConfiguration proxyGrantingTicketConfiguration,
+            @Nonnull final ProxyTicketConfiguration proxyTicketConfiguration) {
+        super(serviceTicketConfiguration, proxyGrantingTicketConfiguration, proxyTicketConfiguration);
+    }
+
+    /**
+     * Sets the resolution of ticket expiration. Expired tickets are reclaimed at most one tick after they expire.
+     *
+     * @param millis Timing wheel tick in milliseconds.
+     */
+    public void setTickInterval(@Duration @Positive final long millis) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        tickInterval = Constraint.isGreaterThan(0, millis, "Tick interval must be positive.");
+    }
+
+    /**
+     * Sets the estimated number of threads concurrently updating the store, which determines map striping.
+     *
+     * @param level Concurrency level.
+     */
+    public void setConcurrencyLevel(@Positive final int level) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        concurrencyLevel = (int) Constraint.isGreaterThan(0, level, "Concurrency level must be positive.");
+    }
+
+    @Override
+    public void initialize() throws ComponentInitializationException {
+        if (initialized) {
+            return;
+        }
+        tickets = new ConcurrentHashMap<>(1024, 0.75f, concurrencyLevel);
+        wheel = new TimingWheel(tickInterval, System.currentTimeMillis());
+        timer = new Timer("CAS ticket expiration", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                reclaimExpired(System.currentTimeMillis());
+            }
+        }, tickInterval, tickInterval);
+        initialized = true;
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    @Override
+    public void destroy() {
+        if (timer != null) {
+            timer.cancel();
+        }
+        destroyed = true;
+    }
+
+    @Override
+    public boolean isDestroyed() {
+        return destroyed;
+    }
+
+    /**
+     * Advances the timing wheel to the given time, reclaiming every ticket that expired in the meantime. This is
+     * invoked on every tick by the expiration timer, which MUST be the only caller outside of tests.
+     *
+     * @param nowMillis Current time in milliseconds since the epoch.
+     */
+    void reclaimExpired(final long nowMillis) {
+        wheel.advance(nowMillis, reaper);
+    }
+
+    /** @return Number of tickets currently held, including expired tickets not yet reclaimed. */
+    public int size() {
+        return tickets.size();
+    }
+
+    @Override
+    protected <T extends Ticket> void store(@Nonnull final T ticket) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        log.debug("Storing {}", ticket);
+        if (tickets.putIfAbsent(ticket.getId(), ticket) != null) {
+            throw new RuntimeException("Failed to store ticket " + ticket);
+        }
+        wheel.schedule(ticket);
+    }
+
+    @Override
+    @Nullable
+    protected <T extends Ticket> T read(@Nonnull final String id, @Nonnull final Class<T> clazz) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        log.debug("Reading {}", id);
+        final Ticket ticket = tickets.get(id);
+        if (!clazz.isInstance(ticket) || ticket.getExpirationInstant().isBeforeNow()) {
+            log.debug("{} not found", id);
+            return null;
+        }
+        return clazz.cast(ticket);
+    }
+
+    @Override
+    @Nullable
+    protected <T extends Ticket> T delete(@Nonnull final String id, @Nonnull final Class<T> clazz) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        log.debug("Deleting {}", id);
+        final Ticket ticket = tickets.get(id);
+        if (!clazz.isInstance(ticket) || !tickets.remove(id, ticket)) {
+            log.debug("{} not found", id);
+            return null;
+        }
+        if (ticket.getExpirationInstant().isBeforeNow()) {
+            log.debug("{} expired", id);
+            return null;
+        }
+        log.debug("Deleted ticket {}", id);
+        return clazz.cast(ticket);
+    }
+}
@@ -4,9 +4,14 @@
 
 package net.shibboleth.idp.cas.ticket;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.primitive.StringSupport;
 import org.joda.time.Instant;
 
@@ -20,6 +25,9 @@ public class ProxyGrantingTicket extends Ticket {
     /** The ID of the parent proxy-granting ticket. */
     @Nullable String parentId;
 
+    /** Services of ancestor proxy-granting tickets, nearest first, or null if unknown. */
+    @Nullable private final List<String> proxyChain;
+
     /**
      * Creates a proxy-granting ticket with the given values.
      *
@@ -35,14 +43,63 @@ public class ProxyGrantingTicket extends Ticket {
             @Nonnull final String service,
             @Nonnull final Instant expiration,
             @Nullable final String parentId) {
+        this(id, sessionId, service, expiration, parentId, null);
+    }
+
+    /**
+     * Creates a proxy-granting ticket with the given values, including the services of its ancestors.
+     *
+     * @param id Ticket ID.
+     * @param sessionId IdP session ID used to create ticket.
+     * @param service Service that requested the ticket.
+     * @param expiration Expiration instant.
+     * @param parentId ID of parent proxy-granting ticket or null if this is first proxy in chain.
+     * @param proxyChain Services of ancestor proxy-granting tickets, nearest first, or null if unknown. Ignored if
+     *                   this ticket has no parent.
+     */
+    public ProxyGrantingTicket(
+            @Nonnull final String id,
+            @Nonnull final String sessionId,
+            @Nonnull final String service,
+            @Nonnull final Instant expiration,
+            @Nullable final String parentId,
+            @Nullable @NonnullElements final List<String> proxyChain) {
         super(id, sessionId, service, expiration);
         this.parentId = StringSupport.trimOrNull(parentId);
+        if (this.parentId == null) {
+            this.proxyChain = Collections.emptyList();
+        } else if (proxyChain != null) {
+            this.proxyChain = Collections.unmodifiableList(new ArrayList<>(proxyChain));
+        } else {
+            this.proxyChain = null;
+        }
     }
 
     @Nullable public String getParentId() {
         return parentId;
     }
 
+    /**
+     * Gets the services of the ancestors of this proxy-granting ticket, starting with its parent and ending with
+     * the root of the proxy chain. The list is empty for a root ticket, and null for a ticket stored before the
+     * chain was recorded, whose ancestors must be fetched one at a time.
+     *
+     * @return Ancestor services, nearest first, or null if unknown.
+     */
+    @Nullable @NonnullElements public List<String> getProxyChain() {
+        return proxyChain;
+    }
+
+    /**
+     * Gets the depth of this ticket in its proxy chain, which is the number of proxies that a proxy ticket issued
+     * from this ticket is validated with.
+     *
+     * @return Depth of 1 for a root ticket, or -1 if unknown.
+     */
+    public int getProxyChainDepth() {
+        return proxyChain != null ? proxyChain.size() + 1 : -1;
+    }
+
     /**
      * Determines whether this proxy-granting ticket is the root of a proxy chain.
      *
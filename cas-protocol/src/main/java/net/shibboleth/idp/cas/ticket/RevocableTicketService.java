@@ -0,0 +1,39 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.ticket;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Ticket service that indexes tickets by the IdP session in which they were created, and sessions by principal,
+ * such that all outstanding tickets of a session or principal can be removed at once.
+ */
+public interface RevocableTicketService extends TicketService {
+    /**
+     * Records that the given IdP session belongs to the given principal.
+     *
+     * @param principalName Principal name.
+     * @param sessionId IdP session ID.
+     */
+    void indexSession(@Nonnull String principalName, @Nonnull String sessionId);
+
+    /**
+     * Removes all outstanding tickets created in the given IdP session.
+     *
+     * @param sessionId IdP session ID.
+     *
+     * @return Number of tickets removed.
+     */
+    int removeTicketsForSession(@Nonnull String sessionId);
+
+    /**
+     * Removes all outstanding tickets created in any indexed IdP session of the given principal.
+     *
+     * @param principalName Principal name.
+     *
+     * @return Number of tickets removed.
+     */
+    int removeTicketsForPrincipal(@Nonnull String principalName);
+}
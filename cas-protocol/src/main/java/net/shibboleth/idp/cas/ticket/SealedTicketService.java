@@ -0,0 +1,327 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.ticket;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import net.shibboleth.idp.cas.config.AbstractTicketConfiguration;
+import net.shibboleth.idp.cas.config.ProxyTicketConfiguration;
+import net.shibboleth.idp.cas.config.ServiceTicketConfiguration;
+import net.shibboleth.idp.cas.ticket.serialization.AbstractTicketSerializer;
+import net.shibboleth.idp.cas.ticket.serialization.ProxyTicketSerializer;
+import net.shibboleth.idp.cas.ticket.serialization.ServiceTicketSerializer;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.security.IdentifierGenerationStrategy;
+import net.shibboleth.utilities.java.support.security.DataSealer;
+import net.shibboleth.utilities.java.support.security.DataSealerException;
+import org.joda.time.DateTime;
+import org.opensaml.storage.ReplayCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ticket service that issues stateless service and proxy tickets. The ticket identifier is the ticket itself: the
+ * session ID, a hash of the service URL, expiration, and renew flag (or PGT ID for proxy tickets) are sealed with the
+ * IdP {@link DataSealer} and rendered URL-safe after the usual <code>ST-</code> or <code>PT-</code> prefix. Sealing a
+ * hash rather than the URL keeps ticket IDs well within the 256 characters CAS clients are expected to accept. Since
+ * the URL is not recoverable from the ticket, tickets removed from this service carry the hash as their service, and
+ * the service a ticket is validated for must be checked and bound to it by {@link #bindService(Ticket, String)}.
+ * <p>
+ * Validation unseals and verifies the ticket locally; single use is enforced by a {@link ReplayCache} that records
+ * consumed tickets only until they expire. No storage write occurs on ticket issuance. Single use holds only as far
+ * as the replay cache is shared: with the default replay cache, which is backed by node-local storage, a ticket may
+ * be redeemed once on each node of a cluster, so clustered deployments must give the replay cache a storage service
+ * shared by all nodes.
+ * <p>
+ * If the ID generator of the service or proxy ticket configuration is a {@link TicketIdentifierGenerationStrategy}
+ * with tagging enabled, sealed ticket IDs carry its tag as well, so that they pass the tag check performed before
+ * validation.
+ * <p>
+ * Proxy-granting tickets are long-lived and must be revocable, so all PGT operations are delegated to another
+ * ticket service.
+ */
+public class SealedTicketService implements TicketService {
+
+    /** Service ticket prefix. */
+    public static final String SERVICE_TICKET_PREFIX = "ST-";
+
+    /** Proxy ticket prefix. */
+    public static final String PROXY_TICKET_PREFIX = "PT-";
+
+    /** Leading character of the service URL hash sealed in place of the URL. */
+    private static final char SERVICE_HASH_MARKER = '#';
+
+    /** Number of hash bytes sealed in place of the service URL. */
+    private static final int SERVICE_HASH_LENGTH = 16;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(SealedTicketService.class);
+
+    /** Seals and unseals ticket contents. */
+    @Nonnull private final DataSealer dataSealer;
+
+    /** Records consumed tickets. */
+    @Nonnull private final ReplayCache replayCache;
+
+    /** Handles proxy-granting tickets. */
+    @Nonnull private final TicketService pgtDelegate;
+
+    @Nonnull private final ServiceTicketConfiguration serviceTicketConfiguration;
+
+    @Nonnull private final ProxyTicketConfiguration proxyTicketConfiguration;
+
+    @Nonnull private final ServiceTicketSerializer serviceTicketSerializer = new ServiceTicketSerializer();
+
+    @Nonnull private final ProxyTicketSerializer proxyTicketSerializer = new ProxyTicketSerializer();
+
+
+    /**
+     * Creates a new instance.
+     *
+     * @param sealer IdP data sealer used to protect ticket contents.
+     * @param replayCache Replay cache used to enforce single use of tickets.
+     * @param pgtDelegate Ticket service that manages proxy-granting tickets.
+     * @param serviceTicketConfiguration Service ticket configuration.
+     * @param proxyTicketConfiguration Proxy ticket configuration.
+     */
+    public SealedTicketService(
+            @Nonnull final DataSealer sealer,
+            @Nonnull final ReplayCache replayCache,
+            @Nonnull final TicketService pgtDelegate,
+            @Nonnull final ServiceTicketConfiguration serviceTicketConfiguration,
+            @Nonnull final ProxyTicketConfiguration proxyTicketConfiguration) {
+        this.dataSealer = Constraint.isNotNull(sealer, "DataSealer cannot be null.");
+        this.replayCache = Constraint.isNotNull(replayCache, "ReplayCache cannot be null.");
+        this.pgtDelegate = Constraint.isNotNull(pgtDelegate, "PGT delegate cannot be null.");
+        this.serviceTicketConfiguration = Constraint.isNotNull(
+                serviceTicketConfiguration, "ServiceTicketConfiguration cannot be null.");
+        this.proxyTicketConfiguration = Constraint.isNotNull(
+                proxyTicketConfiguration, "ProxyTicketConfiguration cannot be null.");
+    }
+
+    /**
+     * Sets whether ticket contents are sealed in the compact binary form rather than the legacy delimited form. Both
+     * forms are always read, so this should only be enabled once every node validating tickets reads the binary
+     * form.
+     *
+     * @param binary True to write the binary form, false to write the legacy form. Default is false.
+     */
+    public void setWriteBinaryTickets(final boolean binary) {
+        serviceTicketSerializer.setWriteBinary(binary);
+        proxyTicketSerializer.setWriteBinary(binary);
+    }
+
+    @Nonnull
+    @Override
+    public ServiceTicket createServiceTicket(
+            @Nonnull final String sessionId, @Nonnull final String service, final boolean renew) {
+        Constraint.isNotNull(sessionId, "Session ID cannot be null");
+        Constraint.isNotNull(service, "Service cannot be null");
+        final ServiceTicket template = new ServiceTicket(
+                SERVICE_TICKET_PREFIX,
+                sessionId,
+                hashService(service),
+                DateTime.now().plus(serviceTicketConfiguration.getTicketValidityPeriod()).toInstant(),
+                renew);
+        final ServiceTicket st = new ServiceTicket(
+                seal(SERVICE_TICKET_PREFIX, template, serviceTicketSerializer, serviceTicketConfiguration),
+                sessionId,
+                service,
+                template.getExpirationInstant(),
+                renew);
+        log.debug("Generated ticket {}", st);
+        return st;
+    }
+
+    @Nullable
+    @Override
+    public ServiceTicket removeServiceTicket(@Nonnull final String id) {
+        Constraint.isNotNull(id, "Id cannot be null");
+        return consume(id, SERVICE_TICKET_PREFIX, serviceTicketSerializer, serviceTicketConfiguration);
+    }
+
+    @Nonnull
+    @Override
+    public ProxyGrantingTicket createProxyGrantingTicket(
+            @Nonnull final ServiceTicket serviceTicket, @Nonnull final String pgtId) {
+        return pgtDelegate.createProxyGrantingTicket(serviceTicket, pgtId);
+    }
+
+    @Nonnull
+    @Override
+    public ProxyGrantingTicket createProxyGrantingTicket(
+            @Nonnull final ProxyTicket proxyTicket, @Nonnull final String pgtId) {
+        return pgtDelegate.createProxyGrantingTicket(proxyTicket, pgtId);
+    }
+
+    @Nullable
+    @Override
+    public ProxyGrantingTicket fetchProxyGrantingTicket(@Nonnull final String id) {
+        return pgtDelegate.fetchProxyGrantingTicket(id);
+    }
+
+    @Nullable
+    @Override
+    public ProxyGrantingTicket removeProxyGrantingTicket(@Nonnull final String id) {
+        return pgtDelegate.removeProxyGrantingTicket(id);
+    }
+
+    @Nonnull
+    @Override
+    public ProxyTicket createProxyTicket(@Nonnull final ProxyGrantingTicket pgt, @Nonnull final String service) {
+        Constraint.isNotNull(pgt, "ProxyGrantingTicket cannot be null");
+        Constraint.isNotNull(service, "Service cannot be null");
+        final ProxyTicket template = new ProxyTicket(
+                PROXY_TICKET_PREFIX,
+                pgt.getSessionId(),
+                hashService(service),
+                DateTime.now().plus(proxyTicketConfiguration.getTicketValidityPeriod()).toInstant(),
+                pgt.getId());
+        final ProxyTicket pt = new ProxyTicket(
+                seal(PROXY_TICKET_PREFIX, template, proxyTicketSerializer, proxyTicketConfiguration),
+                pgt.getSessionId(),
+                service,
+                template.getExpirationInstant(),
+                pgt.getId());
+        log.debug("Generated ticket {}", pt);
+        return pt;
+    }
+
+    @Nullable
+    @Override
+    public ProxyTicket removeProxyTicket(@Nonnull final String id) {
+        Constraint.isNotNull(id, "Id cannot be null");
+        return consume(id, PROXY_TICKET_PREFIX, proxyTicketSerializer, proxyTicketConfiguration);
+    }
+
+    /**
+     * Binds a ticket removed from this service to the service URL it is validated for, provided the ticket was
+     * issued for that service. Service URLs are compared ignoring case.
+     *
+     * @param ticket Service or proxy ticket removed from this service.
+     * @param service Service URL the ticket is presented for.
+     *
+     * @return Copy of the ticket carrying the given service URL, or null if the ticket was issued for another service.
+     */
+    @Nullable
+    public Ticket bindService(@Nonnull final Ticket ticket, @Nonnull final String service) {
+        Constraint.isNotNull(ticket, "Ticket cannot be null");
+        Constraint.isNotNull(service, "Service cannot be null");
+        final String issuedFor = ticket.getService();
+        final boolean matches = !issuedFor.isEmpty() && issuedFor.charAt(0) == SERVICE_HASH_MARKER
+                ? issuedFor.equals(hashService(service)) : issuedFor.equalsIgnoreCase(service);
+        if (!matches) {
+            return null;
+        }
+        if (ticket instanceof ServiceTicket) {
+            return new ServiceTicket(ticket.getId(), ticket.getSessionId(), service, ticket.getExpirationInstant(),
+                    ((ServiceTicket) ticket).isRenew());
+        } else if (ticket instanceof ProxyTicket) {
+            return new ProxyTicket(ticket.getId(), ticket.getSessionId(), service, ticket.getExpirationInstant(),
+                    ((ProxyTicket) ticket).getPgtId());
+        }
+        return ticket;
+    }
+
+    private <T extends Ticket> String seal(
+            final String prefix,
+            final T template,
+            final AbstractTicketSerializer<T> serializer,
+            final AbstractTicketConfiguration config) {
+        final String id;
+        try {
+            id = prefix + toUrlSafe(
+                    dataSealer.wrap(serializer.serialize(template), template.getExpirationInstant().getMillis()));
+        } catch (IOException | DataSealerException e) {
+            throw new RuntimeException("Failed to seal ticket", e);
+        }
+        final TicketIdentifierGenerationStrategy generator = getTicketIdGenerator(config);
+        return generator != null ? generator.tagIdentifier(id) : id;
+    }
+
+    @Nullable
+    private <T extends Ticket> T consume(
+            final String id,
+            final String prefix,
+            final AbstractTicketSerializer<T> serializer,
+            final AbstractTicketConfiguration config) {
+        if (!id.startsWith(prefix)) {
+            log.debug("{} is not a sealed ticket", id);
+            return null;
+        }
+        final TicketIdentifierGenerationStrategy generator = getTicketIdGenerator(config);
+        final String sealed = generator != null ? generator.untagIdentifier(id) : id;
+        final T ticket;
+        try {
+            ticket = serializer.deserialize(
+                    0, prefix, id, dataSealer.unwrap(fromUrlSafe(sealed.substring(prefix.length()))), null);
+        } catch (DataSealerException | IOException | RuntimeException e) {
+            log.debug("Failed unsealing {}: {}", id, e.getMessage());
+            return null;
+        }
+        if (!replayCache.check(prefix, id, ticket.getExpirationInstant().getMillis())) {
+            log.info("Rejecting replayed ticket {}", id);
+            return null;
+        }
+        return ticket;
+    }
+
+    /**
+     * Computes the hash sealed in place of a service URL. The URL is lower-cased first, since service URLs are
+     * compared ignoring case.
+     *
+     * @param service Service URL.
+     *
+     * @return Marked, URL-safe service hash.
+     */
+    @Nonnull
+    private static String hashService(@Nonnull final String service) {
+        final byte[] hash = Hashing.sha256().hashString(
+                service.toLowerCase(Locale.ROOT), StandardCharsets.UTF_8).asBytes();
+        return SERVICE_HASH_MARKER + BaseEncoding.base64Url().omitPadding().encode(hash, 0, SERVICE_HASH_LENGTH);
+    }
+
+    @Nullable
+    private static TicketIdentifierGenerationStrategy getTicketIdGenerator(
+            @Nonnull final AbstractTicketConfiguration config) {
+        if (config.getSecurityConfiguration() == null) {
+            return null;
+        }
+        final IdentifierGenerationStrategy generator = config.getSecurityConfiguration().getIdGenerator();
+        if (generator instanceof TicketIdentifierGenerationStrategy) {
+            return (TicketIdentifierGenerationStrategy) generator;
+        }
+        return null;
+    }
+
+    /**
+     * Converts base64 to a form that needs no escaping in a URL query string.
+     *
+     * @param base64 Base64-encoded string.
+     *
+     * @return URL-safe form.
+     */
+    private static String toUrlSafe(final String base64) {
+        return base64.replace('+', '-').replace('/', '_').replace('=', '.');
+    }
+
+    /**
+     * Reverses {@link #toUrlSafe(String)}.
+     *
+     * @param urlSafe URL-safe encoded string.
+     *
+     * @return Base64-encoded string.
+     */
+    private static String fromUrlSafe(final String urlSafe) {
+        return urlSafe.replace('-', '+').replace('_', '/').replace('.', '=');
+    }
+}
@@ -5,12 +5,25 @@
 package net.shibboleth.idp.cas.ticket;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import net.shibboleth.idp.cas.config.AbstractTicketConfiguration;
 import net.shibboleth.idp.cas.config.ProxyGrantingTicketConfiguration;
 import net.shibboleth.idp.cas.config.ProxyTicketConfiguration;
 import net.shibboleth.idp.cas.config.ServiceTicketConfiguration;
@@ -20,175 +33,301 @@ import net.shibboleth.idp.cas.ticket.serialization.ServiceTicketSerializer;
 import net.shibboleth.utilities.java.support.annotation.Duration;
 import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
 import net.shibboleth.utilities.java.support.logic.Constraint;
-import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
 import org.opensaml.storage.StorageRecord;
 import org.opensaml.storage.StorageSerializer;
 import org.opensaml.storage.StorageService;
+import org.opensaml.storage.VersionMismatchException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Simple ticket management service that generates tickets using a {@link TicketIdGenerator} component and stores
  * tickets in a {@link org.opensaml.storage.StorageService}.
+ * <p>
+ * Ticket removal is a single-use consume operation. If the storage service implements
+ * {@link ConsumingStorageService}, removal is delegated to its atomic read-and-remove operation in a single round
+ * trip; otherwise the record is read and then removed by a versioned compare-and-delete such that at most one of
+ * several concurrent callers receives the ticket.
+ * <p>
+ * Proxy-granting tickets may optionally be kept in a near cache, bounded in size and time to live, to avoid a
+ * storage read on every proxy request and proxy chain lookup. The cache belongs to this instance, so the instance
+ * should be shared by all CAS flows of a node, as the default configuration in the root context does. A cached
+ * ticket is never returned past its expiration instant, and removing a ticket through this instance evicts it from
+ * the cache. IDs of tickets removed through this instance are remembered for the cache time to live so that a read
+ * racing with the removal cannot cache the ticket again. Removal through any other instance, in particular on
+ * another node, is not visible to the cache, so the time to live bounds how long such a ticket may still be used.
+ * <p>
+ * Tickets may optionally be indexed by IdP session, and sessions by principal, in additional storage records so
+ * that all outstanding tickets of a session or principal can be revoked without scanning the store. Each ticket of
+ * a session is kept in its own index record, numbered by a per-session counter record updated by versioned
+ * compare-and-set, so that indexing a ticket costs a constant amount of storage work regardless of the number of
+ * tickets the session already has. A ticket that cannot be indexed is removed again and its creation fails, since
+ * it would otherwise survive revocation of its session. The sessions of a principal are kept in a single record
+ * bounded in size, from which entries for expired sessions are pruned as new ones are added.
+ * <p>
+ * Proxy-granting tickets issued from proxy tickets are indexed under their parent, so removing a proxy-granting
+ * ticket removes its whole subtree. Since a child never outlives its parent, expiry likewise ends a subtree.
+ * Children are kept in numbered index records like the tickets of a session.
+ * <p>
+ * Each ticket type may be kept in its own storage service, e.g. short-lived single-use service and proxy tickets
+ * in a local in-memory store and long-lived proxy-granting tickets in a replicated store. Types without a dedicated
+ * storage service use the one given at construction, which also holds the session and principal index records.
+ * The proxy-granting ticket child index is kept alongside proxy-granting tickets.
  *
  * @author Marvin S. Addison
  */
-public class SimpleTicketService implements TicketService {
+public class SimpleTicketService extends AbstractTicketService implements RevocableTicketService {
 
-    /** Map of ticket classes to context names. */
-    private static final Map<Class<? extends Ticket>, String> CONTEXT_CLASS_MAP = new HashMap<>();
+    /** Storage context of the session to ticket index. */
+    public static final String SESSION_INDEX_CONTEXT = AbstractTicketConfiguration.PROTOCOL_URI + "/session-index";
 
-    /** Map of ticket classes to serializers. */
-    private static final Map<Class<? extends Ticket>, StorageSerializer<? extends Ticket>> SERIALIZER_MAP = new HashMap<>();
+    /** Storage context of the principal to session index. */
+    public static final String PRINCIPAL_INDEX_CONTEXT =
+            AbstractTicketConfiguration.PROTOCOL_URI + "/principal-index";
+
+    /** Storage context of the proxy-granting ticket parent to children index. */
+    public static final String PGT_CHILDREN_CONTEXT = AbstractTicketConfiguration.PROTOCOL_URI + "/pgt-children";
+
+    /** Separator between the indexed key and the entry number in numbered index record keys. */
+    private static final char ENTRY_KEY_SEPARATOR = '#';
+
+    /** Maximum number of attempts to update an index record under contention. */
+    private static final int MAX_INDEX_ATTEMPTS = 10;
 
-    private static final ServiceTicketSerializer ST_SERIALIZER = new ServiceTicketSerializer();
+    /** Maximum number of sessions kept per principal. */
+    private static final int MAX_SESSIONS_PER_PRINCIPAL = 100;
 
-    private static final ProxyTicketSerializer PT_SERIALIZER = new ProxyTicketSerializer();
+    /** Index entry type code of service tickets. */
+    private static final char ST_TYPE = 'S';
 
-    private static final ProxyGrantingTicketSerializer PGT_SERIALIZER = new ProxyGrantingTicketSerializer();
+    /** Index entry type code of proxy tickets. */
+    private static final char PT_TYPE = 'P';
+
+    /** Index entry type code of proxy-granting tickets. */
+    private static final char PGT_TYPE = 'G';
+
+    /** Map of ticket classes to context names. */
+    private static final Map<Class<? extends Ticket>, String> CONTEXT_CLASS_MAP = new HashMap<>();
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(SimpleTicketService.class);
 
+    private final ServiceTicketSerializer serviceTicketSerializer = new ServiceTicketSerializer();
+
+    private final ProxyTicketSerializer proxyTicketSerializer = new ProxyTicketSerializer();
+
+    private final ProxyGrantingTicketSerializer proxyGrantingTicketSerializer = new ProxyGrantingTicketSerializer();
+
+    /** Map of ticket classes to serializers. */
+    private final Map<Class<? extends Ticket>, StorageSerializer<? extends Ticket>> serializerMap = new HashMap<>();
+
     /** Storage service to which ticket persistence operations are delegated. */
     @Nonnull
     private final StorageService storageService;
 
-    @Nonnull
-    private final ServiceTicketConfiguration serviceTicketConfiguration;
+    /** Storage service of service tickets. */
+    @Nonnull private StorageService serviceTicketStorageService;
 
-    @Nonnull
-    private final ProxyGrantingTicketConfiguration proxyGrantingTicketConfiguration;
+    /** Storage service of proxy tickets. */
+    @Nonnull private StorageService proxyTicketStorageService;
 
-    @Nonnull
-    private final ProxyTicketConfiguration proxyTicketConfiguration;
+    /** Storage service of proxy-granting tickets and their child index. */
+    @Nonnull private StorageService proxyGrantingTicketStorageService;
+
+    /** Time in ms proxy-granting tickets are kept in the near cache; zero disables it. */
+    @Duration private long pgtCacheTTL;
+
+    /** Maximum number of proxy-granting tickets in the near cache. */
+    @Positive private int pgtCacheSize = 10000;
+
+    /** Proxy-granting ticket near cache, or null if disabled. */
+    @Nullable private volatile Cache<String, ProxyGrantingTicket> pgtCache;
+
+    /** IDs of proxy-granting tickets recently removed on this node, or null if the near cache is disabled. */
+    @Nullable private volatile Cache<String, Boolean> removedPgtIds;
+
+    /** Number of proxy-granting ticket reads served from the near cache. */
+    @Nonnull private final AtomicLong pgtCacheHits = new AtomicLong();
+
+    /** Number of proxy-granting ticket reads that went to the storage service. */
+    @Nonnull private final AtomicLong pgtCacheMisses = new AtomicLong();
+
+    /** Flag indicating whether removing a proxy-granting ticket also removes its descendants. */
+    private boolean cascadePgtRemoval = true;
+
+    /** Flag indicating whether tickets are indexed by session and sessions by principal. */
+    private boolean indexSessions;
+
+    /** Time in ms principal index records are kept after their last update. */
+    @Duration @Positive private long principalIndexLifetime = 86400000;
 
     static {
         CONTEXT_CLASS_MAP.put(ServiceTicket.class, ServiceTicketConfiguration.PROFILE_ID);
         CONTEXT_CLASS_MAP.put(ProxyTicket.class, ProxyTicketConfiguration.PROFILE_ID);
         CONTEXT_CLASS_MAP.put(ProxyGrantingTicket.class, ProxyGrantingTicketConfiguration.PROFILE_ID);
-        SERIALIZER_MAP.put(ServiceTicket.class, ST_SERIALIZER);
-        SERIALIZER_MAP.put(ProxyTicket.class, PT_SERIALIZER);
-        SERIALIZER_MAP.put(ProxyGrantingTicket.class, PGT_SERIALIZER);
     }
 
+    /**
+     * Creates a new instance.
+     *
+     * @param storageService Storage service to which tickets are persisted.
+     * @param serviceTicketConfiguration Service ticket configuration.
+     * @param proxyGrantingTicketConfiguration Proxy-granting ticket configuration.
+     * @param proxyTicketConfiguration Proxy ticket configuration.
+     */
     public SimpleTicketService(
             @Nonnull final StorageService storageService,
             @Nonnull final ServiceTicketConfiguration serviceTicketConfiguration,
             @Nonnull final ProxyGrantingTicketConfiguration proxyGrantingTicketConfiguration,
             @Nonnull final ProxyTicketConfiguration proxyTicketConfiguration)
     {
+        super(serviceTicketConfiguration, proxyGrantingTicketConfiguration, proxyTicketConfiguration);
         this.storageService = Constraint.isNotNull(storageService, "StorageService cannot be null.");
-        this.serviceTicketConfiguration = Constraint.isNotNull(
-                serviceTicketConfiguration, "ServiceTicketConfiguration cannot be null.");
-        this.proxyGrantingTicketConfiguration = Constraint.isNotNull(
-                proxyGrantingTicketConfiguration, "ProxyGrantingTicketConfiguration cannot be null.");
-        this.proxyTicketConfiguration = Constraint.isNotNull(
-                proxyTicketConfiguration, "ProxyTicketConfiguration cannot be null.");
+        serviceTicketStorageService = storageService;
+        proxyTicketStorageService = storageService;
+        proxyGrantingTicketStorageService = storageService;
+        serializerMap.put(ServiceTicket.class, serviceTicketSerializer);
+        serializerMap.put(ProxyTicket.class, proxyTicketSerializer);
+        serializerMap.put(ProxyGrantingTicket.class, proxyGrantingTicketSerializer);
     }
 
+    /**
+     * Sets whether tickets are written in the compact binary form rather than the legacy delimited form. Both forms
+     * are always read, so this should only be enabled once every node sharing ticket storage reads the binary form.
+     *
+     * @param binary True to write the binary form, false to write the legacy form. Default is false.
+     */
+    public void setWriteBinaryTickets(final boolean binary) {
+        serviceTicketSerializer.setWriteBinary(binary);
+        proxyTicketSerializer.setWriteBinary(binary);
+        proxyGrantingTicketSerializer.setWriteBinary(binary);
+    }
 
-    @Override
-    @Nonnull
-    public ServiceTicket createServiceTicket(
-            @Nonnull final String sessionId,
-            @Nonnull final String service,
-            final boolean renew) {
-        Constraint.isNotNull(sessionId, "Session ID cannot be null");
-        Constraint.isNotNull(service, "Service cannot be null");
-        final ServiceTicket st = new ServiceTicket(
-                serviceTicketConfiguration.getSecurityConfiguration().getIdGenerator().generateIdentifier(),
-                sessionId,
-                service,
-                DateTime.now().plus(serviceTicketConfiguration.getTicketValidityPeriod()).toInstant(),
-                renew);
-        log.debug("Generated ticket {}", st);
-        store(st);
-        return st;
+    /**
+     * Sets the storage service of service tickets.
+     *
+     * @param storage Storage service, or null to use the default storage service.
+     */
+    public void setServiceTicketStorageService(@Nullable final StorageService storage) {
+        serviceTicketStorageService = storage != null ? storage : storageService;
     }
 
-    @Override
-    @Nullable
-    public ServiceTicket removeServiceTicket(@Nonnull final String id) {
-        Constraint.isNotNull(id, "Id cannot be null");
-        return delete(id, ServiceTicket.class);
+    /**
+     * Sets the storage service of proxy tickets.
+     *
+     * @param storage Storage service, or null to use the default storage service.
+     */
+    public void setProxyTicketStorageService(@Nullable final StorageService storage) {
+        proxyTicketStorageService = storage != null ? storage : storageService;
     }
 
-    @Override
-    @Nonnull
-    public ProxyGrantingTicket createProxyGrantingTicket(
-            @Nonnull final ServiceTicket serviceTicket, @Nonnull final String pgtId) {
-        Constraint.isNotNull(serviceTicket, "ServiceTicket cannot be null");
-        Constraint.isNotNull(pgtId, "PGT ID cannot be null");
-        final ProxyGrantingTicket pgt = new ProxyGrantingTicket(
-                pgtId,
-                serviceTicket.getSessionId(),
-                serviceTicket.getService(),
-                DateTime.now().plus(proxyGrantingTicketConfiguration.getTicketValidityPeriod()).toInstant(),
-                null);
-        log.debug("Generated ticket {}", pgt);
-        store(pgt);
-        return pgt;
+    /**
+     * Sets the storage service of proxy-granting tickets and of the index of proxy-granting tickets issued under
+     * them.
+     *
+     * @param storage Storage service, or null to use the default storage service.
+     */
+    public void setProxyGrantingTicketStorageService(@Nullable final StorageService storage) {
+        proxyGrantingTicketStorageService = storage != null ? storage : storageService;
+    }
+
+    /**
+     * Sets the time proxy-granting tickets are kept in the local near cache. Tickets are never served from the
+     * cache past their expiration instant regardless of this value.
+     *
+     * @param ttl Near cache time to live in milliseconds; zero disables the cache. Default is zero.
+     */
+    public void setPgtCacheTTL(@Duration final long ttl) {
+        pgtCacheTTL = Constraint.isGreaterThanOrEqual(0, ttl, "PGT cache TTL cannot be negative");
+        buildPgtCache();
+    }
+
+    /**
+     * Sets the maximum number of proxy-granting tickets kept in the local near cache.
+     *
+     * @param size Maximum number of cached tickets. Default is 10000.
+     */
+    public void setPgtCacheSize(@Positive final int size) {
+        pgtCacheSize = (int) Constraint.isGreaterThan(0, size, "PGT cache size must be positive");
+        buildPgtCache();
+    }
+
+    /**
+     * Sets whether removing a proxy-granting ticket also removes all proxy-granting tickets issued under it. This
+     * requires a child index record to be written for each proxy-granting ticket issued from a proxy ticket.
+     *
+     * @param cascade True to remove descendants, false otherwise. Default is true.
+     */
+    public void setCascadePgtRemoval(final boolean cascade) {
+        cascadePgtRemoval = cascade;
+    }
+
+    /**
+     * Sets whether tickets are indexed by IdP session and sessions by principal, which is required to remove
+     * tickets by session or principal. Indexing costs an additional storage read and two writes per ticket created.
+     *
+     * @param index True to index tickets, false otherwise. Default is false.
+     */
+    public void setIndexSessions(final boolean index) {
+        indexSessions = index;
+    }
+
+    /**
+     * Sets the time the sessions of a principal remain indexed after the principal was last indexed.
+     *
+     * @param lifetime Principal index record lifetime in milliseconds. Default is 24h.
+     */
+    public void setPrincipalIndexLifetime(@Duration @Positive final long lifetime) {
+        principalIndexLifetime = Constraint.isGreaterThan(0, lifetime, "Principal index lifetime must be positive");
+    }
+
+    /** @return Number of proxy-granting ticket reads served from the local near cache. */
+    public long getPgtCacheHitCount() {
+        return pgtCacheHits.get();
+    }
+
+    /** @return Number of proxy-granting ticket reads that went to the storage service. */
+    public long getPgtCacheMissCount() {
+        return pgtCacheMisses.get();
+    }
+
+    /** @return Fraction of proxy-granting ticket reads served from the local near cache, or 1 if none. */
+    public double getPgtCacheHitRate() {
+        final long hits = pgtCacheHits.get();
+        final long total = hits + pgtCacheMisses.get();
+        return total == 0 ? 1.0 : (double) hits / total;
     }
 
-    @Nonnull
     @Override
+    @Nonnull
     public ProxyGrantingTicket createProxyGrantingTicket(
             @Nonnull final ProxyTicket proxyTicket, @Nonnull final String pgtId) {
-        Constraint.isNotNull(proxyTicket, "ProxyTicket cannot be null");
-        Constraint.isNotNull(pgtId, "PGT ID cannot be null");
-        final ProxyGrantingTicket pgt = new ProxyGrantingTicket(
-                pgtId,
-                proxyTicket.getSessionId(),
-                proxyTicket.getService(),
-                DateTime.now().plus(proxyGrantingTicketConfiguration.getTicketValidityPeriod()).toInstant(),
-                proxyTicket.getPgtId());
-        log.debug("Generated ticket {}", pgt);
-        store(pgt);
+        final ProxyGrantingTicket pgt = super.createProxyGrantingTicket(proxyTicket, pgtId);
+        if (cascadePgtRemoval && !addNumberedEntry(proxyGrantingTicketStorageService, PGT_CHILDREN_CONTEXT,
+                proxyTicket.getPgtId(), entryOf(pgt), pgt.getExpirationInstant().getMillis())) {
+            // A child missing from the index would survive revocation of its parent, so it must not be issued
+            removeSingleProxyGrantingTicket(pgt.getId());
+            throw new RuntimeException("Failed indexing " + pgt.getId() + " under " + proxyTicket.getPgtId());
+        }
         return pgt;
     }
 
-    @Override
-    @Nullable
-    public ProxyGrantingTicket fetchProxyGrantingTicket(@Nonnull final String id) {
-        Constraint.isNotNull(id, "Id cannot be null");
-        return read(id, ProxyGrantingTicket.class);
-    }
-
     @Override
     @Nullable
     public ProxyGrantingTicket removeProxyGrantingTicket(@Nonnull final String id) {
-        Constraint.isNotNull(id, "Id cannot be null");
-        final ProxyGrantingTicket pgt = delete(id, ProxyGrantingTicket.class);
+        final ProxyGrantingTicket pgt = removeSingleProxyGrantingTicket(id);
+        if (cascadePgtRemoval) {
+            removeDescendants(id);
+        }
         return pgt;
     }
 
-    @Nonnull
     @Override
-    public ProxyTicket createProxyTicket(
-            @Nonnull final ProxyGrantingTicket pgt, @Nonnull final String service) {
-        Constraint.isNotNull(pgt, "ProxyGrantingTicket cannot be null");
-        Constraint.isNotNull(service, "Service cannot be null");
-        final ProxyTicket pt = new ProxyTicket(
-                proxyTicketConfiguration.getSecurityConfiguration().getIdGenerator().generateIdentifier(),
-                pgt.getSessionId(),
-                service,
-                DateTime.now().plus(proxyTicketConfiguration.getTicketValidityPeriod()).toInstant(),
-                pgt.getId());
-        store(pt);
-        return pt;
-    }
-
-    @Nullable
-    @Override
-    public ProxyTicket removeProxyTicket(final @Nonnull String id) {
-        return delete(id, ProxyTicket.class);
-    }
-
-    private <T extends Ticket> void store(final T ticket) {
+    protected <T extends Ticket> void store(@Nonnull final T ticket) {
         log.debug("Storing {}", ticket);
         try {
-            if (!storageService.create(
+            if (!storage(ticket.getClass()).create(
                     context(ticket.getClass()),
                     ticket.getId(),
                     ticket,
@@ -199,33 +338,127 @@ public class SimpleTicketService implements TicketService {
         } catch (IOException e) {
             throw new RuntimeException("Failed to store ticket " + ticket, e);
         }
+        if (indexSessions && !addNumberedEntry(storageService, SESSION_INDEX_CONTEXT, ticket.getSessionId(),
+                entryOf(ticket), ticket.getExpirationInstant().getMillis())) {
+            // A ticket missing from the index would survive revocation of its session, so it must not be issued
+            delete(ticket.getId(), ticket.getClass());
+            throw new RuntimeException("Failed indexing " + ticket.getId() + " under its session");
+        }
+        final Cache<String, ProxyGrantingTicket> cache = pgtCache;
+        if (cache != null && ticket instanceof ProxyGrantingTicket) {
+            cache.put(ticket.getId(), (ProxyGrantingTicket) ticket);
+        }
     }
 
-    private <T extends Ticket> T delete(final String id, final Class<T> clazz) {
-        log.debug("Deleting {}", id);
-        final T ticket = read(id, clazz);
-        if (ticket == null) {
-            return null;
+    @Override
+    public void indexSession(@Nonnull final String principalName, @Nonnull final String sessionId) {
+        Constraint.isNotNull(principalName, "Principal name cannot be null");
+        Constraint.isNotNull(sessionId, "Session ID cannot be null");
+        if (indexSessions) {
+            final long expiration = DateTimeUtils.currentTimeMillis() + principalIndexLifetime;
+            addIndexEntry(storageService, PRINCIPAL_INDEX_CONTEXT, principalKey(principalName),
+                    expiration + ":" + sessionId, expiration, MAX_SESSIONS_PER_PRINCIPAL);
+        }
+    }
+
+    @Override
+    public int removeTicketsForSession(@Nonnull final String sessionId) {
+        Constraint.isNotNull(sessionId, "Session ID cannot be null");
+        int removed = 0;
+        for (final String entry : consumeNumberedEntries(storageService, SESSION_INDEX_CONTEXT, sessionId)) {
+            final String id = valueOf(entry);
+            final Ticket ticket;
+            switch (entry.charAt(0)) {
+                case ST_TYPE:
+                    ticket = removeServiceTicket(id);
+                    break;
+                case PT_TYPE:
+                    ticket = removeProxyTicket(id);
+                    break;
+                case PGT_TYPE:
+                    ticket = removeProxyGrantingTicket(id);
+                    break;
+                default:
+                    log.warn("Ignoring malformed index entry {} of session {}", entry, sessionId);
+                    ticket = null;
+            }
+            if (ticket != null) {
+                removed++;
+            }
         }
+        log.debug("Removed {} tickets of session {}", removed, sessionId);
+        return removed;
+    }
+
+    @Override
+    public int removeTicketsForPrincipal(@Nonnull final String principalName) {
+        Constraint.isNotNull(principalName, "Principal name cannot be null");
+        int removed = 0;
+        final String key = principalKey(principalName);
+        for (final String entry : consumeIndex(storageService, PRINCIPAL_INDEX_CONTEXT, key)) {
+            removed += removeTicketsForSession(valueOf(entry));
+        }
+        log.info("Removed {} tickets of principal {}", removed, principalName);
+        return removed;
+    }
+
+    @Override
+    @Nullable
+    protected <T extends Ticket> T delete(@Nonnull final String id, @Nonnull final Class<T> clazz) {
+        log.debug("Deleting {}", id);
+        final String context = context(clazz);
+        final StorageService storage = storage(clazz);
+        final StorageRecord<T> record;
         try {
-            log.debug("Attempting to delete " + ticket);
-            if (this.storageService.delete(context(clazz), id)) {
-                log.debug("Deleted ticket {}", id);
+            if (storage instanceof ConsumingStorageService) {
+                record = ((ConsumingStorageService) storage).consume(context, id);
+                if (record == null) {
+                    log.debug("{} not found", id);
+                    return null;
+                }
             } else {
-                log.info("Failed deleting {}. Ticket probably expired from storage facility.", id);
+                record = storage.read(context, id);
+                if (record == null) {
+                    log.debug("{} not found", id);
+                    return null;
+                }
+                // Compare-and-delete on the version read guarantees only one of several concurrent callers wins
+                if (!storage.deleteWithVersion(record.getVersion(), context, id)) {
+                    log.info("Failed deleting {}. Ticket probably expired from storage facility.", id);
+                    return null;
+                }
             }
+            log.debug("Deleted ticket {}", id);
+            return record.getValue(serializer(clazz), context, id);
+        } catch (VersionMismatchException e) {
+            log.info("Failed deleting {}. Ticket was concurrently modified or removed.", id);
+            return null;
         } catch (IOException e) {
             throw new RuntimeException("Error deleting ticket " + id, e);
         }
-        return ticket;
     }
 
-    private <T extends Ticket> T read(final String id, final Class<T> clazz) {
+    @Override
+    @Nullable
+    protected <T extends Ticket> T read(@Nonnull final String id, @Nonnull final Class<T> clazz) {
         log.debug("Reading {}", id);
+        final Cache<String, ProxyGrantingTicket> cache = clazz == ProxyGrantingTicket.class ? pgtCache : null;
+        if (cache != null) {
+            final ProxyGrantingTicket cached = cache.getIfPresent(id);
+            if (cached != null) {
+                if (cached.getExpirationInstant().isAfterNow()) {
+                    pgtCacheHits.incrementAndGet();
+                    log.debug("Found {} in near cache", id);
+                    return clazz.cast(cached);
+                }
+                cache.invalidate(id);
+            }
+            pgtCacheMisses.incrementAndGet();
+        }
         final T ticket;
         try {
             final String context = context(clazz);
-            final StorageRecord<T> record = storageService.read(context, id);
+            final StorageRecord<T> record = storage(clazz).read(context, id);
             if (record == null) {
                 log.debug("{} not found", id);
                 return null;
@@ -234,14 +467,355 @@ public class SimpleTicketService implements TicketService {
         } catch (IOException e) {
             throw new RuntimeException("Error reading ticket.");
         }
+        if (cache != null && ticket.getExpirationInstant().isAfterNow() && !isRemovedPgt(id)) {
+            cache.put(id, (ProxyGrantingTicket) ticket);
+            // Removal marks the ID before evicting, so a removal that the check above missed is visible now
+            if (isRemovedPgt(id)) {
+                cache.invalidate(id);
+            }
+        }
         return ticket;
     }
 
+    @Nullable private ProxyGrantingTicket removeSingleProxyGrantingTicket(@Nonnull final String id) {
+        final Cache<String, Boolean> removed = removedPgtIds;
+        if (removed != null) {
+            removed.put(id, Boolean.TRUE);
+        }
+        invalidatePgtCache(id);
+        return super.removeProxyGrantingTicket(id);
+    }
+
+    /**
+     * Removes all descendants of the given proxy-granting ticket by walking the child index breadth first.
+     *
+     * @param id Proxy-granting ticket ID.
+     */
+    private void removeDescendants(@Nonnull final String id) {
+        final Deque<String> pending = new ArrayDeque<>();
+        pending.add(id);
+        int removed = 0;
+        while (!pending.isEmpty()) {
+            final String parentId = pending.remove();
+            for (final String entry :
+                    consumeNumberedEntries(proxyGrantingTicketStorageService, PGT_CHILDREN_CONTEXT, parentId)) {
+                final String childId = valueOf(entry);
+                if (removeSingleProxyGrantingTicket(childId) != null) {
+                    removed++;
+                }
+                pending.add(childId);
+            }
+        }
+        if (removed > 0) {
+            log.debug("Removed {} descendants of {}", removed, id);
+        }
+    }
+
+    private boolean isRemovedPgt(@Nonnull final String id) {
+        final Cache<String, Boolean> removed = removedPgtIds;
+        return removed != null && removed.getIfPresent(id) != null;
+    }
+
+    private void invalidatePgtCache(@Nonnull final String id) {
+        final Cache<String, ProxyGrantingTicket> cache = pgtCache;
+        if (cache != null) {
+            cache.invalidate(id);
+        }
+    }
+
+    /**
+     * Adds an entry to an index record, pruning expired entries, by versioned compare-and-set. Index failures are
+     * logged but do not fail the operation that caused them.
+     *
+     * @param storage Storage service holding the index record.
+     * @param context Index storage context.
+     * @param key Index key.
+     * @param entry Entry of the form <code>[type]expiration:value</code>.
+     * @param expiration Entry expiration; the record lives at least this long.
+     * @param maxEntries Maximum number of entries kept, oldest first dropped. An existing entry with the same value
+     *                   is replaced.
+     */
+    private void addIndexEntry(
+            @Nonnull final StorageService storage,
+            @Nonnull final String context,
+            @Nonnull final String key,
+            @Nonnull final String entry,
+            final long expiration,
+            final int maxEntries) {
+        try {
+            for (int i = 0; i < MAX_INDEX_ATTEMPTS; i++) {
+                final StorageRecord<?> record = storage.read(context, key);
+                if (record == null) {
+                    if (storage.create(context, key, entry, expiration)) {
+                        return;
+                    }
+                    continue;
+                }
+                final List<String> entries = liveEntries(record.getValue());
+                final String value = valueOf(entry);
+                final Iterator<String> it = entries.iterator();
+                while (it.hasNext()) {
+                    if (valueOf(it.next()).equals(value)) {
+                        it.remove();
+                    }
+                }
+                entries.add(entry);
+                while (entries.size() > maxEntries) {
+                    entries.remove(0);
+                }
+                final long recordExpiration =
+                        record.getExpiration() != null ? Math.max(record.getExpiration(), expiration) : expiration;
+                try {
+                    if (storage.updateWithVersion(
+                            record.getVersion(), context, key, join(entries), recordExpiration) != null) {
+                        return;
+                    }
+                } catch (VersionMismatchException e) {
+                    log.debug("Concurrent update of index record {}, retrying", key);
+                }
+            }
+            log.warn("Index entry {} lost: failed updating index record {} in {} after {} attempts",
+                    entry, key, context, MAX_INDEX_ATTEMPTS);
+        } catch (IOException e) {
+            log.warn("Index entry {} lost: error updating index record {} in {}", entry, key, context, e);
+        }
+    }
+
+    /**
+     * Adds an entry to a numbered index. The next entry number is claimed from the counter record of the key by
+     * versioned compare-and-set, and the entry is written to a record of its own under that number.
+     *
+     * @param storage Storage service holding the index records.
+     * @param context Index storage context.
+     * @param key Index key.
+     * @param entry Entry of the form <code>[type]expiration:value</code>.
+     * @param expiration Entry expiration; the counter record lives at least this long.
+     *
+     * @return True if the entry was added, false otherwise.
+     */
+    private boolean addNumberedEntry(
+            @Nonnull final StorageService storage,
+            @Nonnull final String context,
+            @Nonnull final String key,
+            @Nonnull final String entry,
+            final long expiration) {
+        try {
+            for (int i = 0; i < MAX_INDEX_ATTEMPTS; i++) {
+                final StorageRecord<?> counter = storage.read(context, key);
+                final int number;
+                if (counter == null) {
+                    if (!storage.create(context, key, "1", expiration)) {
+                        continue;
+                    }
+                    number = 0;
+                } else {
+                    number = Integer.parseInt(counter.getValue());
+                    final long counterExpiration = counter.getExpiration() != null
+                            ? Math.max(counter.getExpiration(), expiration) : expiration;
+                    try {
+                        if (storage.updateWithVersion(counter.getVersion(), context, key,
+                                String.valueOf(number + 1), counterExpiration) == null) {
+                            continue;
+                        }
+                    } catch (VersionMismatchException e) {
+                        log.debug("Concurrent update of index counter {}, retrying", key);
+                        continue;
+                    }
+                }
+                // Fails only if a record of a consumed counter is left over, in which case the next number is tried
+                if (storage.create(context, entryKey(key, number), entry, expiration)) {
+                    return true;
+                }
+            }
+            log.warn("Failed adding {} to index {} in {} after {} attempts", entry, key, context, MAX_INDEX_ATTEMPTS);
+        } catch (IOException | NumberFormatException e) {
+            log.warn("Error adding {} to index {} in {}", entry, key, context, e);
+        }
+        return false;
+    }
+
+    /**
+     * Reads and deletes an index record.
+     *
+     * @param storage Storage service holding the index record.
+     * @param context Index storage context.
+     * @param key Index key.
+     *
+     * @return Unexpired entries of the record, or an empty list if none.
+     */
+    @Nonnull private List<String> consumeIndex(
+            @Nonnull final StorageService storage, @Nonnull final String context, @Nonnull final String key) {
+        final String value = consumeRecord(storage, context, key);
+        return value != null ? liveEntries(value) : new ArrayList<String>();
+    }
+
+    /**
+     * Reads and deletes a numbered index, i.e. its counter record and every numbered entry record.
+     *
+     * @param storage Storage service holding the index records.
+     * @param context Index storage context.
+     * @param key Index key.
+     *
+     * @return Unexpired entries, or an empty list if none.
+     */
+    @Nonnull private List<String> consumeNumberedEntries(
+            @Nonnull final StorageService storage, @Nonnull final String context, @Nonnull final String key) {
+        final List<String> entries = new ArrayList<>();
+        final String counter = consumeRecord(storage, context, key);
+        if (counter == null) {
+            return entries;
+        }
+        final int count;
+        try {
+            count = Integer.parseInt(counter);
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring malformed index counter {} of {} in {}", counter, key, context);
+            return entries;
+        }
+        for (int i = 0; i < count; i++) {
+            final String value = consumeRecord(storage, context, entryKey(key, i));
+            if (value != null) {
+                entries.addAll(liveEntries(value));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Reads and deletes a record. Unless the storage service consumes records atomically, the record is deleted by
+     * versioned compare-and-delete and re-read if it was concurrently updated, so that no update written between
+     * the read and the delete is lost.
+     *
+     * @param storage Storage service holding the record.
+     * @param context Storage context.
+     * @param key Record key.
+     *
+     * @return Record value, or null if none.
+     */
+    @Nullable private String consumeRecord(
+            @Nonnull final StorageService storage, @Nonnull final String context, @Nonnull final String key) {
+        try {
+            if (storage instanceof ConsumingStorageService) {
+                final StorageRecord<?> record = ((ConsumingStorageService) storage).consume(context, key);
+                return record != null ? record.getValue() : null;
+            }
+            for (int i = 0; i < MAX_INDEX_ATTEMPTS; i++) {
+                final StorageRecord<?> record = storage.read(context, key);
+                if (record == null) {
+                    return null;
+                }
+                try {
+                    // False means the record was concurrently consumed, in which case its entries are handled there
+                    if (storage.deleteWithVersion(record.getVersion(), context, key)) {
+                        return record.getValue();
+                    }
+                    return null;
+                } catch (VersionMismatchException e) {
+                    log.debug("Concurrent update of index record {}, retrying", key);
+                }
+            }
+            log.warn("Failed consuming index record {} in {} after {} attempts", key, context, MAX_INDEX_ATTEMPTS);
+            return null;
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading index record " + key, e);
+        }
+    }
+
+    /**
+     * Parses the unexpired, distinct entries of an index record value.
+     *
+     * @param value Index record value.
+     *
+     * @return Mutable list of entries in insertion order.
+     */
+    @Nonnull private static List<String> liveEntries(@Nonnull final String value) {
+        final long now = DateTimeUtils.currentTimeMillis();
+        final Set<String> entries = new LinkedHashSet<>();
+        for (final String entry : value.split("\n")) {
+            if (entry.isEmpty()) {
+                continue;
+            }
+            final int start = Character.isDigit(entry.charAt(0)) ? 0 : 1;
+            final int colon = entry.indexOf(':');
+            try {
+                if (colon > start && Long.parseLong(entry.substring(start, colon)) > now) {
+                    entries.add(entry);
+                }
+            } catch (NumberFormatException e) {
+                // Drop malformed entry
+            }
+        }
+        return new ArrayList<>(entries);
+    }
+
+    @Nonnull private static String valueOf(@Nonnull final String entry) {
+        return entry.substring(entry.indexOf(':') + 1);
+    }
+
+    @Nonnull private static String join(@Nonnull final List<String> entries) {
+        final StringBuilder sb = new StringBuilder();
+        for (final String entry : entries) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(entry);
+        }
+        return sb.toString();
+    }
+
+    @Nonnull private static String entryOf(@Nonnull final Ticket ticket) {
+        return String.valueOf(typeOf(ticket)) + ticket.getExpirationInstant().getMillis() + ':' + ticket.getId();
+    }
+
+    @Nonnull private static String entryKey(@Nonnull final String key, final int number) {
+        return key + ENTRY_KEY_SEPARATOR + number;
+    }
+
+    @Nonnull private static String principalKey(@Nonnull final String principalName) {
+        // Principal names are hashed to fit storage key size limits and character restrictions
+        return Hashing.sha256().hashUnencodedChars(principalName).toString();
+    }
+
+    private static char typeOf(@Nonnull final Ticket ticket) {
+        if (ticket instanceof ServiceTicket) {
+            return ST_TYPE;
+        } else if (ticket instanceof ProxyTicket) {
+            return PT_TYPE;
+        }
+        return PGT_TYPE;
+    }
+
+    /** Creates the proxy-granting ticket near cache according to the current settings. */
+    private void buildPgtCache() {
+        if (pgtCacheTTL > 0) {
+            removedPgtIds = CacheBuilder.newBuilder()
+                    .maximumSize(pgtCacheSize)
+                    .expireAfterWrite(pgtCacheTTL, TimeUnit.MILLISECONDS)
+                    .<String, Boolean>build();
+            pgtCache = CacheBuilder.newBuilder()
+                    .maximumSize(pgtCacheSize)
+                    .expireAfterWrite(pgtCacheTTL, TimeUnit.MILLISECONDS)
+                    .<String, ProxyGrantingTicket>build();
+        } else {
+            pgtCache = null;
+            removedPgtIds = null;
+        }
+    }
+
+    @Nonnull private StorageService storage(@Nonnull final Class<? extends Ticket> clazz) {
+        if (clazz == ServiceTicket.class) {
+            return serviceTicketStorageService;
+        } else if (clazz == ProxyTicket.class) {
+            return proxyTicketStorageService;
+        }
+        return proxyGrantingTicketStorageService;
+    }
+
     private static String context(final Class<? extends Ticket> clazz) {
         return CONTEXT_CLASS_MAP.get(clazz);
     }
 
-    private static <T extends Ticket> StorageSerializer<T> serializer(final Class<T> clazz) {
-        return (StorageSerializer<T>) SERIALIZER_MAP.get(clazz);
+    private <T extends Ticket> StorageSerializer<T> serializer(final Class<T> clazz) {
+        return (StorageSerializer<T>) serializerMap.get(clazz);
     }
 }
@@ -17,6 +17,19 @@ import org.cryptacular.generator.RandomIdGenerator;
 
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import net.shibboleth.utilities.java.support.codec.Base64Support;
 
 /**
  * Generates CAS protocol ticket identifiers of the form:
@@ -26,6 +39,23 @@ import java.nio.charset.StandardCharsets;
  * </pre>
  *
  * where suffix is optional. By default tickets have at least 128 bits of entropy in the random part of the identifier.
+ * <p>
+ * The random part is produced by a shared {@link RandomIdGenerator} unless {@link #setPerThreadRandom(boolean)} is
+ * enabled, in which case each thread draws from its own seeded DRBG instance, in one bulk request per identifier,
+ * and the identifier is encoded directly into a character array. Both modes draw each random character uniformly
+ * from the same alphanumeric alphabet, so the entropy for a given random part length is identical.
+ * <p>
+ * When {@link #setTagSecrets(List) tag secrets} are configured, a truncated HMAC-SHA256 tag over the identifier up to
+ * the random part is inserted as a hex-encoded component ahead of the suffix, which therefore remains the final
+ * component for routing by suffix:
+ *
+ * <pre>
+ * [PREFIX]-[SEQUENCE_PART]-[RANDOM_PART]-[TAG]-[SUFFIX],
+ * </pre>
+ *
+ * which allows {@link #verifyIdentifier(String)} to reject forged or malformed identifiers without consulting
+ * ticket storage. The first secret tags new identifiers and every secret is accepted on verification, so a secret
+ * is rotated by prepending its replacement and removing the old one once all tickets it tagged have expired.
  *
  * @author Marvin S. Addison
  */
@@ -37,9 +67,68 @@ public class TicketIdentifierGenerationStrategy implements IdentifierGenerationS
     /** Ticket suffix. */
     @Nullable private String suffix;
 
+    /** Alphabet of random ticket part; same as that of {@link RandomIdGenerator}. */
+    private static final char[] ALPHABET =
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
+
+    /** Largest multiple of the alphabet size not greater than 256, used to reject biased random bytes. */
+    private static final int UNBIASED_LIMIT = 256 - 256 % ALPHABET.length;
+
+    /** Maximum number of characters in the decimal representation of a long. */
+    private static final int MAX_LONG_CHARS = 20;
+
+    /** MAC algorithm used to tag identifiers. */
+    private static final String TAG_ALGORITHM = "HmacSHA256";
+
+    /** Hex digits. */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** DRBG algorithm of per-thread random sources. */
+    private static final String DRBG_ALGORITHM = "SHA1PRNG";
+
+    /** Seed size in bytes of per-thread random sources. */
+    private static final int SEED_SIZE = 32;
+
+    /** Shared source of seeds for per-thread random sources. */
+    private static final SecureRandom SEED_SOURCE = new SecureRandom();
+
+    /**
+     * Per-thread random source. Values are JDK classes only, so container threads that outlive the web application
+     * do not retain its class loader.
+     */
+    private static final ThreadLocal<SecureRandom> THREAD_RANDOM = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            final SecureRandom drbg;
+            try {
+                drbg = SecureRandom.getInstance(DRBG_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(DRBG_ALGORITHM + " not supported", e);
+            }
+            final byte[] seed = new byte[SEED_SIZE];
+            SEED_SOURCE.nextBytes(seed);
+            drbg.setSeed(seed);
+            return drbg;
+        }
+    };
+
     /** Generator of random ticket part. */
     private IdGenerator randomPartGenerator;
 
+    /** Length in characters of random part of the ticket. */
+    private final int randomLength;
+
+    /** Whether to use a per-thread random source. */
+    private boolean perThreadRandom;
+
+    /** Tag keys; the first tags new identifiers and all are accepted on verification. */
+    @Nonnull private List<SecretKeySpec> tagKeys = Collections.emptyList();
+
+    /** Length in bytes of truncated tag. */
+    private int tagLength = 8;
+
+    /** Per-thread MAC instances keyed by tag key identity, so MACs of replaced keys are never reused. */
+    private final ThreadLocal<Map<SecretKeySpec, Mac>> tagMacs = new ThreadLocal<>();
 
     /**
      * Creates a new ticket ID generator.
@@ -53,6 +142,7 @@ public class TicketIdentifierGenerationStrategy implements IdentifierGenerationS
         if (randomLength < 1) {
             throw new IllegalArgumentException("Length of random part of ticket must be positive");
         }
+        this.randomLength = randomLength;
         this.randomPartGenerator = new RandomIdGenerator(randomLength);
         this.prefix = Constraint.isNotNull(StringSupport.trimOrNull(prefix), "Prefix cannot be null or empty");
         if (!isUrlSafe(this.prefix)) {
@@ -75,16 +165,138 @@ public class TicketIdentifierGenerationStrategy implements IdentifierGenerationS
         }
     }
 
+    /**
+     * Sets whether to generate the random part of identifiers from a per-thread DRBG instead of a random source shared
+     * by all threads. The per-thread mode avoids contention on the shared source under high ticket issuance rates.
+     *
+     * @param perThread True to use per-thread random sources, false otherwise. Default is false.
+     */
+    public void setPerThreadRandom(final boolean perThread) {
+        this.perThreadRandom = perThread;
+    }
+
+    /**
+     * Sets the secrets used to tag identifiers with a truncated HMAC. Tagging is disabled if no secrets are given.
+     *
+     * @param secrets Base64-encoded secrets of at least 16 bytes each. The first tags new identifiers; all are
+     *                accepted on verification.
+     */
+    public void setTagSecrets(@Nullable final List<String> secrets) {
+        if (secrets == null || secrets.isEmpty()) {
+            tagKeys = Collections.emptyList();
+            return;
+        }
+        final List<SecretKeySpec> keys = new ArrayList<>(secrets.size());
+        for (final String secret : secrets) {
+            final byte[] bytes = Base64Support.decode(
+                    Constraint.isNotNull(StringSupport.trimOrNull(secret), "Tag secret cannot be null or empty"));
+            if (bytes.length < 16) {
+                throw new IllegalArgumentException("Tag secret must be at least 16 bytes");
+            }
+            keys.add(new SecretKeySpec(bytes, TAG_ALGORITHM));
+        }
+        tagKeys = Collections.unmodifiableList(keys);
+    }
+
+    /**
+     * Sets the length of the truncated tag.
+     *
+     * @param length Tag length in bytes, between 4 and 32. Default is 8.
+     */
+    public void setTagLength(final int length) {
+        if (length < 4 || length > 32) {
+            throw new IllegalArgumentException("Tag length must be between 4 and 32 bytes");
+        }
+        tagLength = length;
+    }
+
     @Override
     @Nonnull public String generateIdentifier() {
-        final StringBuilder builder = new StringBuilder(100);
-        builder.append(prefix).append('-');
-        builder.append(System.currentTimeMillis()).append('-');
-        builder.append(randomPartGenerator.generate());
-        if (suffix != null) {
-            builder.append('-').append(suffix);
-        }
-        return builder.toString();
+        // The suffix follows the tag, so it is only written here when there is no tag
+        final boolean tagged = !tagKeys.isEmpty();
+        final String id;
+        if (perThreadRandom) {
+            id = generateIdentifierPerThread(!tagged);
+        } else {
+            final StringBuilder builder = new StringBuilder(100);
+            builder.append(prefix).append('-');
+            builder.append(System.currentTimeMillis()).append('-');
+            builder.append(randomPartGenerator.generate());
+            if (suffix != null && !tagged) {
+                builder.append('-').append(suffix);
+            }
+            id = builder.toString();
+        }
+        if (!tagged) {
+            return id;
+        }
+        return suffix != null ? tagIdentifier(id) + '-' + suffix : tagIdentifier(id);
+    }
+
+    /**
+     * Appends a tag to the given identifier, which allows identifiers not produced by this component but carrying
+     * the same prefix and no suffix, e.g. sealed tickets, to pass {@link #verifyIdentifier(String)}.
+     *
+     * @param id URL-safe identifier body.
+     *
+     * @return Tagged identifier, or the given identifier if tagging is disabled.
+     */
+    @Nonnull public String tagIdentifier(@Nonnull final String id) {
+        if (tagKeys.isEmpty()) {
+            return id;
+        }
+        final byte[] tag = computeTag(tagKeys.get(0), id);
+        final char[] chars = new char[id.length() + 1 + tagLength * 2];
+        id.getChars(0, id.length(), chars, 0);
+        int pos = id.length();
+        chars[pos++] = '-';
+        for (int i = 0; i < tagLength; i++) {
+            chars[pos++] = HEX[(tag[i] >> 4) & 0xF];
+            chars[pos++] = HEX[tag[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Removes the tag from an identifier produced by {@link #tagIdentifier(String)}. The tag is not verified.
+     *
+     * @param id Tagged identifier.
+     *
+     * @return Identifier body, or the given identifier if tagging is disabled or it is too short to carry a tag.
+     */
+    @Nonnull public String untagIdentifier(@Nonnull final String id) {
+        if (tagKeys.isEmpty() || id.length() <= tagLength * 2 + 1) {
+            return id;
+        }
+        return id.substring(0, id.length() - tagLength * 2 - 1);
+    }
+
+    /**
+     * Determines whether the given identifier carries a valid tag. This check involves no I/O and is intended to
+     * discard forged or garbage identifiers before any storage lookup.
+     *
+     * @param id Ticket identifier.
+     *
+     * @return True if tagging is disabled or the identifier carries a tag produced by one of the tag secrets,
+     * false otherwise.
+     */
+    public boolean verifyIdentifier(@Nonnull final String id) {
+        final List<SecretKeySpec> keys = tagKeys;
+        if (keys.isEmpty()) {
+            return true;
+        }
+        if (!id.startsWith(prefix)) {
+            return false;
+        }
+        // Identifiers without a suffix, including those tagged by tagIdentifier, end with the tag
+        if (verifyTag(keys, id, id.length() - tagLength * 2 - 1)) {
+            return true;
+        }
+        // Otherwise the tag follows the sequence and random parts, which contain no separator
+        final int sequenceEnd = id.indexOf('-', prefix.length() + 1);
+        final int randomEnd = sequenceEnd < 0 ? -1 : id.indexOf('-', sequenceEnd + 1);
+        final int tagEnd = randomEnd + 1 + tagLength * 2;
+        return randomEnd > 0 && tagEnd < id.length() && id.charAt(tagEnd) == '-' && verifyTag(keys, id, randomEnd);
     }
 
     @Nonnull
@@ -93,6 +305,127 @@ public class TicketIdentifierGenerationStrategy implements IdentifierGenerationS
         return generateIdentifier();
     }
 
+    /**
+     * Generates an identifier using the per-thread random source, encoding directly into a character array.
+     *
+     * @param withSuffix Whether to append the suffix.
+     *
+     * @return Ticket identifier.
+     */
+    @Nonnull private String generateIdentifierPerThread(final boolean withSuffix) {
+        final int length = prefix.length() + 2 + MAX_LONG_CHARS + randomLength
+                + (suffix != null ? suffix.length() + 1 : 0);
+        final char[] chars = new char[length];
+        prefix.getChars(0, prefix.length(), chars, 0);
+        int pos = prefix.length();
+        chars[pos++] = '-';
+
+        // Write timestamp digits right to left into their final position
+        long time = System.currentTimeMillis();
+        int digits = 1;
+        for (long t = time / 10; t > 0; t /= 10) {
+            digits++;
+        }
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            chars[i] = (char) ('0' + time % 10);
+            time /= 10;
+        }
+        pos += digits;
+        chars[pos++] = '-';
+
+        // A few spare bytes make a refill after rejecting biased bytes unlikely
+        final SecureRandom random = THREAD_RANDOM.get();
+        final byte[] bytes = new byte[randomLength + 8];
+        int next = bytes.length;
+        for (int i = 0; i < randomLength;) {
+            if (next == bytes.length) {
+                random.nextBytes(bytes);
+                next = 0;
+            }
+            final int b = bytes[next++] & 0xFF;
+            if (b < UNBIASED_LIMIT) {
+                chars[pos++] = ALPHABET[b % ALPHABET.length];
+                i++;
+            }
+        }
+        if (suffix != null && withSuffix) {
+            chars[pos++] = '-';
+            suffix.getChars(0, suffix.length(), chars, pos);
+            pos += suffix.length();
+        }
+        return new String(chars, 0, pos);
+    }
+
+    /**
+     * Determines whether the tag following the given separator is valid for the identifier body preceding it.
+     *
+     * @param keys Tag keys.
+     * @param id Ticket identifier.
+     * @param separator Index of the separator preceding the tag.
+     *
+     * @return True if the tag was produced by one of the keys, false otherwise.
+     */
+    private boolean verifyTag(
+            @Nonnull final List<SecretKeySpec> keys, @Nonnull final String id, final int separator) {
+        if (separator <= prefix.length() || id.charAt(separator) != '-') {
+            return false;
+        }
+        final byte[] provided = new byte[tagLength];
+        for (int i = 0, pos = separator + 1; i < tagLength; i++) {
+            final int hi = Character.digit(id.charAt(pos++), 16);
+            final int lo = Character.digit(id.charAt(pos++), 16);
+            if (hi < 0 || lo < 0) {
+                return false;
+            }
+            provided[i] = (byte) ((hi << 4) | lo);
+        }
+        final String body = id.substring(0, separator);
+        for (final SecretKeySpec key : keys) {
+            final byte[] expected = computeTag(key, body);
+            if (MessageDigest.isEqual(provided, expected.length == tagLength ? expected : truncate(expected))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes the full HMAC of an identifier body with the given tag key.
+     *
+     * @param key Tag key.
+     * @param body Identifier body, which is always URL-safe ASCII.
+     *
+     * @return HMAC value.
+     */
+    @Nonnull private byte[] computeTag(@Nonnull final SecretKeySpec key, @Nonnull final String body) {
+        Map<SecretKeySpec, Mac> macs = tagMacs.get();
+        if (macs == null) {
+            macs = new IdentityHashMap<>();
+            tagMacs.set(macs);
+        }
+        Mac mac = macs.get(key);
+        if (mac == null) {
+            if (macs.size() >= tagKeys.size()) {
+                // Discard MACs of keys replaced by setTagSecrets
+                macs.clear();
+            }
+            try {
+                mac = Mac.getInstance(TAG_ALGORITHM);
+                mac.init(key);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Cannot initialize " + TAG_ALGORITHM, e);
+            }
+            macs.put(key, mac);
+        }
+        return mac.doFinal(body.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Nonnull private byte[] truncate(@Nonnull final byte[] tag) {
+        final byte[] truncated = new byte[tagLength];
+        System.arraycopy(tag, 0, truncated, 0, tagLength);
+        return truncated;
+    }
+
     private static boolean isUrlSafe(final String s) {
         try {
             return URLEncoder.encode(s, StandardCharsets.US_ASCII.name()).equals(s);
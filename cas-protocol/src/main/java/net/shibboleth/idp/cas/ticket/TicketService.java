@@ -25,7 +25,8 @@ public interface TicketService {
     @Nonnull ServiceTicket createServiceTicket(@Nonnull String sessionId, @Nonnull String service, boolean renew);
 
     /**
-     * Removes the service ticket with the given identifier.
+     * Removes the service ticket with the given identifier. Removal is atomic: of any number of concurrent callers
+     * for the same ticket, at most one receives a non-null result.
      *
      * @param id Identifier of ticket to remove.
      *
@@ -83,7 +84,8 @@ public interface TicketService {
     @Nonnull ProxyTicket createProxyTicket(@Nonnull ProxyGrantingTicket pgt, @Nonnull String service);
 
     /**
-     * Removes the proxy ticket with the given identifier.
+     * Removes the proxy ticket with the given identifier. Removal is atomic: of any number of concurrent callers
+     * for the same ticket, at most one receives a non-null result.
      *
      * @param id Identifier of ticket to remove.
      *
@@ -0,0 +1,165 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.ticket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Hierarchical timing wheel that schedules tickets for expiration in O(1) time and expires them in amortized O(1)
+ * time per ticket, such that no periodic full scan of live tickets is ever needed. The wheel has
+ * {@value #LEVELS} levels of {@value #SLOTS} slots each; a slot at level <em>n</em> spans
+ * <code>tick * SLOTS<sup>n</sup></code> milliseconds. Tickets due in a higher level slot are cascaded down to lower
+ * levels as time advances.
+ * <p>
+ * Scheduling is lock-free and may be performed by any thread. Advancing the wheel MUST be performed by a single
+ * thread. A ticket scheduled concurrently with an advance is moved to the slot matching the advanced time if its
+ * original slot may already have been passed, so that it is never parked for a whole rotation. Consumers MUST NOT
+ * rely on the wheel for expiration semantics; it exists solely to reclaim memory.
+ */
+class TimingWheel {
+
+    /** Number of bits used to address a slot within a level. */
+    private static final int SLOT_BITS = 6;
+
+    /** Number of slots per level. */
+    static final int SLOTS = 1 << SLOT_BITS;
+
+    /** Number of levels. */
+    static final int LEVELS = 4;
+
+    /** Bit mask to extract slot number. */
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    /** Callback invoked on expired tickets. */
+    interface ExpirationHandler {
+        /**
+         * Handles an expired ticket.
+         *
+         * @param ticket Ticket whose expiration instant has passed.
+         */
+        void expire(@Nonnull Ticket ticket);
+    }
+
+    /** Duration of a single tick in milliseconds. */
+    private final long tick;
+
+    /** Slots of all levels indexed by <code>level * SLOTS + slot</code>. */
+    @Nonnull private final List<Queue<Ticket>> slots;
+
+    /** Current time expressed in ticks since the epoch. */
+    private volatile long currentTick;
+
+
+    /**
+     * Creates a new timing wheel.
+     *
+     * @param tickMillis Duration of a single tick in milliseconds.
+     * @param startMillis Start time in milliseconds since the epoch.
+     */
+    TimingWheel(@Duration @Positive final long tickMillis, final long startMillis) {
+        tick = Constraint.isGreaterThan(0, tickMillis, "Tick must be positive");
+        currentTick = startMillis / tick;
+        slots = new ArrayList<>(LEVELS * SLOTS);
+        for (int i = 0; i < LEVELS * SLOTS; i++) {
+            slots.add(new ConcurrentLinkedQueue<Ticket>());
+        }
+    }
+
+    /**
+     * Schedules the given ticket for expiration.
+     *
+     * @param ticket Ticket to schedule.
+     */
+    void schedule(@Nonnull final Ticket ticket) {
+        final long expires = expirationTick(ticket);
+        long now = currentTick;
+        while (true) {
+            final Queue<Ticket> slot = schedule(ticket, expires, now);
+            // The advancing thread publishes the new time before draining, so an unchanged time means the slot
+            // cannot have been passed. Otherwise the ticket is either moved here or was already drained there.
+            final long current = currentTick;
+            if (current == now || !slot.remove(ticket)) {
+                return;
+            }
+            now = current;
+        }
+    }
+
+    /**
+     * Advances the wheel to the given time, handing every ticket that expired in the meantime to the given handler.
+     *
+     * @param nowMillis Current time in milliseconds since the epoch.
+     * @param handler Handler for expired tickets.
+     */
+    void advance(final long nowMillis, @Nonnull final ExpirationHandler handler) {
+        final long target = nowMillis / tick;
+        final List<Ticket> due = new ArrayList<>();
+        long now = currentTick;
+        while (now < target) {
+            now++;
+            currentTick = now;
+            // Cascade higher levels first so that tickets landing in the current level 0 slot are handled below
+            for (int level = LEVELS - 1; level > 0; level--) {
+                final int shift = level * SLOT_BITS;
+                if ((now & ((1L << shift) - 1)) == 0) {
+                    drain(level, (int) (now >>> shift) & SLOT_MASK, due);
+                    for (Ticket ticket : due) {
+                        reschedule(ticket, now, handler);
+                    }
+                    due.clear();
+                }
+            }
+            drain(0, (int) now & SLOT_MASK, due);
+            for (Ticket ticket : due) {
+                reschedule(ticket, now, handler);
+            }
+            due.clear();
+        }
+    }
+
+    private void reschedule(final Ticket ticket, final long now, final ExpirationHandler handler) {
+        final long expires = expirationTick(ticket);
+        if (expires <= now) {
+            handler.expire(ticket);
+        } else {
+            schedule(ticket, expires, now);
+        }
+    }
+
+    private Queue<Ticket> schedule(final Ticket ticket, final long expires, final long now) {
+        final long delta = Math.max(expires - now, 1);
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << ((level + 1) * SLOT_BITS)) {
+            level++;
+        }
+        // Tickets beyond the range of the top level are parked in its farthest slot and rescheduled on cascade
+        final long at = delta >= 1L << (LEVELS * SLOT_BITS) ? now + (1L << (LEVELS * SLOT_BITS)) - 1 : now + delta;
+        final Queue<Ticket> slot = slots.get(level * SLOTS + ((int) (at >>> (level * SLOT_BITS)) & SLOT_MASK));
+        slot.add(ticket);
+        return slot;
+    }
+
+    private void drain(final int level, final int slot, final List<Ticket> into) {
+        final Queue<Ticket> queue = slots.get(level * SLOTS + slot);
+        Ticket ticket;
+        while ((ticket = queue.poll()) != null) {
+            into.add(ticket);
+        }
+    }
+
+    private long expirationTick(final Ticket ticket) {
+        // Round up so tickets are never handed out before they expire
+        return (ticket.getExpirationInstant().getMillis() + tick - 1) / tick;
+    }
+}
@@ -5,29 +5,43 @@
 package net.shibboleth.idp.cas.ticket.serialization;
 
 import java.io.IOException;
-import java.util.regex.Pattern;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import net.shibboleth.idp.cas.ticket.Ticket;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.codec.Base64Support;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import org.opensaml.storage.StorageSerializer;
 
 /**
- * Base class for ticket serializers that use a simple field-delimited serialization strategy.
+ * Base class for ticket serializers. Tickets are written in the legacy field-delimited form, <code>a::b::c</code>,
+ * unless {@link #setWriteBinary(boolean) binary output} is enabled, in which case they are written in a compact
+ * versioned binary form, base64-encoded and marked with a leading {@value #BINARY_MARKER} character. Both forms are
+ * always readable, so binary output should only be enabled once every node sharing ticket storage reads it.
  * Tickets are expected to be stored using the ticket ID as a key, so the ticket ID is not contained as part
  * of the serialized form.
  *
  * @author Marvin S. Addison
  */
 public abstract class AbstractTicketSerializer<T extends Ticket> implements StorageSerializer<T> {
-    /** Field delimiter. */
-    private static final String DELIMITER = "::";
 
-    /** Pattern used to extract fields from delimited form. */
-    private static final Pattern SPLIT_PATTERN = Pattern.compile(DELIMITER);
+    /** Leading character of binary serialized form, which never starts the legacy delimited form. */
+    public static final char BINARY_MARKER = '!';
+
+    /** Flag indicating whether to write the binary form. */
+    private boolean writeBinary;
+
+    /**
+     * Sets whether to write the binary form instead of the legacy field-delimited form. Both forms are always
+     * readable.
+     *
+     * @param binary True to write the binary form, false to write the legacy form. Default is false.
+     */
+    public void setWriteBinary(final boolean binary) {
+        writeBinary = binary;
+    }
 
     @Override
     public void initialize() throws ComponentInitializationException {}
@@ -40,15 +54,16 @@ public abstract class AbstractTicketSerializer<T extends Ticket> implements Stor
     @Override
     @Nonnull
     public String serialize(@Nonnull final T ticket) throws IOException {
-        final String[] fields = extractFields(ticket);
-        if (fields.length == 0) {
-            throw new IllegalStateException("Ticket has no fields to serialize.");
-        }
-        final StringBuilder sb = new StringBuilder(fields[0]);
-        for (int i = 1; i < fields.length; i++) {
-            sb.append(DELIMITER).append(fields[i]);
+        if (!writeBinary) {
+            final DelimitedFieldCodec.Writer writer = new DelimitedFieldCodec.Writer();
+            writeFields(ticket, writer);
+            checkNotEmpty(writer);
+            return writer.toString();
         }
-        return sb.toString();
+        final BinaryFieldCodec.Writer writer = new BinaryFieldCodec.Writer();
+        writeFields(ticket, writer);
+        checkNotEmpty(writer);
+        return BINARY_MARKER + Base64Support.encode(writer.toByteArray(), Base64Support.UNCHUNKED);
     }
 
     @Override
@@ -59,10 +74,42 @@ public abstract class AbstractTicketSerializer<T extends Ticket> implements Stor
             @Nonnull @NotEmpty final String key,
             @Nonnull @NotEmpty final String value,
             @Nullable final Long expiration) throws IOException {
-        return createTicket(key, SPLIT_PATTERN.split(value));
+        final FieldReader reader;
+        try {
+            if (!value.isEmpty() && value.charAt(0) == BINARY_MARKER) {
+                reader = new BinaryFieldCodec.Reader(Base64Support.decode(value.substring(1)));
+            } else {
+                reader = new DelimitedFieldCodec.Reader(value);
+            }
+            return createTicket(key, reader);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Error deserializing ticket " + key, e);
+        }
     }
 
-    @NotEmpty protected abstract String[] extractFields(@Nonnull T ticket);
+    /**
+     * Writes the fields of the given ticket, excluding its ID.
+     *
+     * @param ticket Ticket to serialize.
+     * @param writer Field writer.
+     */
+    protected abstract void writeFields(@Nonnull T ticket, @Nonnull FieldWriter writer);
+
+    /**
+     * Creates a ticket from serialized fields.
+     *
+     * @param id Ticket ID.
+     * @param reader Field reader.
+     *
+     * @return Ticket.
+     *
+     * @throws IllegalArgumentException On malformed input.
+     */
+    @Nonnull protected abstract T createTicket(@Nonnull String id, @Nonnull FieldReader reader);
 
-    @Nonnull protected abstract T createTicket(@Nonnull String id, @NotEmpty String[] fields);
+    private static void checkNotEmpty(final FieldWriter writer) {
+        if (writer.size() == 0) {
+            throw new IllegalStateException("Ticket has no fields to serialize.");
+        }
+    }
 }
@@ -0,0 +1,247 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.ticket.serialization;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Compact versioned binary ticket format:
+ *
+ * <pre>
+ * version(1) count(1) { length(varint) bytes }*
+ * </pre>
+ *
+ * Strings are UTF-8, long integers are 8 bytes big-endian, and booleans are a single byte. Since every field is
+ * length-prefixed, the reader skips over fields it is not asked for without decoding them.
+ */
+final class BinaryFieldCodec {
+
+    /** Current format version. */
+    static final byte VERSION = 1;
+
+    /** Maximum number of fields. */
+    private static final int MAX_FIELDS = 255;
+
+    /** Private constructor of utility class. */
+    private BinaryFieldCodec() {}
+
+    /** Writes fields in binary form. */
+    static final class Writer implements FieldWriter {
+
+        /** Output buffer. */
+        private byte[] buffer = new byte[256];
+
+        /** Write position. */
+        private int position = 2;
+
+        /** Number of fields written. */
+        private int count;
+
+        /** Creates a new writer. */
+        Writer() {
+            buffer[0] = VERSION;
+        }
+
+        @Override
+        public void writeString(@Nonnull final String value) {
+            final int length = value.length();
+            int utf8Length = 0;
+            for (int i = 0; i < length; i++) {
+                final char c = value.charAt(i);
+                if (c < 0x80) {
+                    utf8Length++;
+                } else if (c < 0x800) {
+                    utf8Length += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    utf8Length += 4;
+                    i++;
+                } else {
+                    utf8Length += 3;
+                }
+            }
+            startField(utf8Length);
+            for (int i = 0; i < length; i++) {
+                final char c = value.charAt(i);
+                if (c < 0x80) {
+                    buffer[position++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[position++] = (byte) (0xC0 | (c >> 6));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    final int cp = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[position++] = (byte) (0xF0 | (cp >> 18));
+                    buffer[position++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    // Unpaired surrogates are written as-is, which the JDK decoder maps to the replacement char
+                    buffer[position++] = (byte) (0xE0 | (c >> 12));
+                    buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        @Override
+        public void writeLong(final long value) {
+            startField(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        @Override
+        public void writeBoolean(final boolean value) {
+            startField(1);
+            buffer[position++] = (byte) (value ? 1 : 0);
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        /** @return Encoded bytes. */
+        @Nonnull byte[] toByteArray() {
+            buffer[1] = (byte) count;
+            return Arrays.copyOf(buffer, position);
+        }
+
+        private void startField(final int length) {
+            if (count == MAX_FIELDS) {
+                throw new IllegalStateException("Too many fields");
+            }
+            count++;
+            ensureCapacity(5 + length);
+            int v = length;
+            while ((v & ~0x7F) != 0) {
+                buffer[position++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buffer[position++] = (byte) v;
+        }
+
+        private void ensureCapacity(final int needed) {
+            if (position + needed > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + needed));
+            }
+        }
+    }
+
+    /** Reads fields from binary form. */
+    static final class Reader implements FieldReader {
+
+        /** Encoded source. */
+        private final byte[] source;
+
+        /** Number of fields. */
+        private final int count;
+
+        /** Offsets of field lengths; entries at or beyond {@link #located} are not yet known. */
+        private final int[] offsets;
+
+        /** Number of field offsets located so far. */
+        private int located;
+
+        /**
+         * Creates a new reader.
+         *
+         * @param source Encoded source.
+         *
+         * @throws IllegalArgumentException If source has an unsupported version.
+         */
+        Reader(@Nonnull final byte[] source) {
+            if (source.length < 2 || source[0] != VERSION) {
+                throw new IllegalArgumentException("Unsupported binary ticket format");
+            }
+            this.source = source;
+            count = source[1] & 0xFF;
+            offsets = new int[count];
+            if (count > 0) {
+                offsets[0] = 2;
+                located = 1;
+            }
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        @Override
+        @Nonnull
+        public String readString(final int index) {
+            final int start = locate(index);
+            final int length = length(start);
+            return new String(source, start + varintSize(length), length, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public long readLong(final int index) {
+            final int start = locate(index);
+            if (length(start) != 8) {
+                throw new IllegalArgumentException("Field " + index + " is not a number");
+            }
+            long value = 0;
+            for (int i = start + 1; i < start + 9; i++) {
+                value = (value << 8) | (source[i] & 0xFF);
+            }
+            return value;
+        }
+
+        @Override
+        public boolean readBoolean(final int index) {
+            final int start = locate(index);
+            return length(start) == 1 && source[start + 1] != 0;
+        }
+
+        private int locate(final int index) {
+            if (index < 0 || index >= count) {
+                throw new IllegalArgumentException("Field " + index + " not found");
+            }
+            while (located <= index) {
+                final int previous = offsets[located - 1];
+                final int length = length(previous);
+                offsets[located++] = previous + varintSize(length) + length;
+            }
+            return offsets[index];
+        }
+
+        private int length(final int offset) {
+            int value = 0;
+            int shift = 0;
+            int i = offset;
+            byte b;
+            do {
+                if (i >= source.length || shift > 28) {
+                    throw new IllegalArgumentException("Truncated binary ticket");
+                }
+                b = source[i++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            // A five byte varint may overflow into the sign bit
+            if (value < 0 || value > source.length - i) {
+                throw new IllegalArgumentException("Invalid field length in binary ticket");
+            }
+            return value;
+        }
+
+        private static int varintSize(final int value) {
+            int size = 1;
+            int v = value;
+            while ((v & ~0x7F) != 0) {
+                size++;
+                v >>>= 7;
+            }
+            return size;
+        }
+    }
+}
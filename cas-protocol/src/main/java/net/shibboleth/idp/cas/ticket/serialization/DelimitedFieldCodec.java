@@ -0,0 +1,171 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.ticket.serialization;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Legacy field-delimited ticket format, <code>field1::field2::...</code>, where long integers are written in decimal
+ * and booleans as <code>true</code> or <code>false</code>. The reader locates all delimiters in a single forward pass
+ * and parses numbers directly from the source string rather than from substrings.
+ */
+final class DelimitedFieldCodec {
+
+    /** Field delimiter. */
+    static final String DELIMITER = "::";
+
+    /** Private constructor of utility class. */
+    private DelimitedFieldCodec() {}
+
+    /** Writes fields in delimited form. */
+    static final class Writer implements FieldWriter {
+
+        /** Output buffer. */
+        private final StringBuilder sb = new StringBuilder(128);
+
+        /** Number of fields written. */
+        private int count;
+
+        @Override
+        public void writeString(@Nonnull final String value) {
+            delimit();
+            sb.append(value);
+        }
+
+        @Override
+        public void writeLong(final long value) {
+            delimit();
+            sb.append(value);
+        }
+
+        @Override
+        public void writeBoolean(final boolean value) {
+            delimit();
+            sb.append(value);
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+
+        private void delimit() {
+            if (count++ > 0) {
+                sb.append(DELIMITER);
+            }
+        }
+    }
+
+    /** Reads fields from delimited form. */
+    static final class Reader implements FieldReader {
+
+        /** Delimited source. */
+        private final String source;
+
+        /** Start offset of each field, followed by the end offset of the last field. */
+        private final int[] bounds;
+
+        /** Number of fields. */
+        private final int count;
+
+        /**
+         * Creates a new reader. As with {@link java.util.regex.Pattern#split(CharSequence)}, trailing empty fields
+         * are discarded.
+         *
+         * @param source Delimited source.
+         */
+        Reader(@Nonnull final String source) {
+            this.source = source;
+            int[] offsets = new int[8];
+            int fields = 0;
+            int start = 0;
+            int next;
+            while ((next = source.indexOf(DELIMITER, start)) >= 0) {
+                if (fields + 2 > offsets.length) {
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+                offsets[fields++] = start;
+                start = next + DELIMITER.length();
+            }
+            if (fields + 2 > offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length + 2);
+            }
+            offsets[fields++] = start;
+            offsets[fields] = source.length() + DELIMITER.length();
+            if (fields > 1) {
+                while (fields > 0 && end(offsets, fields - 1) == offsets[fields - 1]) {
+                    fields--;
+                }
+            }
+            bounds = offsets;
+            count = fields;
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        @Override
+        @Nonnull
+        public String readString(final int index) {
+            check(index);
+            return source.substring(bounds[index], end(bounds, index));
+        }
+
+        @Override
+        public long readLong(final int index) {
+            check(index);
+            final int end = end(bounds, index);
+            int i = bounds[index];
+            final boolean negative = i < end && source.charAt(i) == '-';
+            if (negative) {
+                i++;
+            }
+            if (i == end) {
+                throw new IllegalArgumentException("Field " + index + " is not a number");
+            }
+            // Accumulate negatively, which has the larger range, and check for overflow before each step
+            final long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+            final long multiplyLimit = limit / 10;
+            long value = 0;
+            for (; i < end; i++) {
+                final int digit = source.charAt(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new IllegalArgumentException("Field " + index + " is not a number");
+                }
+                if (value < multiplyLimit || value * 10 < limit + digit) {
+                    throw new IllegalArgumentException("Field " + index + " is out of range");
+                }
+                value = value * 10 - digit;
+            }
+            return negative ? value : -value;
+        }
+
+        @Override
+        public boolean readBoolean(final int index) {
+            check(index);
+            final int start = bounds[index];
+            return end(bounds, index) - start == 4 && source.regionMatches(true, start, "true", 0, 4);
+        }
+
+        private void check(final int index) {
+            if (index < 0 || index >= count) {
+                throw new IllegalArgumentException("Field " + index + " not found");
+            }
+        }
+
+        private static int end(final int[] offsets, final int index) {
+            return offsets[index + 1] - DELIMITER.length();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.ticket.serialization;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Provides random access to the fields of a serialized ticket. Fields are decoded on access.
+ */
+public interface FieldReader {
+
+    /** @return Number of fields. */
+    int size();
+
+    /**
+     * Reads a string field.
+     *
+     * @param index Zero-based field index.
+     *
+     * @return Field value.
+     *
+     * @throws IllegalArgumentException If no such field exists.
+     */
+    @Nonnull String readString(int index);
+
+    /**
+     * Reads a long integer field.
+     *
+     * @param index Zero-based field index.
+     *
+     * @return Field value.
+     *
+     * @throws IllegalArgumentException If no such field exists or it is not a long integer.
+     */
+    long readLong(int index);
+
+    /**
+     * Reads a boolean field.
+     *
+     * @param index Zero-based field index.
+     *
+     * @return Field value.
+     *
+     * @throws IllegalArgumentException If no such field exists.
+     */
+    boolean readBoolean(int index);
+}
@@ -0,0 +1,37 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.ticket.serialization;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Writes an ordered sequence of ticket fields.
+ */
+public interface FieldWriter {
+
+    /**
+     * Appends a string field.
+     *
+     * @param value Field value.
+     */
+    void writeString(@Nonnull String value);
+
+    /**
+     * Appends a long integer field.
+     *
+     * @param value Field value.
+     */
+    void writeLong(long value);
+
+    /**
+     * Appends a boolean field.
+     *
+     * @param value Field value.
+     */
+    void writeBoolean(boolean value);
+
+    /** @return Number of fields written. */
+    int size();
+}
@@ -5,43 +5,54 @@
 package net.shibboleth.idp.cas.ticket.serialization;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import javax.annotation.Nonnull;
 
 import net.shibboleth.idp.cas.ticket.ProxyGrantingTicket;
-import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
 import org.joda.time.Instant;
 
 /**
- * Serializes proxy-granting tickets in simple field-delimited form.
+ * Proxy-granting ticket storage serializer. The services of ancestor tickets follow the parent ticket ID so that the
+ * proxy chain can be built without reading each ancestor; tickets serialized without them remain readable.
  *
  * @author Marvin S. Addison
  */
 public class ProxyGrantingTicketSerializer extends AbstractTicketSerializer<ProxyGrantingTicket> {
     @Override
-    @NotEmpty
-    protected String[] extractFields(@Nonnull final ProxyGrantingTicket ticket) {
-        final ArrayList<String> fields = new ArrayList<String>(4);
-        fields.add(ticket.getSessionId());
-        fields.add(ticket.getService());
-        fields.add(String.valueOf(ticket.getExpirationInstant().getMillis()));
+    protected void writeFields(@Nonnull final ProxyGrantingTicket ticket, @Nonnull final FieldWriter writer) {
+        writer.writeString(ticket.getSessionId());
+        writer.writeString(ticket.getService());
+        writer.writeLong(ticket.getExpirationInstant().getMillis());
         if (ticket.getParentId() != null) {
-            fields.add(ticket.getParentId());
+            writer.writeString(ticket.getParentId());
+            if (ticket.getProxyChain() != null) {
+                for (final String proxy : ticket.getProxyChain()) {
+                    writer.writeString(proxy);
+                }
+            }
         }
-        return fields.toArray(new String[fields.size()]);
     }
 
     @Override
     @Nonnull
-    protected ProxyGrantingTicket createTicket(@Nonnull final String id, @NotEmpty final String[] fields) {
-        if (fields.length < 3) {
-            throw new IllegalArgumentException("Expected at least 3 fields but got " + fields.length);
+    protected ProxyGrantingTicket createTicket(@Nonnull final String id, @Nonnull final FieldReader reader) {
+        if (reader.size() < 3) {
+            throw new IllegalArgumentException("Expected at least 3 fields but got " + reader.size());
+        }
+        List<String> proxyChain = null;
+        if (reader.size() > 4) {
+            proxyChain = new ArrayList<>(reader.size() - 4);
+            for (int i = 4; i < reader.size(); i++) {
+                proxyChain.add(reader.readString(i));
+            }
         }
         return new ProxyGrantingTicket(
                 id,
-                fields[0],
-                fields[1],
-                new Instant(Long.valueOf(fields[2])),
-                fields.length > 3 ? fields[3] : null);
+                reader.readString(0),
+                reader.readString(1),
+                new Instant(reader.readLong(2)),
+                reader.size() > 3 ? reader.readString(3) : null,
+                proxyChain);
     }
 }
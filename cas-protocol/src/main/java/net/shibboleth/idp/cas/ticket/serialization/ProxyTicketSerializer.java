@@ -7,7 +7,6 @@ package net.shibboleth.idp.cas.ticket.serialization;
 import javax.annotation.Nonnull;
 
 import net.shibboleth.idp.cas.ticket.ProxyTicket;
-import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
 import org.joda.time.Instant;
 
 /**
@@ -17,27 +16,24 @@ import org.joda.time.Instant;
  */
 public class ProxyTicketSerializer extends AbstractTicketSerializer<ProxyTicket> {
     @Override
-    @NotEmpty
-    protected String[] extractFields(@Nonnull final ProxyTicket ticket) {
-        return new String[] {
-                ticket.getSessionId(),
-                ticket.getService(),
-                String.valueOf(ticket.getExpirationInstant().getMillis()),
-                ticket.getPgtId(),
-        };
+    protected void writeFields(@Nonnull final ProxyTicket ticket, @Nonnull final FieldWriter writer) {
+        writer.writeString(ticket.getSessionId());
+        writer.writeString(ticket.getService());
+        writer.writeLong(ticket.getExpirationInstant().getMillis());
+        writer.writeString(ticket.getPgtId());
     }
 
     @Override
     @Nonnull
-    protected ProxyTicket createTicket(@Nonnull final String id, @NotEmpty final String[] fields) {
-        if (fields.length != 4) {
-            throw new IllegalArgumentException("Expected 4 fields but got " + fields.length);
+    protected ProxyTicket createTicket(@Nonnull final String id, @Nonnull final FieldReader reader) {
+        if (reader.size() != 4) {
+            throw new IllegalArgumentException("Expected 4 fields but got " + reader.size());
         }
         return new ProxyTicket(
                 id,
-                fields[0],
-                fields[1],
-                new Instant(Long.valueOf(fields[2])),
-                fields[3]);
+                reader.readString(0),
+                reader.readString(1),
+                new Instant(reader.readLong(2)),
+                reader.readString(3));
     }
 }
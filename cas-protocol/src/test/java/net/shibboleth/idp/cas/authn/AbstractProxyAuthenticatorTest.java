@@ -0,0 +1,151 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.authn;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.shibboleth.idp.spring.IdPPropertiesApplicationContextInitializer;
+import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.opensaml.security.SecurityException;
+import org.opensaml.security.trust.TrustEngine;
+import org.opensaml.security.x509.X509Credential;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.testng.AbstractTestNGSpringContextTests;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+/**
+ * Abstract base class for proxy authenticator tests that run against a local HTTPS proxy callback endpoint.
+ */
+@ContextConfiguration(
+        locations = "/test/proxy-authn-test.xml",
+        initializers = IdPPropertiesApplicationContextInitializer.class)
+@WebAppConfiguration
+public abstract class AbstractProxyAuthenticatorTest extends AbstractTestNGSpringContextTests {
+
+    /** Proxy callback URI served by the test endpoint. */
+    protected static final String CALLBACK_URI = "https://localhost:8443/?pgtId=A&pgtIOU=B";
+
+    /** Application context holding the test trust engines. */
+    @Autowired
+    protected ApplicationContext context;
+
+
+    /**
+     * Starts a Jetty HTTPS server on port 8443 that presents the <code>nobody-1</code> credential.
+     *
+     * @param handler Handler that serves proxy callback requests.
+     *
+     * @return Started server.
+     *
+     * @throws Exception On server startup errors.
+     */
+    protected Server startServer(final StatusHandler handler) throws Exception {
+        final Server server = new Server();
+        final SslContextFactory sslContextFactory = new SslContextFactory();
+        sslContextFactory.setKeyStoreType("PKCS12");
+        sslContextFactory.setKeyStorePath("src/test/resources/creds/nobody-1.p12");
+        sslContextFactory.setKeyStorePassword("changeit");
+        final ServerConnector connector = new ServerConnector(server, sslContextFactory);
+        connector.setHost("127.0.0.1");
+        connector.setPort(8443);
+        server.setConnectors(new Connector[] { connector });
+        server.setHandler(handler);
+        try {
+            server.start();
+        } catch (Exception e) {
+            server.stop();
+            throw e;
+        }
+        return server;
+    }
+
+    /**
+     * Handler that answers every request with a fixed status, optionally after a delay, and records the client
+     * port of each request.
+     */
+    protected static class StatusHandler extends AbstractHandler {
+
+        /** Client ports of all requests served. */
+        final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+
+        /** Response status. */
+        final int status;
+
+        /** Time in ms to wait before responding. */
+        long delay;
+
+        /** Size in bytes of the response body. */
+        int bodySize = 3;
+
+        /** Whether the connection is closed after each response. */
+        boolean closeConnections;
+
+        public StatusHandler(final int status) {
+            this.status = status;
+        }
+
+        @Override
+        public void handle(
+                final String target,
+                final Request request,
+                final HttpServletRequest servletRequest,
+                final HttpServletResponse servletResponse) throws IOException, ServletException {
+
+            clientPorts.add(servletRequest.getRemotePort());
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (closeConnections) {
+                servletResponse.setHeader("Connection", "close");
+            }
+            servletResponse.setContentType("text/plain;charset=utf-8");
+            servletResponse.setStatus(status);
+            request.setHandled(true);
+            final byte[] body = new byte[bodySize];
+            Arrays.fill(body, (byte) 'x');
+            servletResponse.getOutputStream().write(body);
+        }
+    }
+
+    /** Trust engine that counts the trust checks it performs. */
+    protected static class CountingTrustEngine implements TrustEngine<X509Credential> {
+
+        final TrustEngine<X509Credential> delegate;
+
+        final AtomicInteger invocations = new AtomicInteger();
+
+        public CountingTrustEngine(final TrustEngine<X509Credential> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean validate(final X509Credential token, final CriteriaSet trustBasisCriteria)
+                throws SecurityException {
+            invocations.incrementAndGet();
+            return delegate.validate(token, trustBasisCriteria);
+        }
+    }
+}
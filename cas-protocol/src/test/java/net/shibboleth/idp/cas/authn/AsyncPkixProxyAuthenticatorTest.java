@@ -0,0 +1,149 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.authn;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.cert.CertificateException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.security.auth.login.FailedLoginException;
+
+import org.eclipse.jetty.server.Server;
+import org.opensaml.security.trust.TrustEngine;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Unit test for {@link AsyncPkixProxyAuthenticator} class.
+ */
+public class AsyncPkixProxyAuthenticatorTest extends AbstractProxyAuthenticatorTest {
+
+    @DataProvider(name = "data")
+    public Object[][] buildTestData() {
+        return new Object[][] {
+                new Object[] { "testCase1", 200, null },
+                new Object[] { "testCase1", 404, FailedLoginException.class },
+                new Object[] { "testCase2", 200, CertificateException.class },
+        };
+    }
+
+    @Test(dataProvider = "data")
+    public void testAuthenticateAsync(final String trustEngineBean, final int status, final Class<?> expected)
+            throws Exception {
+        final Server server = startServer(new StatusHandler(status));
+        final AsyncPkixProxyAuthenticator authenticator = newAuthenticator(trustEngineBean, 5);
+        try {
+            final Future<Void> result = authenticator.authenticateAsync(new URI(CALLBACK_URI));
+            try {
+                result.get();
+                assertNull(expected, "Proxy authentication should have failed");
+            } catch (ExecutionException e) {
+                assertNotNull(expected, "Unexpected failure " + e.getCause());
+                assertTrue(expected.isAssignableFrom(e.getCause().getClass()));
+            }
+        } finally {
+            authenticator.destroy();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testRejectWhenPerHostLimitReached() throws Exception {
+        final StatusHandler handler = new StatusHandler(200);
+        handler.delay = 500;
+        final Server server = startServer(handler);
+        final AsyncPkixProxyAuthenticator authenticator = newAuthenticator("testCase1", 1);
+        try {
+            final Future<Void> first = authenticator.authenticateAsync(new URI(CALLBACK_URI));
+            final Future<Void> second = authenticator.authenticateAsync(new URI(CALLBACK_URI));
+            try {
+                second.get();
+                fail("Second callback should have been rejected");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+            first.get();
+            // Permit is released once the first callback completes
+            authenticator.authenticateAsync(new URI(CALLBACK_URI)).get();
+        } finally {
+            authenticator.destroy();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testCancelAbortsRequest() throws Exception {
+        final StatusHandler handler = new StatusHandler(200);
+        handler.delay = 500;
+        final Server server = startServer(handler);
+        final AsyncPkixProxyAuthenticator authenticator = newAuthenticator("testCase1", 1);
+        try {
+            final Future<Void> first = authenticator.authenticateAsync(new URI(CALLBACK_URI));
+            assertTrue(first.cancel(true));
+            // Cancelling aborts the HTTP request, which releases its per-host permit immediately
+            authenticator.authenticateAsync(new URI(CALLBACK_URI)).get();
+        } finally {
+            authenticator.destroy();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testOversizedResponse() throws Exception {
+        final StatusHandler handler = new StatusHandler(200);
+        handler.bodySize = 2048;
+        final Server server = startServer(handler);
+        final AsyncPkixProxyAuthenticator authenticator =
+                new AsyncPkixProxyAuthenticator(context.getBean("testCase1", TrustEngine.class));
+        authenticator.setMaxResponseSize(1024);
+        authenticator.initialize();
+        try {
+            authenticator.authenticateAsync(new URI(CALLBACK_URI)).get();
+            fail("Proxy authentication should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        } finally {
+            authenticator.destroy();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testInvalidateTrustCacheForcesTrustCheck() throws Exception {
+        final Server server = startServer(new StatusHandler(200));
+        final CountingTrustEngine trustEngine =
+                new CountingTrustEngine(context.getBean("testCase1", TrustEngine.class));
+        final AsyncPkixProxyAuthenticator authenticator = new AsyncPkixProxyAuthenticator(trustEngine);
+        authenticator.initialize();
+        try {
+            authenticator.authenticateAsync(new URI(CALLBACK_URI)).get();
+            authenticator.authenticateAsync(new URI(CALLBACK_URI)).get();
+            assertEquals(trustEngine.invocations.get(), 1);
+
+            // Neither a pooled connection nor a resumed session may bypass the trust engine
+            authenticator.invalidateTrustCache();
+            authenticator.authenticateAsync(new URI(CALLBACK_URI)).get();
+            assertEquals(trustEngine.invocations.get(), 2);
+        } finally {
+            authenticator.destroy();
+            server.stop();
+        }
+    }
+
+    private AsyncPkixProxyAuthenticator newAuthenticator(final String trustEngineBean, final int maxPerHost)
+            throws Exception {
+        final AsyncPkixProxyAuthenticator authenticator =
+                new AsyncPkixProxyAuthenticator(context.getBean(trustEngineBean, TrustEngine.class));
+        authenticator.setTimeout(2000);
+        authenticator.setMaxInFlightPerHost(maxPerHost);
+        authenticator.initialize();
+        return authenticator;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.authn;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Unit test for {@link HostHealthTracker} class.
+ */
+public class HostHealthTrackerTest {
+
+    @Test
+    public void testCircuitOpensAndProbes() throws Exception {
+        final HostHealthTracker tracker = new HostHealthTracker();
+        tracker.setFailureThreshold(3);
+        tracker.setOpenPeriod(100);
+        for (int i = 0; i < 3; i++) {
+            tracker.acquire("bad:443", 800);
+            tracker.release("bad:443", false, 800);
+        }
+        assertTrue(tracker.isOpen("bad:443"));
+        assertFalse(tracker.isOpen("good:443"));
+        try {
+            tracker.acquire("bad:443", 800);
+            fail("Circuit should be open");
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+        tracker.acquire("good:443", 800);
+        tracker.release("good:443", true, 10);
+
+        Thread.sleep(150);
+        // Half-open allows exactly one probe
+        tracker.acquire("bad:443", 800);
+        try {
+            tracker.acquire("bad:443", 800);
+            fail("Only one probe should be allowed");
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+        tracker.release("bad:443", true, 50);
+        assertFalse(tracker.isOpen("bad:443"));
+        tracker.acquire("bad:443", 800);
+        tracker.release("bad:443", true, 50);
+    }
+
+    @Test
+    public void testFailedProbeReopens() throws Exception {
+        final HostHealthTracker tracker = new HostHealthTracker();
+        tracker.setFailureThreshold(1);
+        tracker.setOpenPeriod(100);
+        tracker.acquire("bad:443", 800);
+        tracker.release("bad:443", false, 800);
+        Thread.sleep(150);
+        tracker.acquire("bad:443", 800);
+        tracker.release("bad:443", false, 800);
+        assertTrue(tracker.isOpen("bad:443"));
+    }
+
+    @Test
+    public void testAdaptiveTimeout() throws Exception {
+        final HostHealthTracker tracker = new HostHealthTracker();
+        tracker.setMinTimeout(100);
+        assertEquals(tracker.acquire("fast:443", 800), 800);
+        tracker.release("fast:443", true, 50);
+        learn(tracker, "fast:443", 63, 50);
+        assertEquals(tracker.acquire("fast:443", 800), 150);
+        tracker.release("fast:443", true, 50);
+
+        // Adaptive timeout is bounded by the minimum and the default
+        tracker.setMinTimeout(200);
+        assertEquals(tracker.acquire("fast:443", 800), 200);
+        tracker.release("fast:443", true, 50);
+        assertEquals(tracker.acquire("fast:443", 50), 50);
+        tracker.release("fast:443", true, 50);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testMinTimeoutFloor() {
+        new HostHealthTracker().setMinTimeout(20);
+    }
+
+    @Test
+    public void testFailureResetsAdaptiveTimeout() throws Exception {
+        final HostHealthTracker tracker = new HostHealthTracker();
+        tracker.setMinTimeout(100);
+        learn(tracker, "slower:443", 64, 50);
+        assertEquals(tracker.acquire("slower:443", 800), 150);
+        tracker.release("slower:443", false, 150);
+
+        // Default timeout applies until enough new samples have been recorded
+        learn(tracker, "slower:443", 9, 120);
+        assertEquals(tracker.acquire("slower:443", 800), 800);
+        tracker.release("slower:443", true, 120);
+        learn(tracker, "slower:443", 6, 120);
+        assertEquals(tracker.acquire("slower:443", 800), 360);
+        tracker.release("slower:443", true, 120);
+    }
+
+    @Test
+    public void testProbeUsesDefaultTimeout() throws Exception {
+        final HostHealthTracker tracker = new HostHealthTracker();
+        tracker.setFailureThreshold(1);
+        tracker.setOpenPeriod(100);
+        tracker.setMinTimeout(100);
+        learn(tracker, "flaky:443", 64, 10);
+        assertEquals(tracker.acquire("flaky:443", 800), 100);
+        tracker.release("flaky:443", false, 100);
+        Thread.sleep(150);
+        assertEquals(tracker.acquire("flaky:443", 800), 800);
+        tracker.release("flaky:443", true, 10);
+        assertFalse(tracker.isOpen("flaky:443"));
+    }
+
+    private static void learn(final HostHealthTracker tracker, final String host, final int count, final long latency) {
+        for (int i = 0; i < count; i++) {
+            tracker.acquire(host, 800);
+            tracker.release(host, true, latency);
+        }
+    }
+}
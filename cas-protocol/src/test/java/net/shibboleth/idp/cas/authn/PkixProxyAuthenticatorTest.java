@@ -4,33 +4,18 @@
 
 package net.shibboleth.idp.cas.authn;
 
-import java.io.IOException;
 import java.net.URI;
 import java.security.cert.CertificateException;
 
 import javax.security.auth.login.FailedLoginException;
-import javax.servlet.ServletException;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
 
-import net.shibboleth.idp.spring.IdPPropertiesApplicationContextInitializer;
-import org.eclipse.jetty.server.Connector;
-import org.eclipse.jetty.server.Handler;
-import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
-import org.eclipse.jetty.server.ServerConnector;
-import org.eclipse.jetty.server.handler.AbstractHandler;
-import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.opensaml.security.trust.TrustEngine;
 import org.opensaml.security.x509.X509Credential;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.ApplicationContext;
-import org.springframework.test.context.ContextConfiguration;
-import org.springframework.test.context.testng.AbstractTestNGSpringContextTests;
-import org.springframework.test.context.web.WebAppConfiguration;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertTrue;
 import static org.testng.AssertJUnit.fail;
@@ -40,14 +25,7 @@ import static org.testng.AssertJUnit.fail;
  *
  * @author Marvin S. Addison
  */
-@ContextConfiguration(
-        locations = "/test/proxy-authn-test.xml",
-        initializers = IdPPropertiesApplicationContextInitializer.class)
-@WebAppConfiguration
-public class PkixProxyAuthenticatorTest extends AbstractTestNGSpringContextTests {
-
-    @Autowired
-    private ApplicationContext context;
+public class PkixProxyAuthenticatorTest extends AbstractProxyAuthenticatorTest {
 
     @DataProvider(name = "data")
     public Object[][] buildTestData() {
@@ -63,11 +41,11 @@ public class PkixProxyAuthenticatorTest extends AbstractTestNGSpringContextTests
             throws Exception {
         Server server = null;
         try {
-            server = startServer(new ConfigurableStatusHandler(status));
+            server = startServer(new StatusHandler(status));
             final TrustEngine<X509Credential> trustEngine = context.getBean(trustEngineBean, TrustEngine.class);
             assertNotNull(trustEngine);
             final PkixProxyAuthenticator authenticator = new PkixProxyAuthenticator(trustEngine);
-            authenticator.authenticate(new URI("https://localhost:8443/?pgtId=A&pgtIOU=B"));
+            authenticator.authenticate(new URI(CALLBACK_URI));
             if (expected != null) {
                 fail("Proxy authentication should have failed with " + expected);
             }
@@ -83,57 +61,94 @@ public class PkixProxyAuthenticatorTest extends AbstractTestNGSpringContextTests
         }
     }
 
-    private Server startServer(final Handler handler) {
-        final Server server = new Server();
-
-        final SslContextFactory sslContextFactory = new SslContextFactory();
-        sslContextFactory.setKeyStoreType("PKCS12");
-        sslContextFactory.setKeyStorePath("src/test/resources/creds/nobody-1.p12");
-        sslContextFactory.setKeyStorePassword("changeit");
-        final ServerConnector connector = new ServerConnector(server, sslContextFactory);
-        connector.setHost("127.0.0.1");
-        connector.setPort(8443);
-        server.setConnectors(new Connector[] { connector });
-        server.setHandler(handler);
+    @Test
+    public void testAuthenticateReusesClient() throws Exception {
+        Server server = null;
+        final PkixProxyAuthenticator authenticator =
+                new PkixProxyAuthenticator(context.getBean("testCase1", TrustEngine.class));
         try {
-            server.start();
-        } catch (Exception e) {
-            try {
+            final StatusHandler handler = new StatusHandler(200);
+            server = startServer(handler);
+            for (int i = 0; i < 5; i++) {
+                authenticator.authenticate(new URI("https://localhost:8443/?pgtId=A" + i + "&pgtIOU=B" + i));
+            }
+            // Every request was served over the same pooled keep-alive connection
+            assertEquals(handler.clientPorts.size(), 1);
+        } finally {
+            authenticator.destroy();
+            if (server != null) {
                 server.stop();
-            } catch (Exception e2) {}
-            throw new RuntimeException("Jetty startup failed", e);
-        }
-        final Thread serverRunner = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    server.join();
-                } catch (InterruptedException e) {}
             }
-        });
-        serverRunner.start();
-        return server;
+        }
     }
 
-    private static class ConfigurableStatusHandler extends AbstractHandler {
-
-        final int status;
-
-        public ConfigurableStatusHandler(final int status) {
-            this.status = status;
+    @Test
+    public void testInvalidateTrustCacheForcesTrustCheck() throws Exception {
+        Server server = null;
+        final CountingTrustEngine trustEngine =
+                new CountingTrustEngine(context.getBean("testCase1", TrustEngine.class));
+        final PkixProxyAuthenticator authenticator = new PkixProxyAuthenticator(trustEngine);
+        try {
+            final StatusHandler handler = new StatusHandler(200);
+            server = startServer(handler);
+            authenticator.authenticate(new URI(CALLBACK_URI));
+            authenticator.authenticate(new URI(CALLBACK_URI));
+            assertEquals(handler.clientPorts.size(), 1);
+            assertEquals(trustEngine.invocations.get(), 1);
+
+            // Neither the pooled connection nor a resumed session may bypass the trust engine
+            authenticator.invalidateTrustCache();
+            authenticator.authenticate(new URI(CALLBACK_URI));
+            assertEquals(handler.clientPorts.size(), 2);
+            assertEquals(trustEngine.invocations.get(), 2);
+        } finally {
+            authenticator.destroy();
+            if (server != null) {
+                server.stop();
+            }
         }
+    }
 
-        @Override
-        public void handle(
-                final String target,
-                final Request request,
-                final HttpServletRequest servletRequest,
-                final HttpServletResponse servletResponse) throws IOException, ServletException {
+    @Test
+    public void testTrustCacheKeepsSemantics() throws Exception {
+        Server server = null;
+        final CountingTrustEngine trustingEngine =
+                new CountingTrustEngine(context.getBean("testCase1", TrustEngine.class));
+        final CountingTrustEngine untrustingEngine =
+                new CountingTrustEngine(context.getBean("testCase2", TrustEngine.class));
+        final PkixProxyAuthenticator trusting = new PkixProxyAuthenticator(trustingEngine);
+        final PkixProxyAuthenticator untrusting = new PkixProxyAuthenticator(untrustingEngine);
+        try {
+            // Close every connection so each request performs a new handshake
+            final StatusHandler handler = new StatusHandler(200);
+            handler.closeConnections = true;
+            server = startServer(handler);
+            for (int i = 0; i < 3; i++) {
+                trusting.authenticate(new URI(CALLBACK_URI));
+                try {
+                    untrusting.authenticate(new URI(CALLBACK_URI));
+                    fail("Proxy authentication should have failed");
+                } catch (CertificateException e) {
+                    // Expected on every attempt whether or not the decision is cached
+                }
+            }
+            // Later handshakes were decided by the cache, or resumed a session for the trusted endpoint
+            assertEquals(trustingEngine.invocations.get(), 1);
+            assertEquals(untrustingEngine.invocations.get(), 1);
 
-            servletResponse.setContentType("text/plain;charset=utf-8");
-            servletResponse.setStatus(status);
-            request.setHandled(true);
-            servletResponse.getWriter().println("OK");
+            untrusting.invalidateTrustCache();
+            try {
+                untrusting.authenticate(new URI(CALLBACK_URI));
+                fail("Proxy authentication should have failed");
+            } catch (CertificateException e) {
+                assertEquals(untrustingEngine.invocations.get(), 2);
+            }
+        } finally {
+            trusting.destroy();
+            untrusting.destroy();
+            if (server != null) {
+                server.stop();
+            }
         }
     }
 }
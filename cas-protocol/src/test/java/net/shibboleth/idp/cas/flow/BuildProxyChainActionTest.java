@@ -4,12 +4,17 @@
 
 package net.shibboleth.idp.cas.flow;
 
+import java.util.Arrays;
+import java.util.Collections;
+
+import net.shibboleth.idp.cas.config.ProxyGrantingTicketConfiguration;
 import net.shibboleth.idp.cas.protocol.TicketValidationRequest;
 import net.shibboleth.idp.cas.protocol.TicketValidationResponse;
 import net.shibboleth.idp.cas.ticket.ProxyGrantingTicket;
 import net.shibboleth.idp.cas.ticket.ProxyTicket;
 import net.shibboleth.idp.cas.ticket.ServiceTicket;
 import net.shibboleth.idp.cas.ticket.TicketService;
+import org.opensaml.storage.StorageService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.webflow.execution.RequestContext;
 import org.testng.annotations.Test;
@@ -44,5 +49,30 @@ public class BuildProxyChainActionTest extends AbstractProfileActionTest {
         assertEquals(response.getProxies().size(), 2);
         assertEquals(response.getProxies().get(0), "proxiedByA");
         assertEquals(response.getProxies().get(1), "proxyA");
+        assertEquals(pgtB.getProxyChain(), Collections.singletonList("proxyA"));
+    }
+
+    @Test
+    public void testBuildChainLegacyTicket() throws Exception {
+        final ServiceTicket st = ticketService.createServiceTicket(TEST_SESSION_ID, "proxyA", true);
+        final ProxyGrantingTicket pgtA = ticketService.createProxyGrantingTicket(st, "PGT-l1e2g3a4c5y6");
+        final ProxyTicket ptA = ticketService.createProxyTicket(pgtA, "proxiedByA");
+        final ProxyGrantingTicket pgtB = ticketService.createProxyGrantingTicket(ptA, "PGT-l7e8g9a0c1y2");
+        // Simulate a ticket stored before proxy chains were recorded
+        ticketService.removeProxyGrantingTicket(pgtB.getId());
+        applicationContext.getBean("shibboleth.StorageService", StorageService.class).create(
+                ProxyGrantingTicketConfiguration.PROFILE_ID,
+                pgtB.getId(),
+                TEST_SESSION_ID + "::" + pgtB.getService() + "::" + pgtB.getExpirationInstant().getMillis()
+                        + "::" + pgtA.getId(),
+                pgtB.getExpirationInstant().getMillis());
+        assertNull(ticketService.fetchProxyGrantingTicket(pgtB.getId()).getProxyChain());
+        final ProxyTicket ptB = ticketService.createProxyTicket(pgtB, "proxiedByB");
+        final RequestContext context = createTicketContext(ptB);
+        final TicketValidationResponse response = new TicketValidationResponse();
+        FlowStateSupport.setTicketValidationRequest(context, new TicketValidationRequest("proxiedByB", ptB.getId()));
+        FlowStateSupport.setTicketValidationResponse(context, response);
+        assertEquals(action.execute(context).getId(), Events.Proceed.id());
+        assertEquals(response.getProxies(), Arrays.asList("proxiedByA", "proxyA"));
     }
 }
\ No newline at end of file
@@ -6,9 +6,11 @@ package net.shibboleth.idp.cas.flow;
 
 import net.shibboleth.idp.cas.protocol.ProtocolError;
 import net.shibboleth.idp.cas.protocol.TicketValidationRequest;
+import net.shibboleth.idp.cas.ticket.RevocableTicketService;
 import net.shibboleth.idp.cas.ticket.ServiceTicket;
 import net.shibboleth.idp.cas.ticket.TicketService;
 import net.shibboleth.idp.session.IdPSession;
+import net.shibboleth.idp.session.SessionException;
 import net.shibboleth.idp.session.SessionResolver;
 import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
 import net.shibboleth.utilities.java.support.resolver.ResolverException;
@@ -18,7 +20,10 @@ import org.testng.annotations.BeforeTest;
 import org.testng.annotations.Test;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.*;
 
@@ -72,6 +77,37 @@ public class ValidateIdpSessionActionTest extends AbstractProfileActionTest {
         assertEquals(action.execute(context).getId(), ProtocolError.SessionRetrievalError.id());
     }
 
+    @Test
+    public void testSessionCheckErrorKeepsTickets() throws Exception {
+        final ServiceTicket ticket = ticketService.createServiceTicket(TEST_SESSION_ID, TEST_SERVICE, false);
+        final RequestContext context = createTicketContext(ticket);
+        final TicketValidationRequest request = new TicketValidationRequest(TEST_SERVICE, ticket.getId());
+        FlowStateSupport.setTicketValidationRequest(context, request);
+        final IdPSession session = mock(IdPSession.class);
+        when(session.getId()).thenReturn(TEST_SESSION_ID);
+        when(session.checkTimeout()).thenThrow(new SessionException("Broken"));
+        final RevocableTicketService revocableTicketService = mock(RevocableTicketService.class);
+        action = new ValidateIdpSessionAction(mockResolver(session));
+        action.setTicketService(revocableTicketService);
+        action.initialize();
+        assertEquals(action.execute(context).getId(), ProtocolError.SessionExpired.id());
+        verify(revocableTicketService, never()).removeTicketsForSession(anyString());
+    }
+
+    @Test
+    public void testSessionExpiredRemovesTickets() throws Exception {
+        final ServiceTicket ticket = ticketService.createServiceTicket(TEST_SESSION_ID, TEST_SERVICE, false);
+        final RequestContext context = createTicketContext(ticket);
+        final TicketValidationRequest request = new TicketValidationRequest(TEST_SERVICE, ticket.getId());
+        FlowStateSupport.setTicketValidationRequest(context, request);
+        final RevocableTicketService revocableTicketService = mock(RevocableTicketService.class);
+        action = new ValidateIdpSessionAction(mockResolver(createSession(TEST_SESSION_ID, false)));
+        action.setTicketService(revocableTicketService);
+        action.initialize();
+        assertEquals(action.execute(context).getId(), ProtocolError.SessionExpired.id());
+        verify(revocableTicketService).removeTicketsForSession(TEST_SESSION_ID);
+    }
+
     private SessionResolver mockResolver(final IdPSession session) {
         final SessionResolver mockSessionResolver = mock(SessionResolver.class);
         try {
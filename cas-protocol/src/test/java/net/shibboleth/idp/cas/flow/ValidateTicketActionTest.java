@@ -4,10 +4,15 @@
 
 package net.shibboleth.idp.cas.flow;
 
+import java.util.Collections;
+
+import net.shibboleth.idp.cas.config.ServiceTicketConfiguration;
 import net.shibboleth.idp.cas.protocol.ProtocolError;
 import net.shibboleth.idp.cas.protocol.TicketValidationRequest;
 import net.shibboleth.idp.cas.ticket.ServiceTicket;
+import net.shibboleth.idp.cas.ticket.TicketIdentifierGenerationStrategy;
 import net.shibboleth.idp.cas.ticket.TicketService;
+import net.shibboleth.idp.profile.config.SecurityConfiguration;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.webflow.execution.RequestContext;
@@ -79,6 +84,24 @@ public class ValidateTicketActionTest extends AbstractProfileActionTest {
         assertNotNull(FlowStateSupport.getTicketValidationResponse(context));
     }
 
+    @Test
+    public void testInvalidTagRejectedWithoutStorageAccess() throws Exception {
+        final RequestContext context = createProfileContext();
+        final TicketService mockTicketService = mock(TicketService.class);
+        final TicketIdentifierGenerationStrategy generator = new TicketIdentifierGenerationStrategy(25, "ST");
+        generator.setTagSecrets(Collections.singletonList("AAECAwQFBgcICQoLDA0ODw=="));
+        final ServiceTicketConfiguration config = new ServiceTicketConfiguration();
+        config.setSecurityConfiguration(new SecurityConfiguration(300000, generator));
+        final ValidateTicketAction action = new ValidateTicketAction(mockTicketService);
+        action.setServiceTicketConfiguration(config);
+        action.initialize();
+
+        final String forged = generator.generateIdentifier().replaceFirst("-\\d+-", "-1-");
+        FlowStateSupport.setTicketValidationRequest(context, new TicketValidationRequest(TEST_SERVICE, forged));
+        assertEquals(action.execute(context).getId(), ProtocolError.TicketExpired.id());
+        verify(mockTicketService, never()).removeServiceTicket(any(String.class));
+    }
+
     private static ValidateTicketAction newAction(final TicketService service) {
         final ValidateTicketAction action = new ValidateTicketAction(service);
         try {
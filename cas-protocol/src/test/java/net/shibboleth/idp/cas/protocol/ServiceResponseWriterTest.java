@@ -0,0 +1,88 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.protocol;
+
+import java.io.ByteArrayOutputStream;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Unit test for {@link ServiceResponseWriter} class.
+ */
+public class ServiceResponseWriterTest {
+
+    @Test
+    public void testWriteSuccess() throws Exception {
+        final TicketValidationResponse response = new TicketValidationResponse();
+        response.setUserName("j<o>hn");
+        response.setPgtIou("PGTIOU-1-abc");
+        response.addAttribute("mail", "john@example.org");
+        response.addAttribute("cn", "John Ångström & 😀");
+        response.addProxy("https://proxy2.example.org/");
+        response.addProxy("https://proxy1.example.org/");
+
+        final String xml = write(new ServiceResponseWriter(), response, null);
+        assertTrue(xml.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<cas:serviceResponse xmlns:cas=\"http://www.yale.edu/tp/cas\">\n"));
+        assertTrue(xml.contains("<cas:user>j&lt;o&gt;hn</cas:user>"));
+        assertTrue(xml.contains("<cas:proxyGrantingTicket>PGTIOU-1-abc</cas:proxyGrantingTicket>"));
+        assertTrue(xml.contains("<cas:mail>john@example.org</cas:mail>"));
+        assertTrue(xml.contains("<cas:cn>John Ångström &amp; 😀</cas:cn>"));
+        assertTrue(xml.contains("<cas:proxies>\n      <cas:proxy>https://proxy2.example.org/</cas:proxy>\n"
+                + "      <cas:proxy>https://proxy1.example.org/</cas:proxy>\n    </cas:proxies>"));
+        assertTrue(xml.endsWith("</cas:authenticationSuccess>\n</cas:serviceResponse>\n"));
+    }
+
+    @Test
+    public void testWriteSuccessWithoutOptionalElements() throws Exception {
+        final TicketValidationResponse response = new TicketValidationResponse();
+        response.setUserName("john");
+        final String xml = write(new ServiceResponseWriter(), response, null);
+        assertFalse(xml.contains("proxyGrantingTicket"));
+        assertFalse(xml.contains("cas:attributes"));
+        assertFalse(xml.contains("cas:proxies"));
+    }
+
+    @Test
+    public void testAttributeCache() throws Exception {
+        final ServiceResponseWriter writer = new ServiceResponseWriter();
+        writer.setAttributeCacheTTL(60000);
+        final TicketValidationResponse first = new TicketValidationResponse();
+        first.setUserName("john");
+        first.addAttribute("mail", "john@example.org");
+        final TicketValidationResponse second = new TicketValidationResponse();
+        second.setUserName("john");
+        second.addAttribute("mail", "changed@example.org");
+
+        assertTrue(write(writer, first, "session\ngroup").contains("john@example.org"));
+        assertTrue(write(writer, second, "session\ngroup").contains("john@example.org"));
+        assertTrue(write(writer, second, "session\nother").contains("changed@example.org"));
+        assertTrue(write(writer, second, null).contains("changed@example.org"));
+    }
+
+    @Test
+    public void testWriteFailure() throws Exception {
+        final ServiceResponseWriter writer = new ServiceResponseWriter();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeFailure(out, ProtocolError.TicketExpired.getCode(), ProtocolError.TicketExpired.getDetailCode());
+        final String xml = out.toString("UTF-8");
+        assertTrue(xml.contains("<cas:authenticationFailure code=\"INVALID_TICKET\">\n    E_TICKET_EXPIRED\n"));
+        assertTrue(xml.endsWith("</cas:serviceResponse>\n"));
+
+        final ByteArrayOutputStream custom = new ByteArrayOutputStream();
+        writer.writeFailure(custom, "CUSTOM\"", "E_CUSTOM");
+        assertTrue(custom.toString("UTF-8").contains("code=\"CUSTOM&quot;\""));
+    }
+
+    private static String write(
+            final ServiceResponseWriter writer, final TicketValidationResponse response, final String key)
+            throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeSuccess(out, response, key);
+        return out.toString("UTF-8");
+    }
+}
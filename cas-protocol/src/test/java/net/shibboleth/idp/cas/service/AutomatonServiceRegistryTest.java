@@ -0,0 +1,138 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.service;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class AutomatonServiceRegistryTest {
+
+    private static final String[] INPUTS = {
+            "",
+            "https://example.org/",
+            "https://app.example.org/landing?x=1",
+            "https://a.b.example.org:8443/",
+            "https://example.org:/",
+            "http://example.org/",
+            "https://trusted.example.org/landing",
+            "https://EXAMPLE.org/",
+            "https://été.example.org/😀",
+            "https://example.org/\n",
+            "aaaaaaaaaaaaaaaaaaaaaaaaaaaaab",
+            "aaaaaaaaaaaaaaaaaaaaaaaaaaaaac",
+            "abcabc",
+            "x-y_z 1\t",
+    };
+
+    @DataProvider(name = "supported")
+    public Object[][] getSupported() {
+        return new Object[][] {
+                { "https://([A-Za-z0-9_-]+\\.)*example\\.org(:\\d+)?/.*" },
+                { "^https://trusted\\.example\\.org/.*$" },
+                { "https?://(?:app|trusted)\\.example\\.org/.*" },
+                { "https://[^/]+/" },
+                { "https://.*?\\.example\\.org/.+" },
+                { "\\Qhttps://example.org/\\E.*" },
+                { "(a+)+b" },
+                { "(a|aa)*c" },
+                { "(abc){2}" },
+                { "a{2,5}.*" },
+                { "[\\w\\- ]+\\s" },
+                { "\\x61*\\u0062" },
+                { "" },
+                { ".*" },
+                { "[^a]*" },
+                { "https://\\W*.*" },
+        };
+    }
+
+    @Test(dataProvider = "supported")
+    public void testMatchesLikeRegex(final String regex) {
+        final ServiceAutomaton automaton = new ServiceAutomaton(Collections.singletonList(regex));
+        final Pattern pattern = Pattern.compile(regex);
+        for (final String input : INPUTS) {
+            assertEquals(automaton.match(input) == 0, pattern.matcher(input).matches(), regex + " on " + input);
+        }
+    }
+
+    @DataProvider(name = "unsupported")
+    public Object[][] getUnsupported() {
+        return new Object[][] {
+                { "(a)\\1" },
+                { "(?=a)a" },
+                { "(?i)a" },
+                { "a*+" },
+                { "\\bfoo" },
+                { "[a-z&&[^b]]" },
+                { "a^b" },
+                { "a$b" },
+                { "\\p{Alpha}" },
+                { "a{1000}" },
+                { "(a" },
+                { "[a" },
+        };
+    }
+
+    @Test(dataProvider = "unsupported", expectedExceptions = IllegalArgumentException.class)
+    public void testRejectsUnsupported(final String regex) {
+        final AutomatonServiceRegistry registry = new AutomatonServiceRegistry();
+        registry.setDefinitions(Collections.singletonList(new ServiceDefinition(Pattern.compile(regex))));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testRejectsFlags() {
+        final AutomatonServiceRegistry registry = new AutomatonServiceRegistry();
+        registry.setDefinitions(Collections.singletonList(
+                new ServiceDefinition(Pattern.compile("https://a\\.org/.*", Pattern.CASE_INSENSITIVE))));
+    }
+
+    @Test
+    public void testFirstMatchWins() {
+        final ServiceDefinition d1 = new ServiceDefinition("https://([A-Za-z0-9_-]+\\.)*example\\.org(:\\d+)?/.*");
+        d1.setGroup("example.org-plus-subdomains");
+        final ServiceDefinition d2 = new ServiceDefinition("https://trusted\\.example\\.org/.*");
+        d2.setGroup("trusted-service");
+        d2.setAuthorizedToProxy(true);
+        final AutomatonServiceRegistry registry = new AutomatonServiceRegistry();
+
+        registry.setDefinitions(Arrays.asList(d1, d2));
+        assertEquals(registry.lookup("https://trusted.example.org/landing").getGroup(), "example.org-plus-subdomains");
+        assertNull(registry.lookup("https://service.untrusted.org/landing"));
+
+        final long version = registry.getVersion();
+        registry.setDefinitions(Arrays.asList(d2, d1));
+        assertTrue(registry.getVersion() > version);
+        final Service service = registry.lookup("https://trusted.example.org/landing");
+        assertEquals(service.getGroup(), "trusted-service");
+        assertTrue(service.isAuthorizedToProxy());
+    }
+
+    @Test
+    public void testStateCacheBound() {
+        final ServiceAutomaton automaton = new ServiceAutomaton(Arrays.asList("(a|b)*a(a|b){8}", ".*"), 16);
+        final String input = "abbabaabbbabababbbaaabbbabababaabbbababbbaabab";
+        final boolean expected = Pattern.matches("(a|b)*a(a|b){8}", input);
+        assertEquals(automaton.match(input), expected ? 0 : 1);
+        assertEquals(automaton.match("aaaaaaaaa"), 0);
+        assertEquals(automaton.match("bbbbbbbbb"), 1);
+    }
+
+    @Test(timeOut = 5000)
+    public void testPathologicalInputIsLinear() {
+        final ServiceAutomaton automaton = new ServiceAutomaton(Collections.singletonList("(a+)+b"));
+        final StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            input.append('a');
+        }
+        assertEquals(automaton.match(input.toString()), -1);
+        assertEquals(automaton.match(input.append('b').toString()), 0);
+    }
+}
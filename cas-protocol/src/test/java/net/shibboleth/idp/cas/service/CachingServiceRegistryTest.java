@@ -0,0 +1,80 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.service;
+
+import java.util.Collections;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Unit test for {@link CachingServiceRegistry} class.
+ */
+public class CachingServiceRegistryTest {
+
+    private static final String KNOWN = "https://app.example.org/landing";
+
+    private static final String UNKNOWN = "https://unknown.example.com/";
+
+    @Test
+    public void testCachesMatchesAndNonMatches() throws Exception {
+        final PatternServiceRegistry delegate = newRegistry("https://app\\.example\\.org/.*", "app");
+        final CachingServiceRegistry registry = new CachingServiceRegistry(delegate);
+
+        // First lookup is remembered, second is admitted, third is a hit
+        final Service first = registry.lookup(KNOWN);
+        final Service second = registry.lookup(KNOWN);
+        final Service third = registry.lookup(KNOWN);
+        assertEquals(first.getGroup(), "app");
+        assertSame(third, second);
+        assertNull(registry.lookup(UNKNOWN));
+        assertNull(registry.lookup(UNKNOWN));
+        assertNull(registry.lookup(UNKNOWN));
+        assertEquals(registry.getHitCount(), 2);
+        assertEquals(registry.getMissCount(), 4);
+    }
+
+    @Test
+    public void testInvalidatedOnDefinitionChange() throws Exception {
+        final PatternServiceRegistry delegate = newRegistry("https://app\\.example\\.org/.*", "app");
+        final CachingServiceRegistry registry = new CachingServiceRegistry(delegate);
+        registry.lookup(KNOWN);
+        registry.lookup(KNOWN);
+        registry.lookup(UNKNOWN);
+        registry.lookup(UNKNOWN);
+        assertEquals(registry.lookup(KNOWN).getGroup(), "app");
+        assertNull(registry.lookup(UNKNOWN));
+
+        final ServiceDefinition def = new ServiceDefinition("https://.*");
+        def.setGroup("everything");
+        delegate.setDefinitions(Collections.singletonList(def));
+        assertEquals(registry.lookup(KNOWN).getGroup(), "everything");
+        assertEquals(registry.lookup(UNKNOWN).getGroup(), "everything");
+        assertEquals(registry.getHitCount(), 0);
+    }
+
+    @Test
+    public void testExplicitInvalidate() throws Exception {
+        final CachingServiceRegistry registry =
+                new CachingServiceRegistry(newRegistry("https://app\\.example\\.org/.*", "app"));
+        registry.lookup(KNOWN);
+        registry.lookup(KNOWN);
+        registry.lookup(KNOWN);
+        assertEquals(registry.getHitCount(), 1);
+        registry.invalidate();
+        assertEquals(registry.getHitCount(), 0);
+        registry.lookup(KNOWN);
+        assertEquals(registry.getHitCount(), 0);
+    }
+
+    private static PatternServiceRegistry newRegistry(final String regex, final String group) {
+        final ServiceDefinition def = new ServiceDefinition(regex);
+        def.setGroup(group);
+        final PatternServiceRegistry registry = new PatternServiceRegistry();
+        registry.setDefinitions(Collections.singletonList(def));
+        return registry;
+    }
+}
@@ -4,8 +4,10 @@
 
 package net.shibboleth.idp.cas.service;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.regex.Pattern;
 
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
@@ -56,4 +58,49 @@ public class PatternServiceRegistryTest {
             assertEquals(actual.isAuthorizedToProxy(), expected.isAuthorizedToProxy());
         }
     }
-}
\ No newline at end of file
+
+    @DataProvider(name = "prefixes")
+    public Object[][] getPrefixes() {
+        return new Object[][] {
+                { "https://([A-Za-z0-9_-]+\\.)*example\\.org(:\\d+)?/.*", "https://" },
+                { "https://app\\.example\\.org/.*", "https://app.example.org/" },
+                { "^https://app\\.example\\.org/a+b", "https://app.example.org/a" },
+                { "https://app\\.example\\.orgs?/.*", "https://app.example.org" },
+                { "https://app\\.example\\.org\\d*/", "https://app.example.org" },
+                { "https://a\\.org/.*|https://b\\.org/.*", "" },
+                { "https://(a|b)\\.org/.*", "https://" },
+                { "(?i)https://a\\.org/.*", "" },
+                { "http[s]?://a\\.org/.*", "http" },
+                { "\\Qhttps://a.org/\\E.*", "" },
+        };
+    }
+
+    @Test(dataProvider = "prefixes")
+    public void testLiteralPrefix(final String regex, final String expected) {
+        assertEquals(ServiceDefinitionIndex.literalPrefix(Pattern.compile(regex)), expected);
+        assertEquals(ServiceDefinitionIndex.literalPrefix(Pattern.compile(regex, Pattern.CASE_INSENSITIVE)), "");
+    }
+
+    @Test
+    public void testIndexedLookupPreservesFirstMatch() throws Exception {
+        final List<ServiceDefinition> definitions = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            final ServiceDefinition def = new ServiceDefinition("https://app" + i + "\\.example\\.org/.*");
+            def.setGroup("app" + i);
+            definitions.add(def);
+        }
+        final ServiceDefinition catchAll = new ServiceDefinition("https://.*\\.example\\.org/.*");
+        catchAll.setGroup("catch-all");
+        definitions.add(1000, catchAll);
+        final PatternServiceRegistry registry = new PatternServiceRegistry();
+        registry.setDefinitions(definitions);
+
+        // app1 precedes the catch-all definition, app1500 follows it
+        assertEquals(registry.lookup("https://app1.example.org/landing").getGroup(), "app1");
+        assertEquals(registry.lookup("https://app1500.example.org/landing").getGroup(), "catch-all");
+        assertEquals(registry.lookup("https://app15.example.org/landing").getGroup(), "app15");
+        assertEquals(registry.lookup("https://other.example.org/").getGroup(), "catch-all");
+        assertNull(registry.lookup("https://app1.example.com/"));
+        assertNull(registry.lookup("http"));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import org.springframework.core.io.FileSystemResource;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class ReloadingServiceRegistryTest {
+
+    private File file;
+
+    private ReloadingServiceRegistry registry;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        file = File.createTempFile("services", ".xml");
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        if (registry != null) {
+            registry.destroy();
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testReloadOnModification() throws Exception {
+        write("https://a\\.example\\.org/.*", "a");
+        registry = new ReloadingServiceRegistry(new FileSystemResource(file));
+        registry.setPollInterval(50);
+        registry.initialize();
+        assertEquals(registry.lookup("https://a.example.org/x").getGroup(), "a");
+        assertNull(registry.lookup("https://b.example.org/x"));
+        final long version = registry.getVersion();
+
+        write("https://b\\.example\\.org/.*", "b");
+        assertTrue(file.setLastModified(file.lastModified() + 2000));
+        for (int i = 0; i < 100 && registry.getVersion() == version; i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(registry.getVersion() > version);
+        assertNull(registry.lookup("https://a.example.org/x"));
+        assertEquals(registry.lookup("https://b.example.org/x").getGroup(), "b");
+    }
+
+    @Test
+    public void testBrokenReloadRetainsSnapshot() throws Exception {
+        write("https://a\\.example\\.org/.*", "a");
+        registry = new ReloadingServiceRegistry(new FileSystemResource(file));
+        registry.setUseAutomaton(true);
+        registry.initialize();
+        final long version = registry.getVersion();
+
+        write("https://a\\.example\\.org/(?=x).*", "a");
+        try {
+            registry.reload();
+            fail("Expected unsupported pattern to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(registry.getVersion(), version);
+        assertEquals(registry.lookup("https://a.example.org/x").getGroup(), "a");
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testInitializeFailsOnMissingFile() throws Exception {
+        registry = new ReloadingServiceRegistry(new FileSystemResource(new File(file.getPath() + ".missing")));
+        registry.initialize();
+    }
+
+    private void write(final String regex, final String group) throws Exception {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<beans xmlns=\"http://www.springframework.org/schema/beans\"\n"
+                    + "       xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n"
+                    + "       xmlns:c=\"http://www.springframework.org/schema/c\"\n"
+                    + "       xmlns:p=\"http://www.springframework.org/schema/p\"\n"
+                    + "       xsi:schemaLocation=\"http://www.springframework.org/schema/beans\n"
+                    + "           http://www.springframework.org/schema/beans/spring-beans.xsd\">\n"
+                    + "    <bean class=\"net.shibboleth.idp.cas.service.ServiceDefinition\"\n"
+                    + "          c:regex=\"" + regex + "\" p:group=\"" + group + "\" />\n"
+                    + "</beans>\n");
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.session;
+
+import net.shibboleth.idp.session.IdPSession;
+import net.shibboleth.idp.session.SPSession;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.Test;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.*;
+
+/**
+ * Unit test for {@link AsyncSPSessionRecorder} class.
+ */
+public class AsyncSPSessionRecorderTest {
+
+    @Test
+    public void testCoalescesAdditionsPerService() throws Exception {
+        final IdPSession session = mockSession("session-1");
+        final AsyncSPSessionRecorder recorder = newRecorder(60000, 100);
+        try {
+            assertTrue(recorder.record(session, spSession("https://a.example.org/", "ST-1")));
+            assertTrue(recorder.record(session, spSession("https://b.example.org/", "ST-2")));
+            assertTrue(recorder.record(session, spSession("https://a.example.org/", "ST-3")));
+            assertEquals(recorder.getPendingCount(), 2);
+            verify(session, never()).addSPSession(any(SPSession.class));
+
+            recorder.flush();
+            final ArgumentCaptor<SPSession> captor = ArgumentCaptor.forClass(SPSession.class);
+            verify(session, times(2)).addSPSession(captor.capture());
+            assertEquals(((CASSPSession) captor.getAllValues().get(0)).getTicketId(), "ST-2");
+            assertEquals(((CASSPSession) captor.getAllValues().get(1)).getTicketId(), "ST-3");
+            assertEquals(recorder.getPendingCount(), 0);
+        } finally {
+            recorder.destroy();
+        }
+    }
+
+    @Test
+    public void testBoundedQueueAndFlushOnDestroy() throws Exception {
+        final IdPSession session1 = mockSession("session-1");
+        final IdPSession session2 = mockSession("session-2");
+        final AsyncSPSessionRecorder recorder = newRecorder(60000, 1);
+        assertTrue(recorder.record(session1, spSession("https://a.example.org/", "ST-1")));
+        assertFalse(recorder.record(session2, spSession("https://a.example.org/", "ST-2")));
+        // Replacing a queued entry does not need additional capacity
+        assertTrue(recorder.record(session1, spSession("https://a.example.org/", "ST-3")));
+
+        recorder.destroy();
+        verify(session1, times(1)).addSPSession(any(SPSession.class));
+        assertFalse(recorder.record(session1, spSession("https://b.example.org/", "ST-4")));
+    }
+
+    @Test
+    public void testBackgroundFlush() throws Exception {
+        final IdPSession session = mockSession("session-1");
+        final AsyncSPSessionRecorder recorder = newRecorder(50, 100);
+        try {
+            assertTrue(recorder.record(session, spSession("https://a.example.org/", "ST-1")));
+            verify(session, timeout(2000)).addSPSession(any(SPSession.class));
+        } finally {
+            recorder.destroy();
+        }
+    }
+
+    @Test
+    public void testDisabledDeclines() throws Exception {
+        final AsyncSPSessionRecorder recorder = newRecorder(0, 100);
+        assertFalse(recorder.record(mockSession("session-1"), spSession("https://a.example.org/", "ST-1")));
+        recorder.destroy();
+    }
+
+    private static AsyncSPSessionRecorder newRecorder(final long interval, final int maxPending) {
+        final AsyncSPSessionRecorder recorder = new AsyncSPSessionRecorder();
+        recorder.setFlushInterval(interval);
+        recorder.setMaxPending(maxPending);
+        recorder.initialize();
+        return recorder;
+    }
+
+    private static CASSPSession spSession(final String service, final String ticketId) {
+        final long now = System.currentTimeMillis();
+        return new CASSPSession(service, now, now + 60000, ticketId);
+    }
+
+    private static IdPSession mockSession(final String id) {
+        final IdPSession session = mock(IdPSession.class);
+        when(session.getId()).thenReturn(id);
+        return session;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.session;
+
+import net.shibboleth.idp.session.IdPSession;
+import net.shibboleth.idp.session.SessionManager;
+import net.shibboleth.idp.session.SessionResolver;
+import net.shibboleth.idp.session.criterion.SessionIdCriterion;
+import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
+import org.testng.annotations.Test;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.*;
+
+/**
+ * Unit test for {@link CachingSessionResolver} class.
+ */
+public class CachingSessionResolverTest {
+
+    private static final String SESSION_ID = "jHXRo42W0ATPEN+X5Zk1cw==";
+
+    @Test
+    public void testCachesResolvedSession() throws Exception {
+        final IdPSession session = mockSession(SESSION_ID);
+        final SessionResolver delegate = mock(SessionResolver.class);
+        when(delegate.resolveSingle(any(CriteriaSet.class))).thenReturn(session);
+        final CachingSessionResolver resolver = new CachingSessionResolver(delegate);
+        resolver.setTimeToLive(60000);
+
+        assertSame(resolver.resolveSingle(criteria(SESSION_ID)), session);
+        assertSame(resolver.resolveSingle(criteria(SESSION_ID)), session);
+        assertSame(resolver.resolve(criteria(SESSION_ID)).iterator().next(), session);
+        verify(delegate, times(1)).resolveSingle(any(CriteriaSet.class));
+        assertEquals(resolver.getStats().hitCount(), 2);
+
+        resolver.invalidate(SESSION_ID);
+        assertSame(resolver.resolveSingle(criteria(SESSION_ID)), session);
+        verify(delegate, times(2)).resolveSingle(any(CriteriaSet.class));
+    }
+
+    @Test
+    public void testDoesNotCacheAbsentSession() throws Exception {
+        final SessionResolver delegate = mock(SessionResolver.class);
+        when(delegate.resolveSingle(any(CriteriaSet.class))).thenReturn(null);
+        final CachingSessionResolver resolver = new CachingSessionResolver(delegate);
+        resolver.setTimeToLive(60000);
+
+        assertNull(resolver.resolveSingle(criteria(SESSION_ID)));
+        assertFalse(resolver.resolve(criteria(SESSION_ID)).iterator().hasNext());
+        verify(delegate, times(2)).resolveSingle(any(CriteriaSet.class));
+    }
+
+    @Test
+    public void testPutAndDisabled() throws Exception {
+        final IdPSession session = mockSession(SESSION_ID);
+        final SessionResolver delegate = mock(SessionResolver.class);
+        final CachingSessionResolver resolver = new CachingSessionResolver(delegate);
+        resolver.put(session);
+        assertNull(resolver.resolveSingle(criteria(SESSION_ID)));
+        verify(delegate, times(1)).resolveSingle(any(CriteriaSet.class));
+
+        resolver.setTimeToLive(60000);
+        resolver.put(session);
+        assertSame(resolver.resolveSingle(criteria(SESSION_ID)), session);
+        verify(delegate, times(1)).resolveSingle(any(CriteriaSet.class));
+    }
+
+    @Test
+    public void testDestroyedSessionNotResolvedFromCache() throws Exception {
+        final IdPSession session = mockSession(SESSION_ID);
+        final SessionResolver delegate = mock(SessionResolver.class);
+        when(delegate.resolveSingle(any(CriteriaSet.class))).thenReturn(session);
+        final CachingSessionResolver resolver = new CachingSessionResolver(delegate);
+        resolver.setTimeToLive(60000);
+        final SessionManager delegateManager = mock(SessionManager.class);
+        final CacheInvalidatingSessionManager manager = new CacheInvalidatingSessionManager(delegateManager, resolver);
+
+        assertSame(resolver.resolveSingle(criteria(SESSION_ID)), session);
+        assertEquals(resolver.getStats().missCount(), 1);
+        manager.destroySession(SESSION_ID, true);
+        verify(delegateManager).destroySession(SESSION_ID, true);
+
+        when(delegate.resolveSingle(any(CriteriaSet.class))).thenReturn(null);
+        assertNull(resolver.resolveSingle(criteria(SESSION_ID)));
+        assertEquals(resolver.getStats().missCount(), 2);
+        assertEquals(resolver.getStats().hitCount(), 0);
+        verify(delegate, times(2)).resolveSingle(any(CriteriaSet.class));
+    }
+
+    private static CriteriaSet criteria(final String sessionId) {
+        return new CriteriaSet(new SessionIdCriterion(sessionId));
+    }
+
+    private static IdPSession mockSession(final String sessionId) {
+        final IdPSession session = mock(IdPSession.class);
+        when(session.getId()).thenReturn(sessionId);
+        return session;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.session;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Unit test for {@link CompactCASSPSessionSerializer} class.
+ */
+public class CompactCASSPSessionSerializerTest {
+
+    private static final long CREATION = 1410532279838L;
+
+    private static final long EXPIRATION = CREATION + 7200000;
+
+    private static final String TICKET = "ST-1234126-ABC1346DEADBEEF";
+
+    @Test
+    public void testDictionaryEncodedRoundTrip() throws Exception {
+        final CompactCASSPSessionSerializer serializer = newSerializer();
+        final CASSPSession original =
+                new CASSPSession("https://app.example.org/portal/home", CREATION, EXPIRATION, TICKET);
+        final String serialized = serializer.serialize(original);
+        assertTrue(serialized.startsWith("~1;"));
+        assertFalse(serialized.contains("https://app.example.org/"));
+        assertTrue(serialized.length() < new CASSPSessionSerializer(0).serialize(original).length());
+        assertSession(serializer.deserialize(1, "context", "key", serialized, EXPIRATION), original, TICKET);
+    }
+
+    @Test
+    public void testLiteralServiceRoundTrip() throws Exception {
+        final CompactCASSPSessionSerializer serializer = newSerializer();
+        final CASSPSession original = new CASSPSession("https://other.example.com/;x=1", CREATION, EXPIRATION, TICKET);
+        final String serialized = serializer.serialize(original);
+        assertSession(serializer.deserialize(1, "context", "key", serialized, EXPIRATION), original, TICKET);
+    }
+
+    @Test
+    public void testHashedTicketId() throws Exception {
+        final CompactCASSPSessionSerializer serializer = newSerializer();
+        serializer.setHashTicketIds(true);
+        final CASSPSession original = new CASSPSession("https://app.example.org/", CREATION, EXPIRATION, TICKET);
+        final CASSPSession deserialized = (CASSPSession) serializer.deserialize(
+                1, "context", "key", serializer.serialize(original), EXPIRATION);
+        assertEquals(deserialized.getId(), original.getId());
+        assertTrue(deserialized.getTicketId().startsWith("#"));
+        assertFalse(deserialized.getTicketId().contains(TICKET));
+    }
+
+    @Test
+    public void testReadsJson() throws Exception {
+        final CASSPSession original = new CASSPSession("https://app.example.org/", CREATION, EXPIRATION, TICKET);
+        final String json = new CASSPSessionSerializer(0).serialize(original);
+        assertSession(newSerializer().deserialize(1, "context", "key", json, EXPIRATION), original, TICKET);
+
+        // JSON is written by default
+        assertTrue(new CompactCASSPSessionSerializer(0).serialize(original).startsWith("{"));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testUnknownPrefixCode() throws Exception {
+        final CASSPSession original = new CASSPSession("https://app.example.org/", CREATION, EXPIRATION, TICKET);
+        final String serialized = newSerializer().serialize(original);
+        new CompactCASSPSessionSerializer(0).deserialize(1, "context", "key", serialized, EXPIRATION);
+    }
+
+    private static CompactCASSPSessionSerializer newSerializer() {
+        final CompactCASSPSessionSerializer serializer = new CompactCASSPSessionSerializer(0);
+        serializer.setServicePrefixes(Arrays.asList("https://app.example.org/", "https://app.example.org/portal/"));
+        serializer.setWriteCompact(true);
+        return serializer;
+    }
+
+    private static void assertSession(final Object actual, final CASSPSession expected, final String ticketId) {
+        final CASSPSession session = (CASSPSession) actual;
+        assertEquals(session.getId(), expected.getId());
+        assertEquals(session.getCreationInstant(), expected.getCreationInstant());
+        assertEquals(session.getExpirationInstant(), expected.getExpirationInstant());
+        assertEquals(session.getTicketId(), ticketId);
+    }
+}
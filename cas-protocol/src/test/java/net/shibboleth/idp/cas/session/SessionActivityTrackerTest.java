@@ -0,0 +1,72 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.session;
+
+import net.shibboleth.idp.session.IdPSession;
+import org.testng.annotations.Test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.*;
+
+/**
+ * Unit test for {@link SessionActivityTracker} class.
+ */
+public class SessionActivityTrackerTest {
+
+    @Test
+    public void testCoalescesChecksWithinInterval() throws Exception {
+        final IdPSession session = mockSession("active", true);
+        final SessionActivityTracker tracker = new SessionActivityTracker();
+        tracker.setFlushInterval(60000);
+        assertTrue(tracker.checkTimeout(session));
+        assertTrue(tracker.checkTimeout(session));
+        assertTrue(tracker.checkTimeout(session));
+        verify(session, times(1)).checkTimeout();
+
+        tracker.invalidate("active");
+        assertTrue(tracker.checkTimeout(session));
+        verify(session, times(2)).checkTimeout();
+    }
+
+    @Test
+    public void testChecksAgainAfterInterval() throws Exception {
+        final IdPSession session = mockSession("active", true);
+        final SessionActivityTracker tracker = new SessionActivityTracker();
+        tracker.setFlushInterval(50);
+        assertTrue(tracker.checkTimeout(session));
+        Thread.sleep(100);
+        assertTrue(tracker.checkTimeout(session));
+        verify(session, times(2)).checkTimeout();
+    }
+
+    @Test
+    public void testExpiredSessionIsNotRemembered() throws Exception {
+        final IdPSession session = mockSession("expired", false);
+        final SessionActivityTracker tracker = new SessionActivityTracker();
+        tracker.setFlushInterval(60000);
+        assertFalse(tracker.checkTimeout(session));
+        assertFalse(tracker.checkTimeout(session));
+        verify(session, times(2)).checkTimeout();
+    }
+
+    @Test
+    public void testDisabledChecksEveryCall() throws Exception {
+        final IdPSession session = mockSession("active", true);
+        final SessionActivityTracker tracker = new SessionActivityTracker();
+        assertTrue(tracker.checkTimeout(session));
+        assertTrue(tracker.checkTimeout(session));
+        verify(session, times(2)).checkTimeout();
+    }
+
+    private static IdPSession mockSession(final String id, final boolean active) throws Exception {
+        final IdPSession session = mock(IdPSession.class);
+        when(session.getId()).thenReturn(id);
+        when(session.checkTimeout()).thenReturn(active);
+        return session;
+    }
+}
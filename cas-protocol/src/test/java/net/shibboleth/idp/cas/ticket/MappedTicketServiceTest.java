@@ -0,0 +1,155 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.ticket;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.shibboleth.idp.cas.config.AbstractTicketConfiguration;
+import net.shibboleth.idp.cas.config.ProxyGrantingTicketConfiguration;
+import net.shibboleth.idp.cas.config.ProxyTicketConfiguration;
+import net.shibboleth.idp.cas.config.ServiceTicketConfiguration;
+import net.shibboleth.idp.profile.config.SecurityConfiguration;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Unit test for {@link MappedTicketService} class.
+ */
+public class MappedTicketServiceTest {
+
+    private static final String TEST_SESSION_ID = "jHXRo42W0ATPEN+X5Zk1cw==";
+
+    private static final String TEST_SERVICE = "https://example.com/widget";
+
+    private File file;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        file = File.createTempFile("cas-tickets", ".bin");
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void testCreateFetchRemove() throws Exception {
+        final MappedTicketService ticketService = newTicketService(16);
+        try {
+            final ServiceTicket st = ticketService.createServiceTicket(TEST_SESSION_ID, TEST_SERVICE, true);
+            assertNull(ticketService.removeProxyTicket(st.getId()));
+            final ServiceTicket removedSt = ticketService.removeServiceTicket(st.getId());
+            assertEquals(removedSt, st);
+            assertTrue(removedSt.isRenew());
+            assertEquals(removedSt.getExpirationInstant(), st.getExpirationInstant());
+            assertNull(ticketService.removeServiceTicket(st.getId()));
+
+            final ProxyGrantingTicket pgt = ticketService.createProxyGrantingTicket(st, "PGT-1234567890");
+            final ProxyTicket pt = ticketService.createProxyTicket(pgt, TEST_SERVICE);
+            assertEquals(ticketService.removeProxyTicket(pt.getId()).getPgtId(), pgt.getId());
+            assertEquals(ticketService.fetchProxyGrantingTicket(pgt.getId()), pgt);
+            assertEquals(ticketService.removeProxyGrantingTicket(pgt.getId()), pgt);
+            assertNull(ticketService.fetchProxyGrantingTicket(pgt.getId()));
+        } finally {
+            ticketService.destroy();
+        }
+    }
+
+    @Test
+    public void testSlotReuse() throws Exception {
+        final MappedTicketService ticketService = newTicketService(4);
+        try {
+            for (int i = 0; i < 20; i++) {
+                final ServiceTicket st = ticketService.createServiceTicket(TEST_SESSION_ID, TEST_SERVICE, false);
+                assertEquals(ticketService.removeServiceTicket(st.getId()), st);
+            }
+        } finally {
+            ticketService.destroy();
+        }
+    }
+
+    @Test
+    public void testChurnKeepsLiveTickets() throws Exception {
+        final MappedTicketService ticketService = newTicketService(32);
+        try {
+            final List<ServiceTicket> kept = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                kept.add(ticketService.createServiceTicket(TEST_SESSION_ID, TEST_SERVICE, false));
+            }
+            // Far more insertions than slots, leaving removed slots behind on every probe path
+            for (int i = 0; i < 1000; i++) {
+                final ServiceTicket st = ticketService.createServiceTicket(TEST_SESSION_ID, TEST_SERVICE, false);
+                ticketService.createProxyGrantingTicket(st, "PGT-" + i);
+                assertNotNull(ticketService.removeProxyGrantingTicket("PGT-" + i));
+                assertEquals(ticketService.removeServiceTicket(st.getId()), st);
+            }
+            for (final ServiceTicket st : kept) {
+                assertEquals(ticketService.removeServiceTicket(st.getId()), st);
+            }
+        } finally {
+            ticketService.destroy();
+        }
+    }
+
+    @Test
+    public void testReattach() throws Exception {
+        final MappedTicketService first = newTicketService(16);
+        final ServiceTicket st = first.createServiceTicket(TEST_SESSION_ID, TEST_SERVICE, false);
+        final ProxyGrantingTicket pgt = first.createProxyGrantingTicket(st, "PGT-0987654321");
+        first.destroy();
+
+        final MappedTicketService second = newTicketService(1024);
+        try {
+            final ProxyGrantingTicket reattached = second.fetchProxyGrantingTicket(pgt.getId());
+            assertNotNull(reattached);
+            assertEquals(reattached.getSessionId(), TEST_SESSION_ID);
+            assertEquals(reattached.getService(), TEST_SERVICE);
+            assertEquals(reattached.getExpirationInstant(), pgt.getExpirationInstant());
+        } finally {
+            second.destroy();
+        }
+    }
+
+    @Test
+    public void testSecondAttachFails() throws Exception {
+        final MappedTicketService first = newTicketService(16);
+        try {
+            newTicketService(16);
+            fail("Second instance attached to a locked ticket store");
+        } catch (ComponentInitializationException e) {
+            // Expected
+        } finally {
+            first.destroy();
+        }
+        newTicketService(16).destroy();
+    }
+
+    private MappedTicketService newTicketService(final int capacity) throws Exception {
+        final MappedTicketService ticketService = new MappedTicketService(
+                file,
+                configure(new ServiceTicketConfiguration(), "ST", 15000),
+                configure(new ProxyGrantingTicketConfiguration(), "PGT", 60000),
+                configure(new ProxyTicketConfiguration(), "PT", 15000));
+        ticketService.setCapacity(capacity);
+        ticketService.setConcurrencyLevel(4);
+        ticketService.initialize();
+        return ticketService;
+    }
+
+    private static <T extends AbstractTicketConfiguration> T configure(
+            final T config, final String prefix, final long validity) {
+        config.setSecurityConfiguration(
+                new SecurityConfiguration(300000, new TicketIdentifierGenerationStrategy(25, prefix)));
+        config.setTicketValidityPeriod(validity);
+        return config;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.ticket;
+
+import net.shibboleth.idp.cas.config.AbstractTicketConfiguration;
+import net.shibboleth.idp.cas.config.ProxyGrantingTicketConfiguration;
+import net.shibboleth.idp.cas.config.ProxyTicketConfiguration;
+import net.shibboleth.idp.cas.config.ServiceTicketConfiguration;
+import net.shibboleth.idp.profile.config.SecurityConfiguration;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Unit test for {@link MemoryTicketService} class.
+ */
+public class MemoryTicketServiceTest {
+
+    private static final String TEST_SESSION_ID = "jHXRo42W0ATPEN+X5Zk1cw==";
+
+    private static final String TEST_SERVICE = "https://example.com/widget";
+
+    private static final long TICK = 3600000;
+
+    private MemoryTicketService ticketService;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        ticketService = new MemoryTicketService(
+                configure(new ServiceTicketConfiguration(), "ST", 200),
+                configure(new ProxyGrantingTicketConfiguration(), "PGT", 60000),
+                configure(new ProxyTicketConfiguration(), "PT", 200));
+        // Long enough that the timer never advances the wheel during the test
+        ticketService.setTickInterval(TICK);
+        ticketService.initialize();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        ticketService.destroy();
+    }
+
+    @Test
+    public void testCreateRemoveServiceTicket() throws Exception {
+        final ServiceTicket st = ticketService.createServiceTicket(TEST_SESSION_ID, TEST_SERVICE, true);
+        assertNotNull(st);
+        assertNull(ticketService.removeProxyTicket(st.getId()));
+        final ServiceTicket removed = ticketService.removeServiceTicket(st.getId());
+        assertEquals(removed, st);
+        assertTrue(removed.isRenew());
+        assertNull(ticketService.removeServiceTicket(st.getId()));
+    }
+
+    @Test
+    public void testCreateFetchRemoveProxyGrantingTicket() throws Exception {
+        final ServiceTicket st = ticketService.createServiceTicket(TEST_SESSION_ID, TEST_SERVICE, false);
+        final ProxyGrantingTicket pgt = ticketService.createProxyGrantingTicket(st, "PGT-1234567890");
+        assertEquals(ticketService.fetchProxyGrantingTicket(pgt.getId()), pgt);
+        final ProxyTicket pt = ticketService.createProxyTicket(pgt, TEST_SERVICE);
+        assertEquals(ticketService.removeProxyTicket(pt.getId()), pt);
+        assertEquals(ticketService.removeProxyGrantingTicket(pgt.getId()), pgt);
+        assertNull(ticketService.fetchProxyGrantingTicket(pgt.getId()));
+    }
+
+    @Test
+    public void testExpiredTicketsReclaimed() throws Exception {
+        final ServiceTicket st = ticketService.createServiceTicket(TEST_SESSION_ID, TEST_SERVICE, false);
+        final int size = ticketService.size();
+        ticketService.reclaimExpired(st.getExpirationInstant().getMillis() - 1);
+        assertEquals(ticketService.size(), size);
+        ticketService.reclaimExpired(st.getExpirationInstant().getMillis() + TICK);
+        assertTrue(ticketService.size() < size);
+        assertNull(ticketService.removeServiceTicket(st.getId()));
+    }
+
+    private static <T extends AbstractTicketConfiguration> T configure(
+            final T config, final String prefix, final long validity) {
+        config.setSecurityConfiguration(
+                new SecurityConfiguration(300000, new TicketIdentifierGenerationStrategy(25, prefix)));
+        config.setTicketValidityPeriod(validity);
+        return config;
+    }
+}
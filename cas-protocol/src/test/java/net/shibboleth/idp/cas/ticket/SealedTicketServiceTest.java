@@ -0,0 +1,133 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.ticket;
+
+import java.util.Collections;
+
+import net.shibboleth.idp.cas.config.ProxyTicketConfiguration;
+import net.shibboleth.idp.cas.config.ServiceTicketConfiguration;
+import net.shibboleth.idp.profile.config.SecurityConfiguration;
+import net.shibboleth.idp.spring.IdPPropertiesApplicationContextInitializer;
+import net.shibboleth.utilities.java.support.security.DataSealer;
+import org.opensaml.storage.ReplayCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.testng.AbstractTestNGSpringContextTests;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Unit test for {@link SealedTicketService} class.
+ */
+@ContextConfiguration(
+        locations = {
+                "/system/conf/global-system.xml",
+                "/system/conf/mvc-beans.xml",
+                "/system/conf/relying-party-system.xml",
+                "/test/test-service-registry.xml",
+                "/test/test-webflow-config.xml",
+                "/flows/cas/login/login-beans.xml",
+                "/flows/cas/serviceValidate/serviceValidate-beans.xml"},
+        initializers = IdPPropertiesApplicationContextInitializer.class)
+@WebAppConfiguration
+public class SealedTicketServiceTest extends AbstractTestNGSpringContextTests {
+
+    private static final String TEST_SESSION_ID = "jHXRo42W0ATPEN+X5Zk1cw==";
+
+    private static final String TEST_SERVICE = "https://example.com/widget?a=b&c=d";
+
+    @Autowired
+    private SimpleTicketService simpleTicketService;
+
+    private SealedTicketService ticketService;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        ticketService = new SealedTicketService(
+                applicationContext.getBean("shibboleth.DataSealer", DataSealer.class),
+                applicationContext.getBean("shibboleth.ReplayCache", ReplayCache.class),
+                simpleTicketService,
+                applicationContext.getBean("CAS.ServiceTicketConfig", ServiceTicketConfiguration.class),
+                applicationContext.getBean("CAS.ProxyTicketConfig", ProxyTicketConfiguration.class));
+    }
+
+    @Test
+    public void testCreateRemoveServiceTicket() throws Exception {
+        final ServiceTicket st = ticketService.createServiceTicket(TEST_SESSION_ID, TEST_SERVICE, true);
+        assertTrue(st.getId().startsWith("ST-"));
+        assertFalse(st.getId().matches(".*[+/=&?].*"));
+        final ServiceTicket removed = ticketService.removeServiceTicket(st.getId());
+        assertNotNull(removed);
+        assertEquals(removed, st);
+        assertEquals(removed.getSessionId(), TEST_SESSION_ID);
+        assertEquals(removed.getExpirationInstant(), st.getExpirationInstant());
+        assertTrue(removed.isRenew());
+        final ServiceTicket bound = (ServiceTicket) ticketService.bindService(removed, TEST_SERVICE.toUpperCase());
+        assertNotNull(bound);
+        assertEquals(bound.getService(), TEST_SERVICE.toUpperCase());
+        assertTrue(bound.isRenew());
+        assertNull(ticketService.bindService(removed, "https://example.com/other"));
+        assertNull(ticketService.removeServiceTicket(st.getId()));
+    }
+
+    @Test
+    public void testTicketLengthIndependentOfService() throws Exception {
+        final StringBuilder service = new StringBuilder("https://example.com/app/");
+        for (int i = 0; i < 50; i++) {
+            service.append("segment").append(i).append('/');
+        }
+        final ServiceTicket st = ticketService.createServiceTicket(TEST_SESSION_ID, service.toString(), false);
+        assertTrue(st.getId().length() < 256, "Ticket ID too long: " + st.getId().length());
+        final ServiceTicket removed = ticketService.removeServiceTicket(st.getId());
+        assertNotNull(ticketService.bindService(removed, service.toString()));
+    }
+
+    @Test
+    public void testCreateRemoveProxyTicket() throws Exception {
+        final ServiceTicket st = ticketService.createServiceTicket(TEST_SESSION_ID, TEST_SERVICE, false);
+        final ProxyGrantingTicket pgt = ticketService.createProxyGrantingTicket(st, "PGT-1234567890-sealed");
+        final ProxyTicket pt = ticketService.createProxyTicket(pgt, TEST_SERVICE);
+        assertNull(ticketService.removeServiceTicket(pt.getId()));
+        final ProxyTicket removed = ticketService.removeProxyTicket(pt.getId());
+        assertNotNull(removed);
+        assertEquals(removed.getPgtId(), pgt.getId());
+        final ProxyTicket bound = (ProxyTicket) ticketService.bindService(removed, TEST_SERVICE);
+        assertEquals(bound.getService(), TEST_SERVICE);
+        assertEquals(bound.getPgtId(), pgt.getId());
+        assertNull(ticketService.removeProxyTicket(pt.getId()));
+    }
+
+    @Test
+    public void testTamperedTicket() throws Exception {
+        final ServiceTicket st = ticketService.createServiceTicket(TEST_SESSION_ID, TEST_SERVICE, false);
+        final char[] chars = st.getId().toCharArray();
+        final int i = chars.length / 2;
+        chars[i] = chars[i] == 'A' ? 'B' : 'A';
+        assertNull(ticketService.removeServiceTicket(new String(chars)));
+        assertNull(ticketService.removeServiceTicket("ST-garbage"));
+    }
+
+    @Test
+    public void testTaggedTicket() throws Exception {
+        final TicketIdentifierGenerationStrategy generator = new TicketIdentifierGenerationStrategy(25, "ST");
+        generator.setTagSecrets(Collections.singletonList("AAECAwQFBgcICQoLDA0ODw=="));
+        final ServiceTicketConfiguration stConfig = new ServiceTicketConfiguration();
+        stConfig.setSecurityConfiguration(new SecurityConfiguration(300000, generator));
+        final SealedTicketService tagging = new SealedTicketService(
+                applicationContext.getBean("shibboleth.DataSealer", DataSealer.class),
+                applicationContext.getBean("shibboleth.ReplayCache", ReplayCache.class),
+                simpleTicketService,
+                stConfig,
+                applicationContext.getBean("CAS.ProxyTicketConfig", ProxyTicketConfiguration.class));
+        final ServiceTicket st = tagging.createServiceTicket(TEST_SESSION_ID, TEST_SERVICE, false);
+        assertTrue(generator.verifyIdentifier(st.getId()));
+        final ServiceTicket removed = tagging.removeServiceTicket(st.getId());
+        assertNotNull(removed);
+        assertNotNull(tagging.bindService(removed, TEST_SERVICE));
+    }
+}
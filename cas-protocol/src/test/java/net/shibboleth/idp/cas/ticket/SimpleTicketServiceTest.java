@@ -4,7 +4,24 @@
 
 package net.shibboleth.idp.cas.ticket;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.shibboleth.idp.cas.config.ProxyGrantingTicketConfiguration;
+import net.shibboleth.idp.cas.config.ProxyTicketConfiguration;
+import net.shibboleth.idp.cas.config.ServiceTicketConfiguration;
 import net.shibboleth.idp.spring.IdPPropertiesApplicationContextInitializer;
+import org.joda.time.DateTime;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageService;
+import org.opensaml.storage.VersionMismatchException;
+import org.opensaml.storage.impl.MemoryStorageService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.testng.AbstractTestNGSpringContextTests;
@@ -13,6 +30,8 @@ import org.testng.annotations.Test;
 
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 import static org.testng.AssertJUnit.assertEquals;
 
 /**
@@ -70,4 +89,283 @@ public class SimpleTicketServiceTest extends AbstractTestNGSpringContextTests {
         assertEquals(ticketService.removeProxyTicket(pt.getId()), pt);
         assertNull(ticketService.removeProxyTicket(pt.getId()));
     }
+
+    @Test
+    public void testConcurrentRemoveServiceTicket() throws Exception {
+        final ServiceTicket st = ticketService.createServiceTicket(TEST_SESSION_ID, TEST_SERVICE, false);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<ServiceTicket>> results = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                results.add(executor.submit(new Callable<ServiceTicket>() {
+                    @Override
+                    public ServiceTicket call() throws Exception {
+                        return ticketService.removeServiceTicket(st.getId());
+                    }
+                }));
+            }
+            int removed = 0;
+            for (Future<ServiceTicket> result : results) {
+                if (result.get() != null) {
+                    removed++;
+                }
+            }
+            assertEquals(removed, 1);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testProxyGrantingTicketNearCache() throws Exception {
+        final SimpleTicketService cachingService = newTicketService(defaultStorage());
+        cachingService.setPgtCacheTTL(60000);
+        final ServiceTicket st = cachingService.createServiceTicket(TEST_SESSION_ID, TEST_SERVICE, false);
+        final ProxyGrantingTicket pgt = cachingService.createProxyGrantingTicket(st, TEST_SERVICE);
+        assertEquals(cachingService.fetchProxyGrantingTicket(pgt.getId()), pgt);
+        assertEquals(cachingService.fetchProxyGrantingTicket(pgt.getId()), pgt);
+        assertEquals(cachingService.getPgtCacheHitCount(), 2);
+        assertEquals(cachingService.getPgtCacheMissCount(), 0);
+
+        assertEquals(cachingService.removeProxyGrantingTicket(pgt.getId()), pgt);
+        assertNull(cachingService.fetchProxyGrantingTicket(pgt.getId()));
+        assertEquals(cachingService.getPgtCacheMissCount(), 1);
+
+        // Never served past its expiration instant even though the cache TTL has not elapsed
+        final ProxyGrantingTicket shortLived = new ProxyGrantingTicket(
+                "PGT-short-lived", TEST_SESSION_ID, TEST_SERVICE, DateTime.now().plus(100).toInstant(), null);
+        cachingService.store(shortLived);
+        Thread.sleep(200);
+        assertNull(cachingService.fetchProxyGrantingTicket(shortLived.getId()));
+        assertTrue(cachingService.getPgtCacheHitRate() < 1.0);
+    }
+
+    @Test
+    public void testMaxProxyChainDepth() throws Exception {
+        final ProxyGrantingTicketConfiguration config =
+                applicationContext.getBean("CAS.ProxyGrantingTicketConfig", ProxyGrantingTicketConfiguration.class);
+        final ServiceTicket st = ticketService.createServiceTicket(TEST_SESSION_ID, TEST_SERVICE, false);
+        final ProxyGrantingTicket pgt = ticketService.createProxyGrantingTicket(st, "PGT-d1e2p3t4h5");
+        final ProxyTicket pt = ticketService.createProxyTicket(pgt, "proxiedService");
+        final int depth = config.getMaxProxyChainDepth();
+        config.setMaxProxyChainDepth(1);
+        try {
+            ticketService.createProxyGrantingTicket(pt, "PGT-d6e7p8t9h0");
+            fail("Expected proxy chain depth to be enforced");
+        } catch (IllegalStateException e) {
+            assertNull(ticketService.fetchProxyGrantingTicket("PGT-d6e7p8t9h0"));
+        } finally {
+            config.setMaxProxyChainDepth(depth);
+        }
+    }
+
+    @Test
+    public void testRemoveTicketsForSessionAndPrincipal() throws Exception {
+        final SimpleTicketService indexingService = newTicketService(defaultStorage());
+        indexingService.setIndexSessions(true);
+        final String session1 = "session-index-1";
+        final String session2 = "session-index-2";
+        final ServiceTicket st1 = indexingService.createServiceTicket(session1, TEST_SERVICE, false);
+        final ProxyGrantingTicket pgt1 = indexingService.createProxyGrantingTicket(
+                indexingService.createServiceTicket(session1, TEST_SERVICE, false), "PGT-i1n2d3e4x5");
+        final ProxyTicket pt1 = indexingService.createProxyTicket(pgt1, "proxiedService");
+        final ServiceTicket st2 = indexingService.createServiceTicket(session2, TEST_SERVICE, false);
+        indexingService.indexSession("alice", session1);
+        indexingService.indexSession("alice", session1);
+        indexingService.indexSession("bob", session2);
+        // Each ticket of a session has an index record of its own, numbered by the session counter record
+        final String sessionContext = SimpleTicketService.SESSION_INDEX_CONTEXT;
+        assertEquals(defaultStorage().read(sessionContext, session1).getValue(), "4");
+        assertNotNull(defaultStorage().read(sessionContext, session1 + "#3"));
+
+        // st1, pt1, pgt1 and the unconsumed ST used to create pgt1
+        assertEquals(indexingService.removeTicketsForPrincipal("alice"), 4);
+        assertNull(indexingService.removeServiceTicket(st1.getId()));
+        assertNull(indexingService.removeProxyTicket(pt1.getId()));
+        assertNull(indexingService.fetchProxyGrantingTicket(pgt1.getId()));
+        assertEquals(indexingService.removeTicketsForPrincipal("alice"), 0);
+
+        assertEquals(indexingService.removeTicketsForSession(session2), 1);
+        assertNull(indexingService.removeServiceTicket(st2.getId()));
+    }
+
+    @Test
+    public void testRemoveProxyGrantingTicketCascades() throws Exception {
+        final ServiceTicket st = ticketService.createServiceTicket(TEST_SESSION_ID, TEST_SERVICE, false);
+        final ProxyGrantingTicket root = ticketService.createProxyGrantingTicket(st, "PGT-c1a2s3c4a5d6e7");
+        final ProxyGrantingTicket child = ticketService.createProxyGrantingTicket(
+                ticketService.createProxyTicket(root, "proxyA"), "PGT-c8a9s0c1a2d3e4");
+        final ProxyGrantingTicket sibling = ticketService.createProxyGrantingTicket(
+                ticketService.createProxyTicket(root, "proxyB"), "PGT-c5a6s7c8a9d0e1");
+        final ProxyGrantingTicket grandchild = ticketService.createProxyGrantingTicket(
+                ticketService.createProxyTicket(child, "proxyC"), "PGT-c2a3s4c5a6d7e8");
+        assertTrue(!child.getExpirationInstant().isAfter(root.getExpirationInstant()));
+        assertTrue(!grandchild.getExpirationInstant().isAfter(child.getExpirationInstant()));
+        final StorageService storage = defaultStorage();
+        final String childrenContext = SimpleTicketService.PGT_CHILDREN_CONTEXT;
+        assertEquals(storage.read(childrenContext, root.getId()).getValue(), "2");
+        assertNotNull(storage.read(childrenContext, root.getId() + "#1"));
+
+        assertEquals(ticketService.removeProxyGrantingTicket(child.getId()), child);
+        assertNull(ticketService.fetchProxyGrantingTicket(grandchild.getId()));
+        assertEquals(ticketService.fetchProxyGrantingTicket(sibling.getId()), sibling);
+        assertEquals(ticketService.fetchProxyGrantingTicket(root.getId()), root);
+
+        assertEquals(ticketService.removeProxyGrantingTicket(root.getId()), root);
+        assertNull(ticketService.fetchProxyGrantingTicket(sibling.getId()));
+        assertNull(storage.read(childrenContext, root.getId()));
+        assertNull(storage.read(childrenContext, root.getId() + "#0"));
+        assertNull(storage.read(childrenContext, root.getId() + "#1"));
+    }
+
+    @Test
+    public void testRemoveProxyGrantingTicketWithoutCascade() throws Exception {
+        final SimpleTicketService nonCascadingService = newTicketService(defaultStorage());
+        nonCascadingService.setCascadePgtRemoval(false);
+        final ServiceTicket st = nonCascadingService.createServiceTicket(TEST_SESSION_ID, TEST_SERVICE, false);
+        final ProxyGrantingTicket root = nonCascadingService.createProxyGrantingTicket(st, "PGT-n1o2c3a4s5");
+        final ProxyGrantingTicket child = nonCascadingService.createProxyGrantingTicket(
+                nonCascadingService.createProxyTicket(root, "proxyA"), "PGT-n6o7c8a9s0");
+        assertNull(defaultStorage().read(SimpleTicketService.PGT_CHILDREN_CONTEXT, root.getId()));
+
+        assertEquals(nonCascadingService.removeProxyGrantingTicket(root.getId()), root);
+        assertEquals(nonCascadingService.fetchProxyGrantingTicket(child.getId()), child);
+    }
+
+    @Test
+    public void testPerTypeStorageService() throws Exception {
+        final StorageService defaultStorage = defaultStorage();
+        final MemoryStorageService pgtStorage = new MemoryStorageService();
+        pgtStorage.setId("pgtStorage");
+        pgtStorage.initialize();
+        try {
+            final SimpleTicketService routingService = newTicketService(defaultStorage);
+            routingService.setProxyGrantingTicketStorageService(pgtStorage);
+            final ServiceTicket st = routingService.createServiceTicket(TEST_SESSION_ID, TEST_SERVICE, false);
+            final ProxyGrantingTicket pgt = routingService.createProxyGrantingTicket(st, "PGT-r1o2u3t4e5");
+            final ProxyTicket pt = routingService.createProxyTicket(pgt, "proxiedService");
+
+            final String pgtContext = ProxyGrantingTicketConfiguration.PROFILE_ID;
+            assertNotNull(pgtStorage.read(pgtContext, pgt.getId()));
+            assertNull(defaultStorage.read(pgtContext, pgt.getId()));
+            assertNotNull(defaultStorage.read(ServiceTicketConfiguration.PROFILE_ID, st.getId()));
+            assertNotNull(defaultStorage.read(ProxyTicketConfiguration.PROFILE_ID, pt.getId()));
+
+            assertEquals(routingService.fetchProxyGrantingTicket(pgt.getId()), pgt);
+            assertEquals(routingService.removeProxyTicket(pt.getId()), pt);
+            assertEquals(routingService.removeProxyGrantingTicket(pgt.getId()), pgt);
+            assertNull(pgtStorage.read(pgtContext, pgt.getId()));
+        } finally {
+            pgtStorage.destroy();
+        }
+    }
+
+    @Test
+    public void testRemovalDuringNearCacheFill() throws Exception {
+        final String pgtContext = ProxyGrantingTicketConfiguration.PROFILE_ID;
+        final AtomicReference<SimpleTicketService> remover = new AtomicReference<>();
+        final MemoryStorageService storage = new MemoryStorageService() {
+            @Override
+            public <T> StorageRecord<T> read(final String context, final String key) throws IOException {
+                final StorageRecord<T> record = super.read(context, key);
+                final SimpleTicketService service = pgtContext.equals(context) ? remover.getAndSet(null) : null;
+                if (service != null) {
+                    // Ticket is removed after the near cache missed but before the read result is cached
+                    service.removeProxyGrantingTicket(key);
+                }
+                return record;
+            }
+        };
+        storage.setId("raceStorage");
+        storage.initialize();
+        try {
+            final SimpleTicketService issuingService = newTicketService(storage);
+            final ServiceTicket st = issuingService.createServiceTicket(TEST_SESSION_ID, TEST_SERVICE, false);
+            final ProxyGrantingTicket pgt = issuingService.createProxyGrantingTicket(st, "PGT-r1a2c3e4");
+
+            final SimpleTicketService cachingService = newTicketService(storage);
+            cachingService.setPgtCacheTTL(60000);
+            remover.set(cachingService);
+            assertEquals(cachingService.fetchProxyGrantingTicket(pgt.getId()), pgt);
+            assertNull(storage.read(pgtContext, pgt.getId()));
+            assertNull(cachingService.fetchProxyGrantingTicket(pgt.getId()));
+            assertEquals(cachingService.getPgtCacheHitCount(), 0);
+        } finally {
+            storage.destroy();
+        }
+    }
+
+    @Test
+    public void testIndexWriteDuringRemoval() throws Exception {
+        final String session = "session-race-1";
+        final AtomicReference<SimpleTicketService> writer = new AtomicReference<>();
+        final MemoryStorageService storage = new MemoryStorageService() {
+            @Override
+            public boolean deleteWithVersion(final long version, final String context, final String key)
+                    throws IOException, VersionMismatchException {
+                final SimpleTicketService service =
+                        SimpleTicketService.SESSION_INDEX_CONTEXT.equals(context) ? writer.getAndSet(null) : null;
+                if (service != null) {
+                    // Ticket is indexed after the index record was read but before it is deleted
+                    service.createServiceTicket(session, TEST_SERVICE, false);
+                }
+                return super.deleteWithVersion(version, context, key);
+            }
+        };
+        storage.setId("indexRaceStorage");
+        storage.initialize();
+        try {
+            final SimpleTicketService indexingService = newTicketService(storage);
+            indexingService.setIndexSessions(true);
+            indexingService.createServiceTicket(session, TEST_SERVICE, false);
+            writer.set(indexingService);
+            assertEquals(indexingService.removeTicketsForSession(session), 2);
+            assertNull(storage.read(SimpleTicketService.SESSION_INDEX_CONTEXT, session));
+        } finally {
+            storage.destroy();
+        }
+    }
+
+    @Test
+    public void testSessionIndexFailureFailsTicketCreation() throws Exception {
+        final AtomicReference<String> ticketId = new AtomicReference<>();
+        final MemoryStorageService storage = new MemoryStorageService() {
+            @Override
+            public boolean create(final String context, final String key, final String value, final Long expiration)
+                    throws IOException {
+                if (SimpleTicketService.SESSION_INDEX_CONTEXT.equals(context)) {
+                    return false;
+                }
+                ticketId.set(key);
+                return super.create(context, key, value, expiration);
+            }
+        };
+        storage.setId("indexFailureStorage");
+        storage.initialize();
+        try {
+            final SimpleTicketService indexingService = newTicketService(storage);
+            indexingService.setIndexSessions(true);
+            try {
+                indexingService.createServiceTicket("session-unindexed-1", TEST_SERVICE, false);
+                fail("Ticket creation should have failed");
+            } catch (RuntimeException e) {
+                assertNotNull(ticketId.get());
+                assertNull(indexingService.removeServiceTicket(ticketId.get()));
+            }
+        } finally {
+            storage.destroy();
+        }
+    }
+
+    private StorageService defaultStorage() {
+        return applicationContext.getBean("shibboleth.StorageService", StorageService.class);
+    }
+
+    private SimpleTicketService newTicketService(final StorageService storage) {
+        return new SimpleTicketService(
+                storage,
+                applicationContext.getBean("CAS.ServiceTicketConfig", ServiceTicketConfiguration.class),
+                applicationContext.getBean("CAS.ProxyGrantingTicketConfig", ProxyGrantingTicketConfiguration.class),
+                applicationContext.getBean("CAS.ProxyTicketConfig", ProxyTicketConfiguration.class));
+    }
 }
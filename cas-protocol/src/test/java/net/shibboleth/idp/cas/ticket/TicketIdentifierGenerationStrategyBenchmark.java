@@ -0,0 +1,66 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.ticket;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH throughput benchmark comparing the shared and per-thread random sources of
+ * {@link TicketIdentifierGenerationStrategy}. Run {@link #main(String[])} from the test classpath to measure
+ * both modes at 1, 2, 4, 8, 16, 32, and 64 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TicketIdentifierGenerationStrategyBenchmark {
+
+    /** Thread counts to measure. */
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+    @Param({"false", "true"})
+    private boolean perThreadRandom;
+
+    private TicketIdentifierGenerationStrategy generator;
+
+    @Setup
+    public void setUp() {
+        generator = new TicketIdentifierGenerationStrategy(25, "ST");
+        generator.setSuffix("node1");
+        generator.setPerThreadRandom(perThreadRandom);
+    }
+
+    @Benchmark
+    public String generateIdentifier() {
+        return generator.generateIdentifier();
+    }
+
+    public static void main(final String[] args) throws Exception {
+        for (final int threads : THREADS) {
+            final Options options = new OptionsBuilder()
+                    .include(TicketIdentifierGenerationStrategyBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
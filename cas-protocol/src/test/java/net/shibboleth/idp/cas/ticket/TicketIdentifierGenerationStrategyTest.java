@@ -4,6 +4,10 @@
 
 package net.shibboleth.idp.cas.ticket;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -11,6 +15,7 @@ import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 
 /**
@@ -29,10 +34,17 @@ public class TicketIdentifierGenerationStrategyTest {
         final TicketIdentifierGenerationStrategy gen2 = new TicketIdentifierGenerationStrategy(30, "PT");
         gen2.setSuffix("host1.example.com");
         final TicketIdentifierGenerationStrategy gen3 = new TicketIdentifierGenerationStrategy(50, "PGT");
+        final TicketIdentifierGenerationStrategy gen4 = new TicketIdentifierGenerationStrategy(25, "ST");
+        gen4.setSuffix("node_1-1");
+        gen4.setPerThreadRandom(true);
+        final TicketIdentifierGenerationStrategy gen5 = new TicketIdentifierGenerationStrategy(1000, "PGTIOU");
+        gen5.setPerThreadRandom(true);
         return new Object[][] {
                 { gen1 , "ST", 30, "node_1-1"},
                 { gen2 , "PT", 30, "host1.example.com" },
                 { gen3, "PGT", 50, null },
+                { gen4, "ST", 25, "node_1-1"},
+                { gen5, "PGTIOU", 1000, null },
         };
     }
 
@@ -63,6 +75,69 @@ public class TicketIdentifierGenerationStrategyTest {
         }
     }
 
+    @Test
+    public void testPerThreadRandomUnique() throws Exception {
+        final TicketIdentifierGenerationStrategy generator = new TicketIdentifierGenerationStrategy(25, "ST");
+        generator.setPerThreadRandom(true);
+        final Set<String> ids = new HashSet<>();
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(ids.add(generator.generateIdentifier()));
+        }
+    }
+
+    @Test
+    public void testTagVerification() throws Exception {
+        final String oldSecret = "AAECAwQFBgcICQoLDA0ODw==";
+        final String newSecret = "EBESExQVFhcYGRobHB0eHw==";
+        final TicketIdentifierGenerationStrategy before = new TicketIdentifierGenerationStrategy(25, "ST");
+        before.setTagSecrets(Collections.singletonList(oldSecret));
+        final TicketIdentifierGenerationStrategy after = new TicketIdentifierGenerationStrategy(25, "ST");
+        after.setSuffix("node1");
+        after.setTagSecrets(Arrays.asList(newSecret, oldSecret));
+
+        final String id = after.generateIdentifier();
+        assertTrue(TICKET_REGEX.matcher(id).matches());
+        assertTrue(id.endsWith("-node1"));
+        assertTrue(after.verifyIdentifier(id));
+        assertFalse(before.verifyIdentifier(id));
+        assertTrue(after.verifyIdentifier(before.generateIdentifier()));
+
+        final int tagEnd = id.length() - "-node1".length();
+        final char last = id.charAt(tagEnd - 1);
+        assertFalse(after.verifyIdentifier(
+                id.substring(0, tagEnd - 1) + (last == '0' ? '1' : '0') + id.substring(tagEnd)));
+        assertFalse(after.verifyIdentifier("ST-1234-garbage"));
+        assertFalse(after.verifyIdentifier("ST"));
+        assertTrue(new TicketIdentifierGenerationStrategy(25, "ST").verifyIdentifier("ST-1234-garbage"));
+    }
+
+    @Test
+    public void testTagPrecedesSuffix() throws Exception {
+        final TicketIdentifierGenerationStrategy generator = new TicketIdentifierGenerationStrategy(25, "ST");
+        generator.setSuffix("node_1-1");
+        generator.setPerThreadRandom(true);
+        generator.setTagSecrets(Collections.singletonList("AAECAwQFBgcICQoLDA0ODw=="));
+        final String id = generator.generateIdentifier();
+        assertTrue(Pattern.matches("ST-\\d+-[A-Za-z0-9]{25}-[0-9a-f]{16}-node_1-1", id), id);
+        assertTrue(generator.verifyIdentifier(id));
+        assertTrue(generator.verifyIdentifier(id.replace("-node_1-1", "-node2")));
+
+        final String sealed = generator.tagIdentifier("ST-c2VhbGVk-data");
+        assertTrue(generator.verifyIdentifier(sealed));
+        assertEquals(generator.untagIdentifier(sealed), "ST-c2VhbGVk-data");
+    }
+
+    @Test
+    public void testTagSecretsReplaced() throws Exception {
+        final TicketIdentifierGenerationStrategy generator = new TicketIdentifierGenerationStrategy(25, "ST");
+        generator.setTagSecrets(Collections.singletonList("AAECAwQFBgcICQoLDA0ODw=="));
+        final String id = generator.generateIdentifier();
+        assertTrue(generator.verifyIdentifier(id));
+        generator.setTagSecrets(Collections.singletonList("EBESExQVFhcYGRobHB0eHw=="));
+        assertFalse(generator.verifyIdentifier(id));
+        assertTrue(generator.verifyIdentifier(generator.generateIdentifier()));
+    }
+
     @Test(dataProvider = "url-safety",
           expectedExceptions = IllegalArgumentException.class)
     public void testUrlSafety(final String prefix, final String suffix) {
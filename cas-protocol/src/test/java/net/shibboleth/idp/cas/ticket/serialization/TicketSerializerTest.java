@@ -0,0 +1,148 @@
+/*
+ * See LICENSE for licensing and NOTICE for copyright.
+ */
+
+package net.shibboleth.idp.cas.ticket.serialization;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import net.shibboleth.idp.cas.ticket.ProxyGrantingTicket;
+import net.shibboleth.idp.cas.ticket.ProxyTicket;
+import net.shibboleth.idp.cas.ticket.ServiceTicket;
+import net.shibboleth.utilities.java.support.codec.Base64Support;
+import org.joda.time.Instant;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Unit test for ticket serializers.
+ */
+public class TicketSerializerTest {
+
+    private static final String TEST_SESSION_ID = "jHXRo42W0ATPEN+X5Zk1cw==";
+
+    private static final String TEST_SERVICE = "https://example.com/widget/été/😀";
+
+    @Test
+    public void testServiceTicketBinary() throws Exception {
+        final ServiceTicketSerializer serializer = new ServiceTicketSerializer();
+        serializer.setWriteBinary(true);
+        final ServiceTicket st = new ServiceTicket("ST-1", TEST_SESSION_ID, TEST_SERVICE, new Instant(1234L), true);
+        final String serialized = serializer.serialize(st);
+        assertEquals(serialized.charAt(0), AbstractTicketSerializer.BINARY_MARKER);
+        final ServiceTicket deserialized = serializer.deserialize(1, "context", "ST-1", serialized, null);
+        assertEquals(deserialized.getSessionId(), TEST_SESSION_ID);
+        assertEquals(deserialized.getService(), TEST_SERVICE);
+        assertEquals(deserialized.getExpirationInstant().getMillis(), 1234L);
+        assertTrue(deserialized.isRenew());
+    }
+
+    @Test
+    public void testServiceTicketLegacy() throws Exception {
+        final ServiceTicketSerializer serializer = new ServiceTicketSerializer();
+        final ServiceTicket deserialized = serializer.deserialize(
+                1, "context", "ST-1", TEST_SESSION_ID + "::" + TEST_SERVICE + "::1410532279838::false", null);
+        assertEquals(deserialized.getSessionId(), TEST_SESSION_ID);
+        assertEquals(deserialized.getService(), TEST_SERVICE);
+        assertEquals(deserialized.getExpirationInstant().getMillis(), 1410532279838L);
+        assertFalse(deserialized.isRenew());
+    }
+
+    @Test
+    public void testProxyTicketWritesDelimitedByDefault() throws Exception {
+        final ProxyTicketSerializer serializer = new ProxyTicketSerializer();
+        final ProxyTicket pt = new ProxyTicket("PT-1", TEST_SESSION_ID, TEST_SERVICE, new Instant(99L), "PGT-1");
+        final String serialized = serializer.serialize(pt);
+        assertEquals(serialized, TEST_SESSION_ID + "::" + TEST_SERVICE + "::99::PGT-1");
+        assertEquals(serializer.deserialize(1, "context", "PT-1", serialized, null).getPgtId(), "PGT-1");
+    }
+
+    @Test
+    public void testProxyGrantingTicketOptionalParent() throws Exception {
+        final ProxyGrantingTicketSerializer serializer = new ProxyGrantingTicketSerializer();
+        serializer.setWriteBinary(true);
+        final ProxyGrantingTicket root =
+                new ProxyGrantingTicket("PGT-1", TEST_SESSION_ID, TEST_SERVICE, new Instant(5L), null);
+        final ProxyGrantingTicket child =
+                new ProxyGrantingTicket("PGT-2", TEST_SESSION_ID, TEST_SERVICE, new Instant(5L), "PGT-1");
+        assertNull(serializer.deserialize(1, "context", "PGT-1", serializer.serialize(root), null).getParentId());
+        assertEquals(
+                serializer.deserialize(1, "context", "PGT-2", serializer.serialize(child), null).getParentId(),
+                "PGT-1");
+    }
+
+    @Test
+    public void testProxyGrantingTicketProxyChain() throws Exception {
+        final ProxyGrantingTicketSerializer serializer = new ProxyGrantingTicketSerializer();
+        serializer.setWriteBinary(true);
+        final ProxyGrantingTicket pgt = new ProxyGrantingTicket(
+                "PGT-3", TEST_SESSION_ID, TEST_SERVICE, new Instant(5L), "PGT-2", Arrays.asList("proxyB", "proxyA"));
+        final ProxyGrantingTicket deserialized = serializer.deserialize(
+                1, "context", "PGT-3", serializer.serialize(pgt), null);
+        assertEquals(deserialized.getParentId(), "PGT-2");
+        assertEquals(deserialized.getProxyChain(), Arrays.asList("proxyB", "proxyA"));
+        assertEquals(deserialized.getProxyChainDepth(), 3);
+
+        serializer.setWriteBinary(false);
+        assertEquals(serializer.deserialize(1, "context", "PGT-3", serializer.serialize(pgt), null).getProxyChain(),
+                Arrays.asList("proxyB", "proxyA"));
+    }
+
+    @Test
+    public void testProxyGrantingTicketLegacyWithoutChain() throws Exception {
+        final ProxyGrantingTicket deserialized = new ProxyGrantingTicketSerializer().deserialize(
+                1, "context", "PGT-2", TEST_SESSION_ID + "::" + TEST_SERVICE + "::5::PGT-1", null);
+        assertEquals(deserialized.getParentId(), "PGT-1");
+        assertNull(deserialized.getProxyChain());
+        assertEquals(deserialized.getProxyChainDepth(), -1);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testMalformed() throws Exception {
+        new ServiceTicketSerializer().deserialize(1, "context", "ST-1", "a::b::notanumber::true", null);
+    }
+
+    @Test
+    public void testProxyGrantingTicketLegacyTrailingEmptyFields() throws Exception {
+        final ProxyGrantingTicket deserialized = new ProxyGrantingTicketSerializer().deserialize(
+                1, "context", "PGT-2", TEST_SESSION_ID + "::" + TEST_SERVICE + "::5::::", null);
+        assertEquals(deserialized.getExpirationInstant().getMillis(), 5L);
+        assertNull(deserialized.getParentId());
+    }
+
+    @Test
+    public void testLegacyLongRange() throws Exception {
+        final ServiceTicketSerializer serializer = new ServiceTicketSerializer();
+        assertEquals(serializer.deserialize(1, "context", "ST-1", "a::b::9223372036854775807::true", null)
+                .getExpirationInstant().getMillis(), Long.MAX_VALUE);
+        assertEquals(serializer.deserialize(1, "context", "ST-1", "a::b::-9223372036854775808::true", null)
+                .getExpirationInstant().getMillis(), Long.MIN_VALUE);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testLegacyLongOverflow() throws Exception {
+        new ServiceTicketSerializer().deserialize(1, "context", "ST-1", "a::b::9223372036854775808::true", null);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testLegacyLongTooManyDigits() throws Exception {
+        new ServiceTicketSerializer().deserialize(1, "context", "ST-1", "a::b::123456789012345678901::true", null);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testNegativeFieldLength() throws Exception {
+        // Version 1, one field, five byte varint with the sign bit set
+        final byte[] value = {1, 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F, 'a'};
+        new ServiceTicketSerializer().deserialize(1, "context", "ST-1",
+                AbstractTicketSerializer.BINARY_MARKER + Base64Support.encode(value, Base64Support.UNCHUNKED), null);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testOversizedFieldLength() throws Exception {
+        final byte[] value = {1, 4, 100, 'a', 'b'};
+        new ServiceTicketSerializer().deserialize(1, "context", "ST-1",
+                AbstractTicketSerializer.BINARY_MARKER + Base64Support.encode(value, Base64Support.UNCHUNKED), null);
+    }
+}